@@ -21,6 +21,7 @@ import java.io.DataOutput;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -34,8 +35,15 @@ import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.management.ObjectName;
+
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.broker.BrokerServiceAware;
+import org.apache.activemq.broker.jmx.AnnotatedMBean;
 import org.apache.activemq.command.ConnectionId;
 import org.apache.activemq.command.LocalTransactionId;
 import org.apache.activemq.command.SubscriptionInfo;
@@ -55,6 +63,7 @@ import org.apache.activemq.store.kahadb.data.KahaTraceCommand;
 import org.apache.activemq.store.kahadb.data.KahaTransactionInfo;
 import org.apache.activemq.store.kahadb.data.KahaXATransactionId;
 import org.apache.activemq.util.Callback;
+import org.apache.activemq.util.JMXSupport;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.kahadb.index.BTreeIndex;
@@ -62,6 +71,8 @@ import org.apache.kahadb.index.BTreeVisitor;
 import org.apache.kahadb.journal.DataFile;
 import org.apache.kahadb.journal.Journal;
 import org.apache.kahadb.journal.Location;
+import org.apache.kahadb.page.DirectPageCache;
+import org.apache.kahadb.page.DirectPageCacheMBean;
 import org.apache.kahadb.page.Page;
 import org.apache.kahadb.page.PageFile;
 import org.apache.kahadb.page.Transaction;
@@ -76,7 +87,7 @@ import org.apache.kahadb.util.SequenceSet;
 import org.apache.kahadb.util.StringMarshaller;
 import org.apache.kahadb.util.VariableMarshaller;
 
-public class MessageDatabase {
+public class MessageDatabase implements BrokerServiceAware {
 
 public static final String PROPERTY_LOG_SLOW_ACCESS_TIME = "org.apache.activemq.store.kahadb.LOG_SLOW_ACCESS_TIME";
 public static final int LOG_SLOW_ACCESS_TIME = Integer.parseInt(System.getProperty(PROPERTY_LOG_SLOW_ACCESS_TIME, "500"));
@@ -166,8 +177,20 @@ protected AtomicBoolean opened = new AtomicBoolean();
 private LockFile lockFile;
 private boolean ignoreMissingJournalfiles = false;
 private int indexCacheSize = 100;
+private int indexDirectCacheSize = 0;
+private boolean indexMappedReads = false;
 private boolean checkForCorruptJournalFiles = false;
 private boolean checksumJournalFiles = false;
+private boolean journalMappedReads = false;
+private boolean journalGroupCommit = false;
+private long journalGroupCommitMaxLatency = Journal.DEFAULT_GROUP_COMMIT_MAX_LATENCY;
+private int journalGroupCommitMaxBatchSize = Journal.DEFAULT_GROUP_COMMIT_MAX_BATCH_SIZE;
+private int journalRecoveryThreads = Runtime.getRuntime().availableProcessors();
+private int recoveryReadAhead = 0;
+private long recoveryCheckpointInterval = 0;
+private RecoveryProgress recoveryProgress;
+private BrokerService brokerService;
+private final List<ObjectName> registeredMBeans = new ArrayList<ObjectName>();
 
 public MessageDatabase() {
 }
@@ -232,9 +255,18 @@ storedDestinations.put(entry.getKey(), sd);
 */
 public void open() throws IOException {
 if( opened.compareAndSet(false, true) ) {
+recoveryProgress = new RecoveryProgress(getJournal());
+registerMBean("RecoveryProgress", recoveryProgress);
+if (checkForCorruptJournalFiles) {
+recoveryProgress.checking();
+}
 getJournal().start();
 
 loadPageFile();
+DirectPageCacheMBean indexDirectCache = getIndexDirectCache();
+if (indexDirectCache != null) {
+registerMBean("IndexDirectCache", indexDirectCache);
+}
 
 checkpointThread = new Thread("ActiveMQ Journal Checkpoint Worker") {
 public void run() {
@@ -315,6 +347,7 @@ store(new KahaTraceCommand().setMessage("LOADED " + new Date()));
 
 public void close() throws IOException, InterruptedException {
 if( opened.compareAndSet(true, false)) {
+unregisterMBeans();
 synchronized (indexMutex) {
 pageFile.unload();
 metadata = new Metadata();
@@ -342,6 +375,38 @@ tx.store(metadata.page, metadataMarshaller, true);
 close();
 }
 
+/**
+* Registers a view of this store in the broker's ManagementContext, below
+* the store's persistence adapter name.
+*/
+private void registerMBean(String view, Object bean) {
+if (brokerService == null || !brokerService.isUseJmx()) {
+return;
+}
+try {
+ObjectName objectName = new ObjectName(brokerService.getManagementContext().getJmxDomainName() + ":" + "BrokerName="
++ JMXSupport.encodeObjectNamePart(brokerService.getBrokerName()) + "," + "Type=PersistenceAdapter,"
++ "PersistenceAdapterName=" + JMXSupport.encodeObjectNamePart("KahaDB[" + directory + "]") + "," + "View=" + view);
+AnnotatedMBean.registerMBean(brokerService.getManagementContext(), bean, objectName);
+registeredMBeans.add(objectName);
+} catch (Throwable e) {
+LOG.warn("Failed to register MBean: " + view);
+LOG.debug("Failure reason: " + e, e);
+}
+}
+
+private void unregisterMBeans() {
+for (ObjectName objectName : registeredMBeans) {
+try {
+brokerService.getManagementContext().unregisterMBean(objectName);
+} catch (Throwable e) {
+LOG.warn("Failed to unregister MBean: " + objectName);
+LOG.debug("Failure reason: " + e, e);
+}
+}
+registeredMBeans.clear();
+}
+
 /**
 * @return
 */
@@ -372,25 +437,134 @@ synchronized (indexMutex) {
 long start = System.currentTimeMillis();
 
 Location recoveryPosition = getRecoveryPosition();
+recoveryProgress.replaying(recoveryPosition);
 if( recoveryPosition!=null ) {
+RecoveryReader reader = null;
+if (recoveryReadAhead > 0) {
+reader = new RecoveryReader(recoveryPosition, recoveryReadAhead);
+reader.start();
+}
+try {
 int redoCounter = 0;
 while (recoveryPosition != null) {
-JournalCommand message = load(recoveryPosition);
+JournalCommand message;
+if (reader != null) {
+RecoveryReader.Record record = reader.take();
+recoveryPosition = record.location;
+if (recoveryPosition == null) {
+break;
+}
+message = record.command;
+} else {
+message = load(recoveryPosition);
+}
 metadata.lastUpdate = recoveryPosition;
 process(message, recoveryPosition);
 redoCounter++;
+recoveryProgress.replayed(recoveryPosition);
+if (recoveryCheckpointInterval > 0 && redoCounter % recoveryCheckpointInterval == 0) {
+// bounds the work a crash during this recovery has to redo
+pageFile.tx().execute(new Transaction.Closure<IOException>() {
+public void execute(Transaction tx) throws IOException {
+checkpointUpdate(tx, false);
+}
+});
+recoveryProgress.checkpointed();
+}
+if (reader == null) {
 recoveryPosition = journal.getNextLocation(recoveryPosition);
 }
+}
 long end = System.currentTimeMillis();
 LOG.info("Replayed " + redoCounter + " operations from the journal in " + ((end - start) / 1000.0f) + " seconds.");
+} finally {
+if (reader != null) {
+reader.close();
+}
+}
 }
 
+recoveryProgress.recoveringIndex();
 // We may have to undo some index updates.
 pageFile.tx().execute(new Transaction.Closure<IOException>() {
 public void execute(Transaction tx) throws IOException {
 recoverIndex(tx);
 }
 });
+recoveryProgress.done();
+}
+}
+
+/**
+* Reads and decodes journal records ahead of the recovery thread, so the
+* journal reads overlap the index updates. The index updates themselves
+* share the page file's single transaction and are applied in journal order
+* by the recovery thread.
+*/
+private class RecoveryReader extends Thread {
+
+class Record {
+final Location location;
+final JournalCommand command;
+final IOException exception;
+
+Record(Location location, JournalCommand command, IOException exception) {
+this.location = location;
+this.command = command;
+this.exception = exception;
+}
+}
+
+private final BlockingQueue<Record> records;
+private final Location first;
+private volatile boolean closed;
+
+RecoveryReader(Location first, int readAhead) {
+super("ActiveMQ Journal Recovery Reader");
+setDaemon(true);
+this.first = first;
+this.records = new ArrayBlockingQueue<Record>(readAhead);
+}
+
+public void run() {
+Location location = first;
+try {
+while (location != null && !closed) {
+records.put(new Record(location, load(location), null));
+location = journal.getNextLocation(location);
+}
+records.put(new Record(null, null, null));
+} catch (IOException e) {
+try {
+records.put(new Record(null, null, e));
+} catch (InterruptedException ie) {
+// closed while handing over the failure
+}
+} catch (InterruptedException e) {
+// closed before the end of the journal was reached
+}
+}
+
+/**
+* @return the next record, its location is null once the end of the
+*         journal was reached
+*/
+Record take() throws IOException {
+try {
+Record record = records.take();
+if (record.exception != null) {
+throw record.exception;
+}
+return record;
+} catch (InterruptedException e) {
+Thread.currentThread().interrupt();
+throw new InterruptedIOException();
+}
+}
+
+void close() {
+closed = true;
+interrupt();
 }
 }
 
@@ -1392,6 +1566,10 @@ PageFile index = new PageFile(directory, "db");
 index.setEnableWriteThread(isEnableIndexWriteAsync());
 index.setWriteBatchSize(getIndexWriteBatchSize());
 index.setPageCacheSize(indexCacheSize);
+if (indexDirectCacheSize > 0) {
+index.setReadPageCache(new DirectPageCache(indexDirectCacheSize));
+}
+index.setEnableMappedReads(indexMappedReads);
 return index;
 }
 
@@ -1402,6 +1580,11 @@ manager.setMaxFileLength(getJournalMaxFileLength());
 manager.setCheckForCorruptionOnStartup(checkForCorruptJournalFiles);
 manager.setChecksum(checksumJournalFiles || checkForCorruptJournalFiles);
 manager.setWriteBatchSize(getJournalMaxWriteBatchSize());
+manager.setMappedReads(isJournalMappedReads());
+manager.setGroupCommit(isJournalGroupCommit());
+manager.setGroupCommitMaxLatency(getJournalGroupCommitMaxLatency());
+manager.setGroupCommitMaxBatchSize(getJournalGroupCommitMaxBatchSize());
+manager.setRecoveryThreads(getJournalRecoveryThreads());
 return manager;
 }
 
@@ -1515,6 +1698,26 @@ public void setIndexCacheSize(int indexCacheSize) {
 this.indexCacheSize = indexCacheSize;
 }
 
+public int getIndexDirectCacheSize() {
+return indexDirectCacheSize;
+}
+
+/**
+* @param indexDirectCacheSize the number of index pages to cache outside of
+*        the java heap, 0 disables the off heap cache
+*/
+public void setIndexDirectCacheSize(int indexDirectCacheSize) {
+this.indexDirectCacheSize = indexDirectCacheSize;
+}
+
+public boolean isIndexMappedReads() {
+return indexMappedReads;
+}
+
+public void setIndexMappedReads(boolean indexMappedReads) {
+this.indexMappedReads = indexMappedReads;
+}
+
 public boolean isCheckForCorruptJournalFiles() {
 return checkForCorruptJournalFiles;
 }
@@ -1530,4 +1733,96 @@ return checksumJournalFiles;
 public void setChecksumJournalFiles(boolean checksumJournalFiles) {
 this.checksumJournalFiles = checksumJournalFiles;
 }
+
+public boolean isJournalMappedReads() {
+return journalMappedReads;
+}
+
+public void setJournalMappedReads(boolean journalMappedReads) {
+this.journalMappedReads = journalMappedReads;
+}
+
+public boolean isJournalGroupCommit() {
+return journalGroupCommit;
+}
+
+public void setJournalGroupCommit(boolean journalGroupCommit) {
+this.journalGroupCommit = journalGroupCommit;
+}
+
+public long getJournalGroupCommitMaxLatency() {
+return journalGroupCommitMaxLatency;
+}
+
+public void setJournalGroupCommitMaxLatency(long journalGroupCommitMaxLatency) {
+this.journalGroupCommitMaxLatency = journalGroupCommitMaxLatency;
+}
+
+public int getJournalGroupCommitMaxBatchSize() {
+return journalGroupCommitMaxBatchSize;
+}
+
+public void setJournalGroupCommitMaxBatchSize(int journalGroupCommitMaxBatchSize) {
+this.journalGroupCommitMaxBatchSize = journalGroupCommitMaxBatchSize;
+}
+
+public int getJournalRecoveryThreads() {
+return journalRecoveryThreads;
+}
+
+public void setJournalRecoveryThreads(int journalRecoveryThreads) {
+this.journalRecoveryThreads = journalRecoveryThreads;
+}
+
+public int getRecoveryReadAhead() {
+return recoveryReadAhead;
+}
+
+/**
+* The number of journal records read and decoded ahead of the index
+* updates on recovery, 0 reads them on the recovering thread.
+*/
+public void setRecoveryReadAhead(int recoveryReadAhead) {
+this.recoveryReadAhead = recoveryReadAhead;
+}
+
+public long getRecoveryCheckpointInterval() {
+return recoveryCheckpointInterval;
+}
+
+/**
+* Checkpoint the index every this many replayed operations so a crash during
+* recovery does not have to replay the whole journal again, 0 disables.
+*/
+public void setRecoveryCheckpointInterval(long recoveryCheckpointInterval) {
+this.recoveryCheckpointInterval = recoveryCheckpointInterval;
+}
+
+/**
+* @return the statistics of the off heap index page cache, or null when
+*         indexDirectCacheSize is 0 or the index is not loaded
+*/
+public DirectPageCacheMBean getIndexDirectCache() {
+PageFile pf = pageFile;
+if (pf != null && pf.getReadPageCache() instanceof DirectPageCache) {
+return (DirectPageCache) pf.getReadPageCache();
+}
+return null;
+}
+
+public RecoveryProgress getRecoveryProgress() {
+return recoveryProgress;
+}
+
+public BrokerService getBrokerService() {
+return brokerService;
+}
+
+/**
+* The store's statistics are registered in the broker's ManagementContext
+* when it uses JMX.
+*/
+public void setBrokerService(BrokerService brokerService) {
+this.brokerService = brokerService;
+}
 }
\ No newline at end of file
@@ -0,0 +1,173 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements.  See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License.  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.activemq.store.kahadb;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.kahadb.journal.DataFile;
+import org.apache.kahadb.journal.Journal;
+import org.apache.kahadb.journal.Location;
+
+/**
+* Tracks how far a {@link MessageDatabase} got recovering its journal on
+* startup.
+*
+* Replay progress is measured in journal bytes: the data files are laid end to
+* end in id order and a location's position is the length of all earlier files
+* plus its offset. The estimated time remaining extrapolates the byte rate
+* observed since replay started.
+*
+* @version $Revision$
+*/
+public class RecoveryProgress implements RecoveryProgressMBean {
+
+public static final String IDLE = "IDLE";
+public static final String CHECKING = "CHECKING";
+public static final String REPLAYING = "REPLAYING";
+public static final String INDEX_RECOVERY = "INDEX_RECOVERY";
+public static final String DONE = "DONE";
+
+private final Journal journal;
+private final TreeMap<Integer, Long> fileStarts = new TreeMap<Integer, Long>();
+private volatile String phase = IDLE;
+private final long startTime = System.currentTimeMillis();
+private volatile long endTime;
+private volatile long replayStartTime;
+private volatile long startPosition;
+private volatile long endPosition;
+private volatile long position;
+private volatile long operationsReplayed;
+private volatile long checkpoints;
+
+/**
+* Created when the store is opened, the elapsed time counts from here.
+*/
+public RecoveryProgress(Journal journal) {
+this.journal = journal;
+}
+
+void checking() {
+phase = CHECKING;
+}
+
+/**
+* Starts measuring replay from the given location up to the end of the
+* journal.
+*/
+synchronized void replaying(Location from) {
+fileStarts.clear();
+long total = 0;
+for (Map.Entry<Integer, DataFile> entry : new TreeMap<Integer, DataFile>(journal.getFileMap()).entrySet()) {
+fileStarts.put(entry.getKey(), Long.valueOf(total));
+total += entry.getValue().getLength();
+}
+endPosition = total;
+startPosition = from != null ? positionOf(from) : total;
+position = startPosition;
+operationsReplayed = 0;
+replayStartTime = System.currentTimeMillis();
+phase = REPLAYING;
+}
+
+synchronized void replayed(Location location) {
+position = positionOf(location);
+operationsReplayed++;
+}
+
+void checkpointed() {
+checkpoints++;
+}
+
+void recoveringIndex() {
+position = endPosition;
+phase = INDEX_RECOVERY;
+}
+
+void done() {
+endTime = System.currentTimeMillis();
+phase = DONE;
+}
+
+private long positionOf(Location location) {
+Long start = fileStarts.get(Integer.valueOf(location.getDataFileId()));
+if (start == null) {
+return position;
+}
+return start.longValue() + location.getOffset();
+}
+
+public String getPhase() {
+return phase;
+}
+
+public int getFilesChecked() {
+return journal.getRecoveryCheckedFiles();
+}
+
+public int getFileCount() {
+return journal.getRecoveryFileCount();
+}
+
+public long getOperationsReplayed() {
+return operationsReplayed;
+}
+
+public long getCheckpoints() {
+return checkpoints;
+}
+
+public long getBytesReplayed() {
+return Math.max(0, position - startPosition);
+}
+
+public long getBytesToReplay() {
+return Math.max(0, endPosition - startPosition);
+}
+
+public int getPercentComplete() {
+String current = phase;
+if (current == IDLE) {
+return 0;
+}
+if (current == DONE || current == INDEX_RECOVERY) {
+return 100;
+}
+if (current == CHECKING) {
+int count = getFileCount();
+return count == 0 ? 0 : (int) (getFilesChecked() * 100L / count);
+}
+long toReplay = getBytesToReplay();
+return toReplay == 0 ? 100 : (int) Math.min(100, getBytesReplayed() * 100 / toReplay);
+}
+
+public long getEstimatedTimeRemaining() {
+if (phase != REPLAYING) {
+return phase == DONE || phase == INDEX_RECOVERY ? 0 : -1;
+}
+long replayed = getBytesReplayed();
+if (replayed == 0) {
+return -1;
+}
+long elapsed = System.currentTimeMillis() - replayStartTime;
+return (getBytesToReplay() - replayed) * elapsed / replayed;
+}
+
+public long getElapsedTime() {
+return (endTime != 0 ? endTime : System.currentTimeMillis()) - startTime;
+}
+}
\ No newline at end of file
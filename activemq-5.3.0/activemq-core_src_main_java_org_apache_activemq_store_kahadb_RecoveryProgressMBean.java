@@ -0,0 +1,58 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements.  See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License.  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.activemq.store.kahadb;
+
+/**
+* Management interface of the {@link RecoveryProgress} of a KahaDB store.
+*
+* @version $Revision$
+*/
+public interface RecoveryProgressMBean {
+
+/**
+* @return one of IDLE, CHECKING, REPLAYING, INDEX_RECOVERY or DONE
+*/
+String getPhase();
+
+int getFilesChecked();
+
+int getFileCount();
+
+long getOperationsReplayed();
+
+long getCheckpoints();
+
+/**
+* @return the number of journal bytes replayed so far
+*/
+long getBytesReplayed();
+
+/**
+* @return the number of journal bytes that have to be replayed
+*/
+long getBytesToReplay();
+
+int getPercentComplete();
+
+/**
+* @return the estimated milliseconds until replay completes or -1 if not
+*         known yet
+*/
+long getEstimatedTimeRemaining();
+
+long getElapsedTime();
+}
\ No newline at end of file
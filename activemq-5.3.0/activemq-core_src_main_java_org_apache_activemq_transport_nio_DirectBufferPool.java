@@ -0,0 +1,95 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements.  See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License.  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.activemq.transport.nio;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+* A pool of equally sized direct {@link ByteBuffer}s.
+*
+* Direct buffers are expensive to allocate and are only released by the
+* garbage collector, so transports borrow them for the duration of a read or
+* write and hand them back instead of keeping one per connection. At most
+* maxPooled idle buffers are kept.
+*
+* @version $Revision$
+*/
+public class DirectBufferPool {
+
+public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+public static final int DEFAULT_MAX_POOLED = 256;
+
+private static final DirectBufferPool SHARED = new DirectBufferPool(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_POOLED);
+
+private final int bufferSize;
+private final int maxPooled;
+private final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+private final AtomicInteger pooled = new AtomicInteger();
+private final AtomicLong allocated = new AtomicLong();
+
+public DirectBufferPool(int bufferSize, int maxPooled) {
+this.bufferSize = bufferSize;
+this.maxPooled = maxPooled;
+}
+
+public static DirectBufferPool getInstance() {
+return SHARED;
+}
+
+/**
+* @return a cleared buffer
+*/
+public ByteBuffer acquire() {
+ByteBuffer buffer = pool.poll();
+if (buffer == null) {
+allocated.incrementAndGet();
+return ByteBuffer.allocateDirect(bufferSize);
+}
+pooled.decrementAndGet();
+buffer.clear();
+return buffer;
+}
+
+public void release(ByteBuffer buffer) {
+if (buffer.capacity() == bufferSize && pooled.incrementAndGet() <= maxPooled) {
+pool.offer(buffer);
+} else {
+pooled.decrementAndGet();
+}
+}
+
+public int getBufferSize() {
+return bufferSize;
+}
+
+/**
+* @return the number of idle buffers in the pool
+*/
+public int getPooledCount() {
+return pooled.get();
+}
+
+/**
+* @return the number of buffers allocated since the pool was created
+*/
+public long getAllocatedCount() {
+return allocated.get();
+}
+}
\ No newline at end of file
@@ -0,0 +1,309 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements.  See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License.  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.activemq.transport.nio;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Socket;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.SocketFactory;
+
+import org.apache.activemq.openwire.OpenWireFormat;
+import org.apache.activemq.transport.tcp.TcpTransport;
+import org.apache.activemq.util.ByteSequence;
+import org.apache.activemq.util.IOExceptionSupport;
+import org.apache.activemq.util.ServiceStopper;
+import org.apache.activemq.wireformat.WireFormat;
+
+/**
+* An OpenWire transport over a non blocking {@link SocketChannel}.
+*
+* Reads are driven by the {@link SelectorManager}, so a connection does not
+* need a thread of its own. Both reads and writes go through direct buffers
+* borrowed from a {@link DirectBufferPool} for the duration of one read or
+* write pass, idle connections therefore hold no buffers at all.
+*
+* Commands sent concurrently are combined: the thread that gets to write
+* drains every queued frame into pooled buffers and sends them with a single
+* gathering write. A sender only returns once its frame went out, or throws
+* the failure of the write that carried it.
+*
+* Frames are delimited by the OpenWire size prefix, which must not be
+* disabled.
+*
+* @version $Revision$
+*/
+public class NIODirectTransport extends TcpTransport {
+
+private static final int MAX_GATHER_BUFFERS = 16;
+
+private final DirectBufferPool bufferPool = DirectBufferPool.getInstance();
+private final ConcurrentLinkedQueue<PendingFrame> writeQueue = new ConcurrentLinkedQueue<PendingFrame>();
+private final ReentrantLock writeLock = new ReentrantLock();
+private SocketChannel channel;
+private SelectorSelection selection;
+
+// the frame being read, only touched by the selector's channel executor
+private final ByteBuffer frameHeader = ByteBuffer.allocate(4);
+private byte[] frame;
+private int framePosition;
+
+public NIODirectTransport(WireFormat wireFormat, SocketFactory socketFactory, URI remoteLocation, URI localLocation) throws UnknownHostException, IOException {
+super(wireFormat, socketFactory, remoteLocation, localLocation);
+}
+
+public NIODirectTransport(WireFormat wireFormat, Socket socket) throws IOException {
+super(wireFormat, socket);
+}
+
+protected void initializeStreams() throws IOException {
+if (wireFormat instanceof OpenWireFormat && ((OpenWireFormat)wireFormat).isSizePrefixDisabled()) {
+throw new IOException("The NIO direct transport needs the OpenWire size prefix");
+}
+channel = socket.getChannel();
+if (channel == null) {
+throw new IOException("The NIO direct transport needs a socket created from a SocketChannel");
+}
+channel.configureBlocking(false);
+
+// listen for events telling us when the socket is readable.
+selection = SelectorManager.getInstance().register(channel, new SelectorManager.Listener() {
+public void onSelect(SelectorSelection selection) {
+serviceRead();
+}
+
+public void onError(SelectorSelection selection, Throwable error) {
+if (error instanceof IOException) {
+onException((IOException)error);
+} else {
+onException(IOExceptionSupport.create(error));
+}
+}
+});
+}
+
+public void oneway(Object command) throws IOException {
+checkStarted();
+PendingFrame frame = new PendingFrame(wireFormat.marshal(command));
+writeQueue.add(frame);
+writeLock.lock();
+try {
+// the previous holder may have written our frame along with its own
+while (!frame.written) {
+writeQueued();
+}
+} finally {
+writeLock.unlock();
+}
+if (frame.failure != null) {
+throw IOExceptionSupport.create(frame.failure);
+}
+}
+
+/**
+* Writes queued frames, must be called with the writeLock held.
+*/
+private void writeQueued() throws IOException {
+List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+List<PendingFrame> frames = new ArrayList<PendingFrame>();
+try {
+ByteBuffer current = bufferPool.acquire();
+buffers.add(current);
+PendingFrame frame;
+while (buffers.size() < MAX_GATHER_BUFFERS && (frame = writeQueue.poll()) != null) {
+frames.add(frame);
+ByteSequence sequence = frame.data;
+int offset = sequence.getOffset();
+int length = sequence.getLength();
+while (length > 0) {
+if (!current.hasRemaining()) {
+current = bufferPool.acquire();
+buffers.add(current);
+}
+int count = Math.min(length, current.remaining());
+current.put(sequence.getData(), offset, count);
+offset += count;
+length -= count;
+}
+}
+
+ByteBuffer[] data = buffers.toArray(new ByteBuffer[buffers.size()]);
+long remaining = 0;
+for (ByteBuffer buffer : data) {
+buffer.flip();
+remaining += buffer.remaining();
+}
+int idle = 0;
+while (remaining > 0) {
+long written = channel.write(data);
+remaining -= written;
+if (written == 0) {
+// the socket's send buffer is full, back off until it drains
+waitForWritable(++idle);
+} else {
+idle = 0;
+}
+}
+} catch (IOException e) {
+// the senders of the other frames see the failure too
+for (PendingFrame frame : frames) {
+frame.failure = e;
+}
+throw e;
+} catch (RuntimeException e) {
+for (PendingFrame frame : frames) {
+frame.failure = IOExceptionSupport.create(e);
+}
+throw e;
+} finally {
+for (PendingFrame frame : frames) {
+frame.written = true;
+}
+for (ByteBuffer buffer : buffers) {
+bufferPool.release(buffer);
+}
+}
+}
+
+private void waitForWritable(int attempt) throws IOException {
+if (isStopping() || isStopped()) {
+throw new IOException("Transport stopped while writing");
+}
+if (attempt < 10) {
+Thread.yield();
+return;
+}
+try {
+Thread.sleep(1);
+} catch (InterruptedException e) {
+Thread.currentThread().interrupt();
+throw new InterruptedIOException();
+}
+}
+
+private void serviceRead() {
+ByteBuffer buffer = bufferPool.acquire();
+try {
+while (true) {
+buffer.clear();
+int count = channel.read(buffer);
+if (count == -1) {
+throw new EOFException();
+}
+if (count == 0) {
+break;
+}
+buffer.flip();
+while (buffer.hasRemaining()) {
+readFrame(buffer);
+}
+}
+} catch (IOException e) {
+onException(e);
+} catch (Throwable e) {
+onException(IOExceptionSupport.create(e));
+} finally {
+bufferPool.release(buffer);
+}
+}
+
+/**
+* Consumes bytes of the buffer towards the current frame and dispatches
+* the frame once it is complete.
+*/
+private void readFrame(ByteBuffer buffer) throws IOException {
+if (frame == null) {
+while (frameHeader.hasRemaining() && buffer.hasRemaining()) {
+frameHeader.put(buffer.get());
+}
+if (frameHeader.hasRemaining()) {
+return;
+}
+int size = frameHeader.getInt(0);
+if (size < 0 || size > Integer.MAX_VALUE - 4) {
+throw new IOException("Invalid frame size: " + size);
+}
+long maxFrameSize = getMaxFrameSize();
+if (size > maxFrameSize) {
+throw new IOException("Frame size of " + (size / (1024 * 1024)) + " MB larger than max allowed " + (maxFrameSize / (1024 * 1024)) + " MB");
+}
+frame = new byte[size + 4];
+frameHeader.flip();
+frameHeader.get(frame, 0, 4);
+framePosition = 4;
+}
+int count = Math.min(buffer.remaining(), frame.length - framePosition);
+buffer.get(frame, framePosition, count);
+framePosition += count;
+if (framePosition == frame.length) {
+ByteSequence sequence = new ByteSequence(frame);
+frame = null;
+frameHeader.clear();
+doConsume(wireFormat.unmarshal(sequence));
+}
+}
+
+private long getMaxFrameSize() {
+if (wireFormat instanceof OpenWireFormat) {
+return ((OpenWireFormat)wireFormat).getMaxFrameSize();
+}
+return Integer.MAX_VALUE - 4;
+}
+
+protected void doStart() throws Exception {
+connect();
+selection.setInterestOps(SelectionKey.OP_READ);
+selection.enable();
+}
+
+protected void doStop(ServiceStopper stopper) throws Exception {
+if (selection != null) {
+selection.close();
+selection = null;
+}
+writeQueue.clear();
+super.doStop(stopper);
+}
+
+public String toString() {
+return "nio+direct://" + socket.getInetAddress() + ":" + socket.getPort();
+}
+
+/**
+* A marshalled command waiting for the writeLock holder, its fields are
+* read by the sender once it holds the lock itself.
+*/
+private static final class PendingFrame {
+final ByteSequence data;
+boolean written;
+IOException failure;
+
+PendingFrame(ByteSequence data) {
+this.data = data;
+}
+}
+}
\ No newline at end of file
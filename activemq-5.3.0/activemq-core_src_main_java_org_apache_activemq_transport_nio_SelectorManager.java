@@ -18,7 +18,9 @@ package org.apache.activemq.transport.nio;
 
 import java.io.IOException;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
@@ -45,7 +47,9 @@ return rc;
 });
 private Executor channelExecutor = selectorExecutor;
 private LinkedList<SelectorWorker> freeWorkers = new LinkedList<SelectorWorker>();
+private List<SelectorWorker> workers = new ArrayList<SelectorWorker>();
 private int maxChannelsPerWorker = 64;
+private int maxSelectorWorkers;
 
 public static SelectorManager getInstance() {
 return SINGLETON;
@@ -64,9 +68,17 @@ throws IOException {
 SelectorWorker worker = null;
 if (freeWorkers.size() > 0) {
 worker = freeWorkers.getFirst();
+} else if (maxSelectorWorkers > 0 && workers.size() >= maxSelectorWorkers) {
+// all workers are full, share the least loaded one
+for (SelectorWorker candidate : workers) {
+if (worker == null || candidate.useCounter.get() < worker.useCounter.get()) {
+worker = candidate;
+}
+}
 } else {
 worker = new SelectorWorker(this);
 freeWorkers.addFirst(worker);
+workers.add(worker);
 }
 
 SelectorSelection selection = new SelectorSelection(worker, socketChannel, listener);
@@ -79,6 +91,7 @@ freeWorkers.remove(worker);
 
 public synchronized void onWorkerEmptyEvent(SelectorWorker worker) {
 freeWorkers.remove(worker);
+workers.remove(worker);
 }
 
 public synchronized void onWorkerNotFullEvent(SelectorWorker worker) {
@@ -101,6 +114,19 @@ public void setMaxChannelsPerWorker(int maxChannelsPerWorker) {
 this.maxChannelsPerWorker = maxChannelsPerWorker;
 }
 
+public int getMaxSelectorWorkers() {
+return maxSelectorWorkers;
+}
+
+/**
+* Caps the number of selector threads, once every worker holds
+* maxChannelsPerWorker channels new channels are shared out to the least
+* loaded worker. 0, the default, starts a new worker instead.
+*/
+public void setMaxSelectorWorkers(int maxSelectorWorkers) {
+this.maxSelectorWorkers = maxSelectorWorkers;
+}
+
 public Executor getSelectorExecutor() {
 return selectorExecutor;
 }
@@ -0,0 +1,442 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements.  See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License.  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.activemq.transport.stomp;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+* Parses and writes <a href="http://stomp.codehaus.org/">Stomp</a> frames
+* straight from and to bytes.
+*
+* Lines are collected in a buffer that is reused for every line of every frame
+* and parsed in place: command and header names of the protocol map to shared
+* String constants and only header values are decoded into new Strings. Frames
+* are written byte by byte from the frame's Strings, without building the
+* frame text first.
+*
+* A codec instance keeps the state of a partially received frame so it can be
+* fed whatever a non blocking read returned. It must only be used by one
+* reading thread at a time, encoding is stateless.
+*
+* @version $Revision$
+*/
+public class StompCodec {
+
+static final int MAX_COMMAND_LENGTH = 1024;
+static final int MAX_HEADER_LENGTH = 1024 * 10;
+static final int MAX_HEADERS = 1000;
+static final int MAX_DATA_LENGTH = 1024 * 1024 * 100;
+
+private static final byte[] NO_DATA = new byte[] {};
+private static final byte[] END_OF_FRAME = new byte[] {0, '\n'};
+
+private static final String[] KNOWN_NAMES = new String[] {
+Stomp.Commands.CONNECT, Stomp.Commands.SEND, Stomp.Commands.DISCONNECT, Stomp.Commands.SUBSCRIBE,
+Stomp.Commands.UNSUBSCRIBE, Stomp.Commands.BEGIN, Stomp.Commands.COMMIT, Stomp.Commands.ABORT,
+Stomp.Commands.ACK, Stomp.Responses.CONNECTED, Stomp.Responses.ERROR, Stomp.Responses.MESSAGE,
+Stomp.Responses.RECEIPT, "SUBSCRIBE", "UNSUBSCRIBE",
+Stomp.Headers.RECEIPT_REQUESTED, Stomp.Headers.TRANSACTION, Stomp.Headers.CONTENT_LENGTH,
+Stomp.Headers.TRANSFORMATION, Stomp.Headers.TRANSFORMATION_ERROR, Stomp.Headers.Response.RECEIPT_ID,
+Stomp.Headers.Message.MESSAGE_ID, Stomp.Headers.Message.DESTINATION, Stomp.Headers.Message.CORRELATION_ID,
+Stomp.Headers.Message.EXPIRATION_TIME, Stomp.Headers.Message.REPLY_TO, Stomp.Headers.Message.PRORITY,
+Stomp.Headers.Message.REDELIVERED, Stomp.Headers.Message.TIMESTAMP, Stomp.Headers.Message.TYPE,
+Stomp.Headers.Message.SUBSCRIPTION, Stomp.Headers.Subscribe.ACK_MODE, Stomp.Headers.Subscribe.ID,
+Stomp.Headers.Subscribe.SELECTOR, Stomp.Headers.Connect.LOGIN, Stomp.Headers.Connect.PASSCODE,
+Stomp.Headers.Connect.CLIENT_ID, Stomp.Headers.Connect.REQUEST_ID, Stomp.Headers.Error.MESSAGE,
+Stomp.Headers.Connected.SESSION, Stomp.Headers.Connected.RESPONSE_ID, "persistent"
+};
+
+// the known names by length, then by first byte, for lookups from bytes
+private static final String[][] NAMES_BY_LENGTH;
+private static final Map<String, byte[]> NAME_BYTES = new HashMap<String, byte[]>();
+
+static {
+int max = 0;
+for (String name : KNOWN_NAMES) {
+max = Math.max(max, name.length());
+}
+NAMES_BY_LENGTH = new String[max + 1][];
+for (String name : KNOWN_NAMES) {
+if (NAME_BYTES.containsKey(name)) {
+continue;
+}
+String[] names = NAMES_BY_LENGTH[name.length()];
+String[] grown = new String[names == null ? 1 : names.length + 1];
+if (names != null) {
+System.arraycopy(names, 0, grown, 0, names.length);
+}
+grown[grown.length - 1] = name;
+NAMES_BY_LENGTH[name.length()] = grown;
+NAME_BYTES.put(name, ascii(name));
+}
+}
+
+private static final int ACTION = 0;
+private static final int HEADERS = 1;
+private static final int CONTENT = 2;
+private static final int CONTENT_END = 3;
+private static final int UNTIL_NULL = 4;
+
+private byte[] line = new byte[256];
+private int lineLength;
+private char[] chars = new char[256];
+
+private int state = ACTION;
+private String action;
+private HashMap<String, String> headers;
+private byte[] content;
+private int contentPosition;
+private int contentLength;
+
+/**
+* Consumes bytes of the buffer up to the end of the next frame.
+*
+* @return the frame, a {@link StompFrameError} if the frame violates the
+*         protocol or null if the buffer ended before the frame did
+*/
+public Object decode(ByteBuffer buffer) throws IOException {
+try {
+while (buffer.hasRemaining()) {
+switch (state) {
+case ACTION:
+if (readLine(buffer, MAX_COMMAND_LENGTH, "The maximum command length was exceeded")) {
+onActionLine();
+}
+break;
+case HEADERS:
+if (readLine(buffer, MAX_HEADER_LENGTH, "The maximum header length was exceeded")) {
+onHeaderLine();
+}
+break;
+case CONTENT:
+int count = Math.min(buffer.remaining(), content.length - contentPosition);
+buffer.get(content, contentPosition, count);
+contentPosition += count;
+if (contentPosition == content.length) {
+state = CONTENT_END;
+}
+break;
+case CONTENT_END:
+if (buffer.get() != 0) {
+throw new ProtocolException(Stomp.Headers.CONTENT_LENGTH + " bytes were read and " + "there was no trailing null byte", true);
+}
+return finish();
+default:
+byte b = buffer.get();
+if (b == 0) {
+return finish();
+}
+appendContent(b);
+}
+}
+return null;
+} catch (ProtocolException e) {
+reset();
+return new StompFrameError(e);
+}
+}
+
+/**
+* Reads the next frame, blocking until it is complete.
+*/
+public Object decode(DataInput in) throws IOException {
+try {
+while (true) {
+switch (state) {
+case ACTION:
+readLine(in, MAX_COMMAND_LENGTH, "The maximum command length was exceeded");
+onActionLine();
+break;
+case HEADERS:
+readLine(in, MAX_HEADER_LENGTH, "The maximum header length was exceeded");
+onHeaderLine();
+break;
+case CONTENT:
+in.readFully(content);
+state = CONTENT_END;
+break;
+case CONTENT_END:
+if (in.readByte() != 0) {
+throw new ProtocolException(Stomp.Headers.CONTENT_LENGTH + " bytes were read and " + "there was no trailing null byte", true);
+}
+return finish();
+default:
+byte b = in.readByte();
+if (b == 0) {
+return finish();
+}
+appendContent(b);
+}
+}
+} catch (ProtocolException e) {
+reset();
+return new StompFrameError(e);
+}
+}
+
+private boolean readLine(ByteBuffer buffer, int maxLength, String errorMessage) throws ProtocolException {
+while (buffer.hasRemaining()) {
+byte b = buffer.get();
+if (b == '\n') {
+return true;
+}
+appendLine(b, maxLength, errorMessage);
+}
+return false;
+}
+
+private void readLine(DataInput in, int maxLength, String errorMessage) throws IOException {
+byte b;
+while ((b = in.readByte()) != '\n') {
+appendLine(b, maxLength, errorMessage);
+}
+}
+
+private void appendLine(byte b, int maxLength, String errorMessage) throws ProtocolException {
+if (lineLength > maxLength) {
+throw new ProtocolException(errorMessage, true);
+}
+if (lineLength == line.length) {
+byte[] grown = new byte[Math.min(line.length * 2, maxLength + 2)];
+System.arraycopy(line, 0, grown, 0, lineLength);
+line = grown;
+}
+line[lineLength++] = b;
+}
+
+private void onActionLine() throws IOException {
+int start = skipWhitespace(0, lineLength);
+int end = trimWhitespace(start, lineLength);
+// skip white space to next real action line
+if (start < end) {
+action = decodeName(start, end);
+headers = new HashMap<String, String>(16);
+state = HEADERS;
+}
+lineLength = 0;
+}
+
+private void onHeaderLine() throws IOException {
+int start = skipWhitespace(0, lineLength);
+int end = trimWhitespace(start, lineLength);
+lineLength = 0;
+if (start == end) {
+onHeadersEnd();
+return;
+}
+if (headers.size() > MAX_HEADERS) {
+throw new ProtocolException("The maximum number of headers was exceeded", true);
+}
+int separator = -1;
+for (int i = start; i < end; i++) {
+if (line[i] == ':') {
+separator = i;
+break;
+}
+}
+if (separator < 0) {
+throw new ProtocolException("Unable to parser header line [" + decode(start, end) + "]", true);
+}
+String name = decodeName(start, trimWhitespace(start, separator));
+int valueStart = skipWhitespace(separator + 1, end);
+headers.put(name, decode(valueStart, end));
+}
+
+private void onHeadersEnd() throws ProtocolException {
+String length = headers.get(Stomp.Headers.CONTENT_LENGTH);
+if (length != null) {
+// Bless the client, he's telling us how much data to read in.
+try {
+contentLength = Integer.parseInt(length.trim());
+} catch (NumberFormatException e) {
+throw new ProtocolException("Specified content-length is not a valid integer", true);
+}
+if (contentLength > MAX_DATA_LENGTH) {
+throw new ProtocolException("The maximum data length was exceeded", true);
+}
+content = contentLength == 0 ? NO_DATA : new byte[contentLength];
+contentPosition = 0;
+state = contentLength == 0 ? CONTENT_END : CONTENT;
+} else {
+// We don't know how much to read.. data ends when we hit a 0
+content = null;
+contentPosition = 0;
+state = UNTIL_NULL;
+}
+}
+
+private void appendContent(byte b) throws ProtocolException {
+if (content == null) {
+content = new byte[256];
+} else if (contentPosition == content.length) {
+if (content.length > MAX_DATA_LENGTH) {
+throw new ProtocolException("The maximum data length was exceeded", true);
+}
+byte[] grown = new byte[content.length * 2];
+System.arraycopy(content, 0, grown, 0, contentPosition);
+content = grown;
+}
+content[contentPosition++] = b;
+}
+
+private StompFrame finish() {
+byte[] data;
+if (content == null) {
+data = NO_DATA;
+} else if (contentPosition == content.length) {
+data = content;
+} else {
+data = new byte[contentPosition];
+System.arraycopy(content, 0, data, 0, contentPosition);
+}
+StompFrame frame = new StompFrame(action, headers, data);
+reset();
+return frame;
+}
+
+private void reset() {
+state = ACTION;
+action = null;
+headers = null;
+content = null;
+contentPosition = 0;
+lineLength = 0;
+}
+
+private int skipWhitespace(int start, int end) {
+while (start < end && (line[start] & 0xFF) <= ' ') {
+start++;
+}
+return start;
+}
+
+private int trimWhitespace(int start, int end) {
+while (end > start && (line[end - 1] & 0xFF) <= ' ') {
+end--;
+}
+return end;
+}
+
+/**
+* @return the shared constant for a command or header name of the
+*         protocol, a new String otherwise
+*/
+private String decodeName(int start, int end) throws IOException {
+int length = end - start;
+if (length < NAMES_BY_LENGTH.length) {
+String[] names = NAMES_BY_LENGTH[length];
+if (names != null) {
+for (String name : names) {
+if (matches(name, start)) {
+return name;
+}
+}
+}
+}
+return decode(start, end);
+}
+
+private boolean matches(String name, int start) {
+for (int i = 0; i < name.length(); i++) {
+if (line[start + i] != name.charAt(i)) {
+return false;
+}
+}
+return true;
+}
+
+private String decode(int start, int end) throws IOException {
+int length = end - start;
+if (chars.length < length) {
+chars = new char[Math.max(length, chars.length * 2)];
+}
+for (int i = 0; i < length; i++) {
+byte b = line[start + i];
+if (b < 0) {
+// not plain ASCII
+return new String(line, start, length, "UTF-8");
+}
+chars[i] = (char) b;
+}
+return new String(chars, 0, length);
+}
+
+/**
+* Writes a frame without building its text first.
+*/
+public static void encode(StompFrame frame, DataOutput out) throws IOException {
+writeName(out, frame.getAction());
+out.write('\n');
+for (Iterator iter = frame.getHeaders().entrySet().iterator(); iter.hasNext();) {
+Map.Entry entry = (Map.Entry)iter.next();
+writeName(out, String.valueOf(entry.getKey()));
+out.write(':');
+writeString(out, String.valueOf(entry.getValue()));
+out.write('\n');
+}
+// Add a newline to seperate the headers from the content.
+out.write('\n');
+out.write(frame.getContent());
+out.write(END_OF_FRAME);
+}
+
+private static void writeName(DataOutput out, String name) throws IOException {
+byte[] bytes = NAME_BYTES.get(name);
+if (bytes != null) {
+out.write(bytes);
+} else {
+writeString(out, name);
+}
+}
+
+private static void writeString(DataOutput out, String value) throws IOException {
+int length = value.length();
+for (int i = 0; i < length; i++) {
+char c = value.charAt(i);
+if (c < 0x80) {
+out.write(c);
+} else if (c < 0x800) {
+out.write(0xC0 | (c >> 6));
+out.write(0x80 | (c & 0x3F));
+} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+int codePoint = Character.toCodePoint(c, value.charAt(++i));
+out.write(0xF0 | (codePoint >> 18));
+out.write(0x80 | ((codePoint >> 12) & 0x3F));
+out.write(0x80 | ((codePoint >> 6) & 0x3F));
+out.write(0x80 | (codePoint & 0x3F));
+} else {
+out.write(0xE0 | (c >> 12));
+out.write(0x80 | ((c >> 6) & 0x3F));
+out.write(0x80 | (c & 0x3F));
+}
+}
+}
+
+private static byte[] ascii(String name) {
+byte[] bytes = new byte[name.length()];
+for (int i = 0; i < bytes.length; i++) {
+bytes[i] = (byte) name.charAt(i);
+}
+return bytes;
+}
+}
\ No newline at end of file
@@ -16,8 +16,8 @@
 */
 package org.apache.activemq.transport.stomp;
 
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.Socket;
 import java.net.URI;
@@ -30,7 +30,7 @@ import javax.net.SocketFactory;
 
 import org.apache.activemq.command.Command;
 import org.apache.activemq.transport.Transport;
-import org.apache.activemq.transport.nio.NIOBufferedInputStream;
+import org.apache.activemq.transport.nio.DirectBufferPool;
 import org.apache.activemq.transport.nio.NIOOutputStream;
 import org.apache.activemq.transport.nio.SelectorManager;
 import org.apache.activemq.transport.nio.SelectorSelection;
@@ -48,6 +48,7 @@ public class StompNIOTransport extends TcpTransport {
 
 private SocketChannel channel;
 private SelectorSelection selection;
+private StompCodec codec;
 
 public StompNIOTransport(WireFormat wireFormat, SocketFactory socketFactory, URI remoteLocation, URI localLocation) throws UnknownHostException, IOException {
 super(wireFormat, socketFactory, remoteLocation, localLocation);
@@ -58,6 +59,7 @@ super(wireFormat, socket);
 }
 
 protected void initializeStreams() throws IOException {
+codec = wireFormat instanceof StompWireFormat ? ((StompWireFormat)wireFormat).getCodec() : new StompCodec();
 channel = socket.getChannel();
 channel.configureBlocking(false);
 
@@ -80,17 +82,33 @@ this.dataOut = new DataOutputStream(new NIOOutputStream(channel, 8 * 1024));
 }
 
 private void serviceRead() {
+// the codec keeps a partially received frame until the next read
+ByteBuffer buffer = DirectBufferPool.getInstance().acquire();
 try {
-DataInputStream in = new DataInputStream(new NIOBufferedInputStream(channel, 8 * 1024));
 while (true) {
-Object command = wireFormat.unmarshal(in);
+buffer.clear();
+int count = channel.read(buffer);
+if (count == -1) {
+throw new EOFException();
+}
+if (count == 0) {
+break;
+}
+buffer.flip();
+while (buffer.hasRemaining()) {
+Object command = codec.decode(buffer);
+if (command != null) {
 doConsume((Command)command);
 }
+}
+}
 
 } catch (IOException e) {
 onException(e);
 } catch (Throwable e) {
 onException(IOExceptionSupport.create(e));
+} finally {
+DirectBufferPool.getInstance().release(buffer);
 }
 }
 
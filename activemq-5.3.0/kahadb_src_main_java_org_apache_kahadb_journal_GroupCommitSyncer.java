@@ -0,0 +1,313 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements.  See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License.  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.kahadb.journal;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+* Turns concurrent synchronous journal writes into a single fsync.
+*
+* Writers hand their record to the appender without asking it to sync and
+* then wait here. The syncer thread collects waiting writers until either the
+* batch holds maxBatchSize bytes or the oldest writer has waited maxLatency
+* milliseconds, waits for the appender to have written all of them and then
+* forces every data file touched by the batch once.
+*
+* @version $Revision$
+*/
+class GroupCommitSyncer implements Runnable {
+
+private static final Log LOG = LogFactory.getLog(GroupCommitSyncer.class);
+
+// how often a batch waiting for the appender checks whether it has failed
+private static final long APPENDER_CHECK_INTERVAL = 100;
+
+private final Journal journal;
+private final long maxLatency;
+private final int maxBatchSize;
+private final Object mutex = new Object();
+private final Map<Integer, RandomAccessFile> syncFiles = new HashMap<Integer, RandomAccessFile>();
+
+private List<Request> pending = new ArrayList<Request>();
+private int pendingBytes;
+private long firstPendingTime;
+private boolean shutdown;
+private Thread thread;
+
+private final AtomicLong batchCount = new AtomicLong();
+private final AtomicLong recordCount = new AtomicLong();
+private final AtomicLong byteCount = new AtomicLong();
+private final AtomicLong totalLatency = new AtomicLong();
+private final AtomicLong maxObservedLatency = new AtomicLong();
+private volatile int lastBatchRecords;
+private volatile int lastBatchBytes;
+private volatile long lastBatchLatency;
+
+GroupCommitSyncer(Journal journal, long maxLatency, int maxBatchSize) {
+this.journal = journal;
+this.maxLatency = maxLatency;
+this.maxBatchSize = maxBatchSize;
+}
+
+/**
+* A synchronous write waiting for its batch to reach the disk. It is used
+* as the appender's completion callback to learn when the record has been
+* written to the data file. The appender does not run the callback for a
+* failed write, the syncer then releases the request through fail().
+*/
+static final class Request implements Runnable {
+final int size;
+final CountDownLatch written = new CountDownLatch(1);
+final CountDownLatch synced = new CountDownLatch(1);
+Location location;
+IOException exception;
+volatile IOException writeFailure;
+
+Request(int size) {
+this.size = size;
+}
+
+public void run() {
+written.countDown();
+}
+
+void fail(IOException e) {
+writeFailure = e;
+written.countDown();
+}
+
+/**
+* Waits until the appender has written the record or has failed.
+*/
+void awaitWritten(Journal journal) throws IOException, InterruptedException {
+while (!written.await(APPENDER_CHECK_INTERVAL, TimeUnit.MILLISECONDS)) {
+IOException failure = journal.getAppenderFailure();
+if (failure != null) {
+fail(failure);
+}
+}
+if (writeFailure != null) {
+throw writeFailure;
+}
+}
+}
+
+synchronized void start() {
+if (thread == null) {
+shutdown = false;
+thread = new Thread(this, "KahaDB Journal Group Commit: " + journal);
+thread.setDaemon(true);
+thread.start();
+}
+}
+
+void close() {
+Thread t;
+synchronized (this) {
+t = thread;
+thread = null;
+}
+synchronized (mutex) {
+shutdown = true;
+mutex.notifyAll();
+}
+if (t != null) {
+try {
+t.join();
+} catch (InterruptedException e) {
+Thread.currentThread().interrupt();
+}
+}
+closeSyncFiles();
+}
+
+/**
+* Blocks until the record written for the request has been forced to
+* disk.
+*/
+void commit(Request request, Location location) throws IOException {
+request.location = location;
+synchronized (mutex) {
+if (shutdown) {
+throw new IOException("Journal group commit is closed");
+}
+if (pending.isEmpty()) {
+firstPendingTime = System.currentTimeMillis();
+}
+pending.add(request);
+pendingBytes += request.size;
+if (pendingBytes >= maxBatchSize) {
+mutex.notifyAll();
+}
+}
+try {
+request.synced.await();
+} catch (InterruptedException e) {
+Thread.currentThread().interrupt();
+throw new InterruptedIOException();
+}
+if (request.exception != null) {
+throw request.exception;
+}
+}
+
+public void run() {
+while (true) {
+List<Request> batch;
+int batchBytes;
+long batchStart;
+synchronized (mutex) {
+try {
+while (!shutdown) {
+if (!pending.isEmpty()) {
+long wait = firstPendingTime + maxLatency - System.currentTimeMillis();
+if (wait <= 0 || pendingBytes >= maxBatchSize) {
+break;
+}
+mutex.wait(wait);
+} else {
+mutex.wait();
+}
+}
+} catch (InterruptedException e) {
+shutdown = true;
+}
+if (shutdown && pending.isEmpty()) {
+return;
+}
+batch = pending;
+batchBytes = pendingBytes;
+batchStart = firstPendingTime;
+pending = new ArrayList<Request>();
+pendingBytes = 0;
+}
+sync(batch, batchBytes, batchStart);
+}
+}
+
+private void sync(List<Request> batch, int batchBytes, long batchStart) {
+IOException failure = null;
+try {
+List<Integer> dataFileIds = new ArrayList<Integer>();
+for (Request request : batch) {
+request.awaitWritten(journal);
+Integer id = Integer.valueOf(request.location.getDataFileId());
+if (!dataFileIds.contains(id)) {
+dataFileIds.add(id);
+}
+}
+for (Integer id : dataFileIds) {
+getSyncFile(id).getChannel().force(false);
+}
+} catch (IOException e) {
+LOG.error("Journal group commit failed: " + e, e);
+failure = e;
+} catch (InterruptedException e) {
+failure = new InterruptedIOException();
+}
+
+long latency = System.currentTimeMillis() - batchStart;
+batchCount.incrementAndGet();
+recordCount.addAndGet(batch.size());
+byteCount.addAndGet(batchBytes);
+totalLatency.addAndGet(latency);
+if (latency > maxObservedLatency.get()) {
+maxObservedLatency.set(latency);
+}
+lastBatchRecords = batch.size();
+lastBatchBytes = batchBytes;
+lastBatchLatency = latency;
+
+for (Request request : batch) {
+request.exception = failure;
+request.synced.countDown();
+}
+}
+
+private RandomAccessFile getSyncFile(Integer dataFileId) throws IOException {
+RandomAccessFile file = syncFiles.get(dataFileId);
+if (file == null) {
+// older files no longer receive writes
+for (Iterator<Map.Entry<Integer, RandomAccessFile>> i = syncFiles.entrySet().iterator(); i.hasNext();) {
+Map.Entry<Integer, RandomAccessFile> entry = i.next();
+if (entry.getKey().intValue() < dataFileId.intValue()) {
+entry.getValue().close();
+i.remove();
+}
+}
+file = new RandomAccessFile(journal.getFile(dataFileId.intValue()), "rw");
+syncFiles.put(dataFileId, file);
+}
+return file;
+}
+
+private void closeSyncFiles() {
+for (RandomAccessFile file : syncFiles.values()) {
+try {
+file.close();
+} catch (IOException e) {
+LOG.debug("Failed to close " + file + ": " + e, e);
+}
+}
+syncFiles.clear();
+}
+
+long getBatchCount() {
+return batchCount.get();
+}
+
+long getRecordCount() {
+return recordCount.get();
+}
+
+long getByteCount() {
+return byteCount.get();
+}
+
+long getTotalLatency() {
+return totalLatency.get();
+}
+
+long getMaxLatency() {
+return maxObservedLatency.get();
+}
+
+int getLastBatchRecords() {
+return lastBatchRecords;
+}
+
+int getLastBatchBytes() {
+return lastBatchBytes;
+}
+
+long getLastBatchLatency() {
+return lastBatchLatency;
+}
+}
\ No newline at end of file
@@ -21,7 +21,14 @@ import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.zip.Adler32;
@@ -74,6 +81,8 @@ public static final int DEFAULT_MAX_FILE_LENGTH = 1024 * 1024 * 32;
 public static final int DEFAULT_CLEANUP_INTERVAL = 1000 * 30;
 public static final int PREFERED_DIFF = 1024 * 512;
 public static final int DEFAULT_MAX_WRITE_BATCH_SIZE = 1024 * 1024 * 4;
+public static final long DEFAULT_GROUP_COMMIT_MAX_LATENCY = 2;
+public static final int DEFAULT_GROUP_COMMIT_MAX_BATCH_SIZE = 1024 * 256;
 
 private static final Log LOG = LogFactory.getLog(Journal.class);
 
@@ -92,7 +101,7 @@ protected int writeBatchSize = DEFAULT_MAX_WRITE_BATCH_SIZE;
 protected DataFileAppender appender;
 protected DataFileAccessorPool accessorPool;
 
-protected Map<Integer, DataFile> fileMap = new HashMap<Integer, DataFile>();
+protected Map<Integer, DataFile> fileMap = new ConcurrentHashMap<Integer, DataFile>();
 protected Map<File, DataFile> fileByFileMap = new LinkedHashMap<File, DataFile>();
 protected LinkedNodeList<DataFile> dataFiles = new LinkedNodeList<DataFile>();
 
@@ -103,6 +112,15 @@ protected boolean archiveDataLogs;
 private ReplicationTarget replicationTarget;
 protected boolean checksum;
 protected boolean checkForCorruptionOnStartup;
+protected boolean mappedReads;
+protected boolean groupCommit;
+protected long groupCommitMaxLatency = DEFAULT_GROUP_COMMIT_MAX_LATENCY;
+protected int groupCommitMaxBatchSize = DEFAULT_GROUP_COMMIT_MAX_BATCH_SIZE;
+protected MappedDataFileReader mappedReader;
+protected GroupCommitSyncer groupCommitSyncer;
+protected int recoveryThreads = Runtime.getRuntime().availableProcessors();
+protected final AtomicInteger recoveryCheckedFiles = new AtomicInteger();
+protected volatile int recoveryFileCount;
 
 
 
@@ -117,6 +135,9 @@ started = true;
 preferedFileLength = Math.max(PREFERED_DIFF, getMaxFileLength() - PREFERED_DIFF);
 
 appender = new DataFileAppender(this);
+if (mappedReads) {
+mappedReader = new MappedDataFileReader(fileMap);
+}
 
 File[] files = directory.listFiles(new FilenameFilter() {
 public boolean accept(File dir, String n) {
@@ -146,10 +167,10 @@ Collections.sort(l);
 for (DataFile df : l) {
 dataFiles.addLast(df);
 fileByFileMap.put(df.getFile(), df);
-
-if( isCheckForCorruptionOnStartup() ) {
-lastAppendLocation.set(recoveryCheck(df));
 }
+
+if( isCheckForCorruptionOnStartup() && !l.isEmpty() ) {
+lastAppendLocation.set(recoveryCheck(l));
 }
 }
 
@@ -166,6 +187,10 @@ cleanup();
 }
 };
 Scheduler.executePeriodically(cleanupTask, DEFAULT_CLEANUP_INTERVAL);
+if (groupCommit) {
+groupCommitSyncer = new GroupCommitSyncer(this, groupCommitMaxLatency, groupCommitMaxBatchSize);
+groupCommitSyncer.start();
+}
 long end = System.currentTimeMillis();
 LOG.trace("Startup took: "+(end-start)+" ms");
 }
@@ -178,6 +203,69 @@ throw new RuntimeException(e);
 }
 }
 
+/**
+* Checks the given data files for corruption. The files are independent of
+* each other so they are scanned by up to recoveryThreads threads at once.
+*
+* @return the end of the last data file
+*/
+protected Location recoveryCheck(List<DataFile> files) throws IOException {
+recoveryFileCount = files.size();
+recoveryCheckedFiles.set(0);
+int threads = Math.max(1, Math.min(recoveryThreads, files.size()));
+if (threads == 1) {
+Location location = null;
+for (DataFile df : files) {
+location = recoveryCheck(df);
+recoveryCheckedFiles.incrementAndGet();
+}
+return location;
+}
+
+long start = System.currentTimeMillis();
+ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+private final AtomicInteger count = new AtomicInteger();
+public Thread newThread(Runnable runnable) {
+Thread thread = new Thread(runnable, "KahaDB Journal Recovery Check " + count.incrementAndGet() + ": " + directory);
+thread.setDaemon(true);
+return thread;
+}
+});
+try {
+List<Future<Location>> results = new ArrayList<Future<Location>>(files.size());
+for (final DataFile df : files) {
+results.add(executor.submit(new Callable<Location>() {
+public Location call() throws Exception {
+try {
+return recoveryCheck(df);
+} finally {
+recoveryCheckedFiles.incrementAndGet();
+}
+}
+}));
+}
+Location location = null;
+for (Future<Location> result : results) {
+location = result.get();
+}
+LOG.info("Checked " + files.size() + " journal files with " + threads + " threads in " + (System.currentTimeMillis() - start) + " ms");
+return location;
+} catch (InterruptedException e) {
+Thread.currentThread().interrupt();
+throw new IOException("Interrupted while checking the journal files");
+} catch (ExecutionException e) {
+Throwable cause = e.getCause();
+if (cause instanceof IOException) {
+throw (IOException) cause;
+}
+IOException ioe = new IOException("Journal recovery check failed: " + cause);
+ioe.initCause(cause);
+throw ioe;
+} finally {
+executor.shutdownNow();
+}
+}
+
 protected Location recoveryCheck(DataFile dataFile) throws IOException {
 Location location = new Location();
 location.setDataFileId(dataFile.getDataFileId());
@@ -346,6 +434,14 @@ if (!started) {
 return;
 }
 Scheduler.cancel(cleanupTask);
+if (groupCommitSyncer != null) {
+groupCommitSyncer.close();
+groupCommitSyncer = null;
+}
+if (mappedReader != null) {
+mappedReader.close();
+mappedReader = null;
+}
 accessorPool.close();
 appender.close();
 fileMap.clear();
@@ -401,6 +497,11 @@ private synchronized void forceRemoveDataFile(DataFile dataFile) throws IOExcept
 accessorPool.disposeDataFileAccessors(dataFile);
 fileByFileMap.remove(dataFile.getFile());
 fileMap.remove(dataFile.getDataFileId());
+if (mappedReader != null) {
+// after the file left the fileMap so a concurrent mapping of it is
+// either removed here or drops itself
+mappedReader.dispose(dataFile);
+}
 totalLength.addAndGet(-dataFile.getLength());
 dataFile.unlink();
 if (archiveDataLogs) {
@@ -565,7 +666,29 @@ return cur;
 }
 }
 
-public synchronized ByteSequence read(Location location) throws IOException, IllegalStateException {
+public ByteSequence read(Location location) throws IOException, IllegalStateException {
+MappedDataFileReader reader = mappedReader;
+if (reader != null && isSealed(location)) {
+// sealed files are read without the journal lock so readers do not
+// stall behind synced writes
+DataFile dataFile = fileMap.get(Integer.valueOf(location.getDataFileId()));
+if (dataFile != null) {
+ByteSequence rc = reader.readRecord(dataFile, location);
+if (rc != null) {
+return rc;
+}
+}
+}
+return readFromAccessor(location);
+}
+
+private boolean isSealed(Location location) {
+Location last = lastAppendLocation.get();
+return last != null && location.getDataFileId() < last.getDataFileId()
+&& !inflightWrites.containsKey(new WriteKey(location));
+}
+
+private synchronized ByteSequence readFromAccessor(Location location) throws IOException, IllegalStateException {
 DataFile dataFile = getDataFile(location);
 DataFileAccessor reader = accessorPool.openDataFileAccessor(dataFile);
 ByteSequence rc = null;
@@ -577,10 +700,32 @@ accessorPool.closeDataFileAccessor(reader);
 return rc;
 }
 
-public synchronized Location write(ByteSequence data, boolean sync) throws IOException, IllegalStateException {
-Location loc = appender.storeItem(data, Location.USER_TYPE, sync);
+public Location write(ByteSequence data, boolean sync) throws IOException, IllegalStateException {
+GroupCommitSyncer syncer = groupCommitSyncer;
+if (sync && syncer != null) {
+// append without holding the journal lock through the fsync, the
+// syncer forces all records that arrive within the batch window at once
+GroupCommitSyncer.Request request = new GroupCommitSyncer.Request(data.getLength());
+Location loc;
+synchronized (this) {
+loc = appender.storeItem(data, Location.USER_TYPE, request);
+}
+syncer.commit(request, loc);
 return loc;
 }
+synchronized (this) {
+return appender.storeItem(data, Location.USER_TYPE, sync);
+}
+}
+
+/**
+* @return the error that stopped the appender's write thread, or null
+*/
+IOException getAppenderFailure() {
+synchronized (appender.enqueueMutex) {
+return appender.firstAsyncException;
+}
+}
 
 public synchronized Location write(ByteSequence data, Runnable onComplete) throws IOException, IllegalStateException {
 Location loc = appender.storeItem(data, Location.USER_TYPE, onComplete);
@@ -716,4 +861,130 @@ this.writeBatchSize = writeBatchSize;
 public int getWriteBatchSize() {
 return writeBatchSize;
 }
+
+public int getRecoveryThreads() {
+return recoveryThreads;
+}
+
+/**
+* The number of threads used to check the data files for corruption on
+* startup. Must be set before start().
+*/
+public void setRecoveryThreads(int recoveryThreads) {
+this.recoveryThreads = recoveryThreads;
+}
+
+/**
+* @return the number of data files checked for corruption so far by the
+*         last start()
+*/
+public int getRecoveryCheckedFiles() {
+return recoveryCheckedFiles.get();
+}
+
+/**
+* @return the number of data files the last start() had to check for
+*         corruption
+*/
+public int getRecoveryFileCount() {
+return recoveryFileCount;
+}
+
+public boolean isMappedReads() {
+return mappedReads;
+}
+
+/**
+* Read records of data files that are no longer written to through memory
+* mapped views, without taking the journal lock. Must be set before start().
+*/
+public void setMappedReads(boolean mappedReads) {
+this.mappedReads = mappedReads;
+}
+
+public boolean isGroupCommit() {
+return groupCommit;
+}
+
+/**
+* Batch concurrent synchronous writes into a single fsync. Must be set
+* before start().
+*/
+public void setGroupCommit(boolean groupCommit) {
+this.groupCommit = groupCommit;
+}
+
+public long getGroupCommitMaxLatency() {
+return groupCommitMaxLatency;
+}
+
+/**
+* @param groupCommitMaxLatency the longest time in milliseconds a synchronous
+*                write waits for other writes to join its batch
+*/
+public void setGroupCommitMaxLatency(long groupCommitMaxLatency) {
+this.groupCommitMaxLatency = groupCommitMaxLatency;
+}
+
+public int getGroupCommitMaxBatchSize() {
+return groupCommitMaxBatchSize;
+}
+
+/**
+* @param groupCommitMaxBatchSize the number of bytes after which a batch is
+*                synced without waiting for the latency to expire
+*/
+public void setGroupCommitMaxBatchSize(int groupCommitMaxBatchSize) {
+this.groupCommitMaxBatchSize = groupCommitMaxBatchSize;
+}
+
+/**
+* @return the number of group commit batches synced so far
+*/
+public long getGroupCommitBatchCount() {
+GroupCommitSyncer syncer = groupCommitSyncer;
+return syncer != null ? syncer.getBatchCount() : 0;
+}
+
+public long getGroupCommitRecordCount() {
+GroupCommitSyncer syncer = groupCommitSyncer;
+return syncer != null ? syncer.getRecordCount() : 0;
+}
+
+public long getGroupCommitByteCount() {
+GroupCommitSyncer syncer = groupCommitSyncer;
+return syncer != null ? syncer.getByteCount() : 0;
+}
+
+/**
+* @return the average time in milliseconds between the first write joining
+*         a batch and the batch being synced
+*/
+public long getGroupCommitAverageLatency() {
+GroupCommitSyncer syncer = groupCommitSyncer;
+if (syncer == null || syncer.getBatchCount() == 0) {
+return 0;
+}
+return syncer.getTotalLatency() / syncer.getBatchCount();
+}
+
+public long getGroupCommitMaxObservedLatency() {
+GroupCommitSyncer syncer = groupCommitSyncer;
+return syncer != null ? syncer.getMaxLatency() : 0;
+}
+
+public int getGroupCommitLastBatchRecords() {
+GroupCommitSyncer syncer = groupCommitSyncer;
+return syncer != null ? syncer.getLastBatchRecords() : 0;
+}
+
+public int getGroupCommitLastBatchBytes() {
+GroupCommitSyncer syncer = groupCommitSyncer;
+return syncer != null ? syncer.getLastBatchBytes() : 0;
+}
+
+public long getGroupCommitLastBatchLatency() {
+GroupCommitSyncer syncer = groupCommitSyncer;
+return syncer != null ? syncer.getLastBatchLatency() : 0;
+}
 }
\ No newline at end of file
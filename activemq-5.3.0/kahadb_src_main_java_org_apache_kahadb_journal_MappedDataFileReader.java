@@ -0,0 +1,120 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements.  See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License.  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.kahadb.journal;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.kahadb.util.ByteSequence;
+
+/**
+* Reads records of sealed data files through read only memory mapped views.
+*
+* A data file is sealed once the journal has rolled over to a later file, from
+* then on its content only changes by being removed, so readers can share one
+* mapping per file and never need the journal's monitor.
+*
+* @version $Revision$
+*/
+class MappedDataFileReader {
+
+private final Map<Integer, DataFile> fileMap;
+private final ConcurrentHashMap<Integer, MappedByteBuffer> mappings = new ConcurrentHashMap<Integer, MappedByteBuffer>();
+
+/**
+* @param fileMap the journal's data files, a file has to be removed from it
+*        before it is disposed here
+*/
+MappedDataFileReader(Map<Integer, DataFile> fileMap) {
+this.fileMap = fileMap;
+}
+
+/**
+* @return the record or null if the location is not covered by the
+*         mapping, in which case the caller has to use a regular accessor
+*/
+ByteSequence readRecord(DataFile dataFile, Location location) throws IOException {
+if (!location.isValid()) {
+throw new IOException("Invalid location: " + location);
+}
+MappedByteBuffer mapping = getMapping(dataFile);
+ByteBuffer view = mapping.duplicate();
+int offset = location.getOffset();
+try {
+int size = location.getSize();
+if (size == Location.NOT_SET) {
+if (offset + Journal.RECORD_HEAD_SPACE > view.limit()) {
+return null;
+}
+size = view.getInt(offset);
+location.setSize(size);
+location.setType(view.get(offset + 4));
+}
+int length = size - Journal.RECORD_HEAD_SPACE;
+if (length < 0 || offset + size > view.limit()) {
+return null;
+}
+byte[] data = new byte[length];
+view.position(offset + Journal.RECORD_HEAD_SPACE);
+view.get(data);
+return new ByteSequence(data, 0, data.length);
+} catch (RuntimeException e) {
+throw new IOException("Invalid location: " + location + ", : " + e);
+}
+}
+
+private MappedByteBuffer getMapping(DataFile dataFile) throws IOException {
+Integer key = dataFile.getDataFileId();
+MappedByteBuffer mapping = mappings.get(key);
+if (mapping == null) {
+RandomAccessFile file = new RandomAccessFile(dataFile.getFile(), "r");
+try {
+FileChannel channel = file.getChannel();
+mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(dataFile.getLength(), channel.size()));
+} finally {
+// the mapping stays valid after the channel is closed
+file.close();
+}
+MappedByteBuffer existing = mappings.putIfAbsent(key, mapping);
+if (existing != null) {
+mapping = existing;
+} else if (fileMap.get(key) != dataFile) {
+// the file was removed while we mapped it and dispose may have
+// run before our put, this read can still use the mapping
+mappings.remove(key, mapping);
+}
+}
+return mapping;
+}
+
+/**
+* Forgets the mapping of a removed data file. The mapped region is
+* released by the garbage collector.
+*/
+void dispose(DataFile dataFile) {
+mappings.remove(dataFile.getDataFileId());
+}
+
+void close() {
+mappings.clear();
+}
+}
\ No newline at end of file
@@ -0,0 +1,203 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements.  See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License.  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.kahadb.page;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+* A {@link PageCache} that keeps page contents in direct ByteBuffer slabs so
+* a large cache does not end up in the old generation of the java heap.
+*
+* Every page occupies a fixed slot in the slabs. Slots are recycled with the
+* CLOCK algorithm: a hit sets the reference bit of its slot and the clock hand
+* evicts the first slot it finds without the bit set, clearing bits as it
+* passes them. Only the page id to slot index lives on the heap.
+*
+* @version $Revision$
+*/
+public class DirectPageCache implements PageCache, DirectPageCacheMBean {
+
+private static final int MAX_SLAB_SIZE = 1024 * 1024 * 1024;
+
+private final int capacity;
+private final Map<Long, Integer> slots;
+private final AtomicLong hits = new AtomicLong();
+private final AtomicLong misses = new AtomicLong();
+private final AtomicLong evictions = new AtomicLong();
+
+private int pageSize;
+private int slotsPerSlab;
+private ByteBuffer[] slabs;
+private long[] slotPageIds;
+private boolean[] referenced;
+private int used;
+private int hand;
+
+/**
+* @param capacity the number of pages the cache will hold
+*/
+public DirectPageCache(int capacity) {
+if (capacity <= 0) {
+throw new IllegalArgumentException("capacity must be > 0: " + capacity);
+}
+this.capacity = capacity;
+this.slots = new HashMap<Long, Integer>(capacity * 4 / 3 + 1);
+}
+
+public synchronized void start(int pageSize) {
+this.pageSize = pageSize;
+this.slotsPerSlab = Math.max(1, Math.min(capacity, MAX_SLAB_SIZE / pageSize));
+int slabCount = (capacity + slotsPerSlab - 1) / slotsPerSlab;
+slabs = new ByteBuffer[slabCount];
+for (int i = 0; i < slabCount; i++) {
+int slabSlots = Math.min(slotsPerSlab, capacity - i * slotsPerSlab);
+slabs[i] = ByteBuffer.allocateDirect(slabSlots * pageSize);
+}
+slotPageIds = new long[capacity];
+Arrays.fill(slotPageIds, -1);
+referenced = new boolean[capacity];
+slots.clear();
+used = 0;
+hand = 0;
+}
+
+public synchronized void stop() {
+// the direct buffers are released once they are garbage collected
+slabs = null;
+slotPageIds = null;
+referenced = null;
+slots.clear();
+used = 0;
+}
+
+public synchronized boolean read(long pageId, byte[] data) {
+Integer slot = slabs == null ? null : slots.get(pageId);
+if (slot == null) {
+misses.incrementAndGet();
+return false;
+}
+int s = slot.intValue();
+referenced[s] = true;
+ByteBuffer view = slotView(s);
+view.get(data, 0, Math.min(data.length, pageSize));
+hits.incrementAndGet();
+return true;
+}
+
+public synchronized void put(long pageId, byte[] data) {
+if (slabs == null) {
+return;
+}
+Integer slot = slots.get(pageId);
+int s;
+if (slot != null) {
+s = slot.intValue();
+} else {
+s = allocateSlot();
+slotPageIds[s] = pageId;
+slots.put(pageId, s);
+}
+referenced[s] = true;
+ByteBuffer view = slotView(s);
+view.put(data, 0, Math.min(data.length, pageSize));
+}
+
+public synchronized void remove(long pageId) {
+if (slabs == null) {
+return;
+}
+Integer slot = slots.remove(pageId);
+if (slot != null) {
+// leave the slot for the clock hand to pick up first
+slotPageIds[slot.intValue()] = -1;
+referenced[slot.intValue()] = false;
+}
+}
+
+private int allocateSlot() {
+if (used < capacity) {
+return used++;
+}
+while (true) {
+int s = hand;
+hand = (hand + 1) % capacity;
+if (slotPageIds[s] == -1) {
+return s;
+}
+if (referenced[s]) {
+referenced[s] = false;
+} else {
+slots.remove(slotPageIds[s]);
+slotPageIds[s] = -1;
+evictions.incrementAndGet();
+return s;
+}
+}
+}
+
+private ByteBuffer slotView(int slot) {
+ByteBuffer view = slabs[slot / slotsPerSlab].duplicate();
+int offset = (slot % slotsPerSlab) * pageSize;
+view.limit(offset + pageSize);
+view.position(offset);
+return view;
+}
+
+public long getHitCount() {
+return hits.get();
+}
+
+public long getMissCount() {
+return misses.get();
+}
+
+public long getEvictionCount() {
+return evictions.get();
+}
+
+public int getHitRatio() {
+long h = hits.get();
+long total = h + misses.get();
+return total == 0 ? 0 : (int) (h * 100 / total);
+}
+
+public synchronized int getSize() {
+return slots.size();
+}
+
+public int getCapacity() {
+return capacity;
+}
+
+public long getDirectMemorySize() {
+return (long) capacity * pageSize;
+}
+
+public void resetStatistics() {
+hits.set(0);
+misses.set(0);
+evictions.set(0);
+}
+
+public String toString() {
+return "DirectPageCache[capacity=" + capacity + ", size=" + getSize() + ", hitRatio=" + getHitRatio() + "%]";
+}
+}
\ No newline at end of file
@@ -0,0 +1,47 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements.  See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License.  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.kahadb.page;
+
+/**
+* Management interface of the {@link DirectPageCache}.
+*
+* @version $Revision$
+*/
+public interface DirectPageCacheMBean {
+
+long getHitCount();
+
+long getMissCount();
+
+long getEvictionCount();
+
+/**
+* @return hits as a percentage of all lookups
+*/
+int getHitRatio();
+
+int getSize();
+
+int getCapacity();
+
+/**
+* @return the number of bytes reserved outside of the java heap
+*/
+long getDirectMemorySize();
+
+void resetStatistics();
+}
\ No newline at end of file
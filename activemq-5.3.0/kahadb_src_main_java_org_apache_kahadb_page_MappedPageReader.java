@@ -0,0 +1,77 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements.  See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License.  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.kahadb.page;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+* Reads pages that missed every cache through read only memory mapped
+* segments of the page file, leaving cold pages to the operating system's
+* page cache instead of copying them through a RandomAccessFile.
+*
+* Segments are only mapped once the file has grown past their end, reads of
+* pages in the last, partial segment return false so the caller falls back
+* to a regular read.
+*
+* @version $Revision$
+*/
+class MappedPageReader {
+
+static final int SEGMENT_SIZE = 1024 * 1024 * 64;
+
+private final RandomAccessFile file;
+private final ConcurrentHashMap<Long, MappedByteBuffer> segments = new ConcurrentHashMap<Long, MappedByteBuffer>();
+
+MappedPageReader(RandomAccessFile file) {
+this.file = file;
+}
+
+boolean read(long offset, byte[] data) throws IOException {
+long segment = offset / SEGMENT_SIZE;
+int position = (int) (offset % SEGMENT_SIZE);
+if (position + data.length > SEGMENT_SIZE) {
+// the page straddles two segments
+return false;
+}
+MappedByteBuffer mapping = segments.get(segment);
+if (mapping == null) {
+FileChannel channel = file.getChannel();
+long start = segment * SEGMENT_SIZE;
+if (channel.size() < start + SEGMENT_SIZE) {
+return false;
+}
+mapping = channel.map(FileChannel.MapMode.READ_ONLY, start, SEGMENT_SIZE);
+MappedByteBuffer existing = segments.putIfAbsent(segment, mapping);
+if (existing != null) {
+mapping = existing;
+}
+}
+ByteBuffer view = mapping.duplicate();
+view.position(position);
+view.get(data);
+return true;
+}
+
+void close() {
+segments.clear();
+}
+}
\ No newline at end of file
@@ -0,0 +1,69 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements.  See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License.  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.kahadb.page;
+
+/**
+* A cache of raw page contents that sits between the PageFile and the disk.
+*
+* Unlike the object cache of the PageFile, implementations only see the
+* serialized bytes of a page so they are free to keep them outside of the
+* java heap.
+*
+* @version $Revision$
+*/
+public interface PageCache {
+
+/**
+* Called once when the PageFile is loaded.
+*/
+void start(int pageSize);
+
+/**
+* Releases all cached pages.
+*/
+void stop();
+
+/**
+* Copies the cached content of the page into data.
+*
+* @return false if the page is not cached
+*/
+boolean read(long pageId, byte[] data);
+
+/**
+* Stores the current content of a page, possibly evicting another one.
+*/
+void put(long pageId, byte[] data);
+
+void remove(long pageId);
+
+long getHitCount();
+
+long getMissCount();
+
+long getEvictionCount();
+
+/**
+* @return the number of pages currently cached
+*/
+int getSize();
+
+/**
+* @return the maximum number of pages that will be cached
+*/
+int getCapacity();
+}
\ No newline at end of file
@@ -110,6 +110,15 @@ private LRUCache<Long, Page> pageCache;
 private boolean enablePageCaching=true;
 // How many pages will we keep in the cache?
 private int pageCacheSize = 100;
+// Optional cache of raw page contents consulted before reading from disk.
+private PageCache readPageCache;
+// Read pages missing from the caches through memory mapped segments?
+private boolean enableMappedReads=false;
+private MappedPageReader mappedReader;
+// Bumped, under the writes lock, on every page update and whenever a write
+// batch lands on disk so that reads racing with a write do not store stale
+// page contents in the readPageCache.
+private long pageUpdateCounter;
 
 // Should first log the page write to the recovery buffer? Avoids partial
 // page write failures..
@@ -320,6 +329,13 @@ metaData.setLastTxId(0);
 storeMetaData();
 }
 
+if( readPageCache!=null ) {
+readPageCache.start(pageSize);
+}
+if( enableMappedReads ) {
+mappedReader = new MappedPageReader(readFile);
+}
+
 if( enableRecoveryFile ) {
 recoveryFile = new RandomAccessFile(getRecoveryFile(), "rw");
 }
@@ -402,6 +418,13 @@ freeList.clear();
 if( pageCache!=null ) {
 pageCache=null;
 }
+if( readPageCache!=null ) {
+readPageCache.stop();
+}
+if( mappedReader!=null ) {
+mappedReader.close();
+mappedReader=null;
+}
 synchronized(writes) {
 writes.clear();
 }
@@ -664,6 +687,38 @@ assertNotLoaded();
 this.pageCacheSize = pageCacheSize;
 }
 
+/**
+* @return the cache of raw page contents consulted before reading from disk, may be null.
+*/
+public PageCache getReadPageCache() {
+return readPageCache;
+}
+
+/**
+* @param readPageCache a cache of raw page contents, for example a {@link DirectPageCache}
+*        that keeps pages outside of the java heap.
+*/
+public void setReadPageCache(PageCache readPageCache) {
+assertNotLoaded();
+this.readPageCache = readPageCache;
+}
+
+/**
+* @return true if pages missing from the caches are read through memory mapped segments
+*/
+public boolean isEnableMappedReads() {
+return enableMappedReads;
+}
+
+/**
+* @param enableMappedReads allows cold pages to be read through memory mapped segments
+*        of the page file instead of the RandomAccessFile.
+*/
+public void setEnableMappedReads(boolean enableMappedReads) {
+assertNotLoaded();
+this.enableMappedReads = enableMappedReads;
+}
+
 public boolean isEnabledWriteThread() {
 return enabledWriteThread;
 }
@@ -783,15 +838,35 @@ return nextTxid.incrementAndGet();
 }
 
 void readPage(long pageId, byte[] data) throws IOException {
-readFile.seek(toOffset(pageId));
+if( readPageCache!=null && readPageCache.read(pageId, data) ) {
+return;
+}
+long updateCounter;
+synchronized( writes ) {
+updateCounter = pageUpdateCounter;
+}
+long offset = toOffset(pageId);
+if( mappedReader==null || !mappedReader.read(offset, data) ) {
+readFile.seek(offset);
 readFile.readFully(data);
 }
+if( readPageCache!=null ) {
+synchronized( writes ) {
+if( updateCounter == pageUpdateCounter ) {
+readPageCache.put(pageId, data);
+}
+}
+}
+}
 
 public void freePage(long pageId) {
 freeList.add(pageId);
 if( enablePageCaching ) {
 pageCache.remove(pageId);
 }
+if( readPageCache!=null ) {
+readPageCache.remove(pageId);
+}
 }
 
 @SuppressWarnings("unchecked")
@@ -825,6 +900,7 @@ throw new InterruptedIOException();
 }
 }
 
+pageUpdateCounter++;
 for (Map.Entry<Long, PageWrite> entry : updates) {
 Long key = entry.getKey();
 PageWrite value = entry.getValue();
@@ -1006,6 +1082,14 @@ writeFile.getFD().sync();
 }
 
 synchronized( writes ) {
+if( readPageCache!=null ) {
+// a read that started before this batch hit the disk may hold the old
+// bytes, the bump keeps it from caching them over the new ones
+pageUpdateCounter++;
+for (PageWrite w : batch) {
+readPageCache.put(w.page.getPageId(), w.diskBound);
+}
+}
 for (PageWrite w : batch) {
 // If there are no more pending writes, then remove it from the write cache.
 if( w.done() ) {
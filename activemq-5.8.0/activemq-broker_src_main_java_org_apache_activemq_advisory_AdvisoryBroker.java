@@ -17,6 +17,7 @@
 package org.apache.activemq.advisory;
 
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
@@ -68,12 +69,45 @@ protected final ConcurrentHashMap<BrokerInfo, ActiveMQMessage> networkBridges =
 protected final ProducerId advisoryProducerId = new ProducerId();
 
 private final LongSequenceGenerator messageIdGenerator = new LongSequenceGenerator();
+private final AdvisoryCoalescer coalescer = new AdvisoryCoalescer();
+// serializes the publish passes so batches go out in the order they were drained
+private final Object flushMutex = new Object();
+// keeps the state maps and the pending advisories in step for the replay
+private final Object stateMutex = new Object();
+private final Runnable flushTask = new Runnable() {
+public void run() {
+flushAdvisories();
+}
+};
+private long advisoryCoalescingWindow;
+private int maxPendingAdvisories = 10000;
+private boolean flushScheduled;
 
 public AdvisoryBroker(Broker next) {
 super(next);
 advisoryProducerId.setConnectionId(ID_GENERATOR.generateId());
 }
 
+@Override
+public void start() throws Exception {
+super.start();
+if (advisoryCoalescingWindow > 0) {
+getBrokerService().getScheduler().executePeriodically(flushTask, advisoryCoalescingWindow);
+flushScheduled = true;
+}
+}
+
+@Override
+public void stop() throws Exception {
+if (flushScheduled) {
+getBrokerService().getScheduler().cancel(flushTask);
+flushScheduled = false;
+}
+flushAdvisories();
+coalescer.clear();
+super.stop();
+}
+
 @Override
 public void addConnection(ConnectionContext context, ConnectionInfo info) throws Exception {
 super.addConnection(context, info);
@@ -82,20 +116,43 @@ ActiveMQTopic topic = AdvisorySupport.getConnectionAdvisoryTopic();
 // do not distribute passwords in advisory messages. usernames okay
 ConnectionInfo copy = info.copy();
 copy.setPassword("");
+if (!coalesce(AdvisoryCoalescer.CONNECTION, copy.getConnectionId(), topic, null, copy, connections, copy)) {
 fireAdvisory(context, topic, copy);
 connections.put(copy.getConnectionId(), copy);
 }
+}
 
 @Override
 public Subscription addConsumer(ConnectionContext context, ConsumerInfo info) throws Exception {
+if (advisoryCoalescingWindow > 0 && AdvisorySupport.isAdvisoryTopic(info.getDestination())) {
+// no flush can run until the replay is done, the advisories still
+// pending after it reach the new consumer through the next flush and
+// the replay skips the state they describe
+synchronized (flushMutex) {
+flushAdvisories();
+Subscription answer = super.addConsumer(context, info);
+synchronized (stateMutex) {
+replayAdvisories(context, info);
+}
+return answer;
+}
+}
 Subscription answer = super.addConsumer(context, info);
 
 // Don't advise advisory topics.
 if (!AdvisorySupport.isAdvisoryTopic(info.getDestination())) {
 ActiveMQTopic topic = AdvisorySupport.getConsumerAdvisoryTopic(info.getDestination());
+if (!coalesce(AdvisoryCoalescer.CONSUMER, info.getConsumerId(), topic, info.getDestination(), info, consumers, info)) {
 consumers.put(info.getConsumerId(), info);
 fireConsumerAdvisory(context, info.getDestination(), topic, info);
+}
 } else {
+replayAdvisories(context, info);
+}
+return answer;
+}
+
+private void replayAdvisories(ConnectionContext context, ConsumerInfo info) throws Exception {
 // We need to replay all the previously collected state objects
 // for this newly added consumer.
 if (AdvisorySupport.isConnectionAdvisoryTopic(info.getDestination())) {
@@ -103,6 +160,9 @@ if (AdvisorySupport.isConnectionAdvisoryTopic(info.getDestination())) {
 for (Iterator<ConnectionInfo> iter = connections.values().iterator(); iter.hasNext();) {
 ConnectionInfo value = iter.next();
 ActiveMQTopic topic = AdvisorySupport.getConnectionAdvisoryTopic();
+if (coalescer.isPending(topic, value.getConnectionId())) {
+continue;
+}
 fireAdvisory(context, topic, value, info.getConsumerId());
 }
 }
@@ -132,6 +192,9 @@ if (AdvisorySupport.isProducerAdvisoryTopic(info.getDestination())) {
 for (Iterator<ProducerInfo> iter = producers.values().iterator(); iter.hasNext();) {
 ProducerInfo value = iter.next();
 ActiveMQTopic topic = AdvisorySupport.getProducerAdvisoryTopic(value.getDestination());
+if (coalescer.isPending(topic, value.getProducerId())) {
+continue;
+}
 fireProducerAdvisory(context, value.getDestination(),topic, value, info.getConsumerId());
 }
 }
@@ -141,6 +204,9 @@ if (AdvisorySupport.isConsumerAdvisoryTopic(info.getDestination())) {
 for (Iterator<ConsumerInfo> iter = consumers.values().iterator(); iter.hasNext();) {
 ConsumerInfo value = iter.next();
 ActiveMQTopic topic = AdvisorySupport.getConsumerAdvisoryTopic(value.getDestination());
+if (coalescer.isPending(topic, value.getConsumerId())) {
+continue;
+}
 fireConsumerAdvisory(context,value.getDestination(), topic, value, info.getConsumerId());
 }
 }
@@ -154,8 +220,6 @@ fireAdvisory(context, topic, key, null, networkBridges.get(key));
 }
 }
 }
-return answer;
-}
 
 @Override
 public void addProducer(ConnectionContext context, ProducerInfo info) throws Exception {
@@ -164,10 +228,12 @@ super.addProducer(context, info);
 // Don't advise advisory topics.
 if (info.getDestination() != null && !AdvisorySupport.isAdvisoryTopic(info.getDestination())) {
 ActiveMQTopic topic = AdvisorySupport.getProducerAdvisoryTopic(info.getDestination());
+if (!coalesce(AdvisoryCoalescer.PRODUCER, info.getProducerId(), topic, info.getDestination(), info, producers, info)) {
 fireProducerAdvisory(context, info.getDestination(), topic, info);
 producers.put(info.getProducerId(), info);
 }
 }
+}
 
 @Override
 public Destination addDestination(ConnectionContext context, ActiveMQDestination destination,boolean create) throws Exception {
@@ -244,9 +310,11 @@ public void removeConnection(ConnectionContext context, ConnectionInfo info, Thr
 super.removeConnection(context, info, error);
 
 ActiveMQTopic topic = AdvisorySupport.getConnectionAdvisoryTopic();
+if (!coalesce(AdvisoryCoalescer.CONNECTION, info.getConnectionId(), topic, null, info.createRemoveCommand(), connections, null)) {
 fireAdvisory(context, topic, info.createRemoveCommand());
 connections.remove(info.getConnectionId());
 }
+}
 
 @Override
 public void removeConsumer(ConnectionContext context, ConsumerInfo info) throws Exception {
@@ -256,10 +324,14 @@ super.removeConsumer(context, info);
 ActiveMQDestination dest = info.getDestination();
 if (!AdvisorySupport.isAdvisoryTopic(dest)) {
 ActiveMQTopic topic = AdvisorySupport.getConsumerAdvisoryTopic(dest);
-consumers.remove(info.getConsumerId());
 if (!dest.isTemporary() || destinations.containsKey(dest)) {
+if (!coalesce(AdvisoryCoalescer.CONSUMER, info.getConsumerId(), topic, dest, info.createRemoveCommand(), consumers, null)) {
+consumers.remove(info.getConsumerId());
 fireConsumerAdvisory(context,dest, topic, info.createRemoveCommand());
 }
+} else {
+consumers.remove(info.getConsumerId());
+}
 }
 }
 
@@ -271,10 +343,14 @@ super.removeProducer(context, info);
 ActiveMQDestination dest = info.getDestination();
 if (info.getDestination() != null && !AdvisorySupport.isAdvisoryTopic(dest)) {
 ActiveMQTopic topic = AdvisorySupport.getProducerAdvisoryTopic(dest);
-producers.remove(info.getProducerId());
 if (!dest.isTemporary() || destinations.contains(dest)) {
+if (!coalesce(AdvisoryCoalescer.PRODUCER, info.getProducerId(), topic, dest, info.createRemoveCommand(), producers, null)) {
+producers.remove(info.getProducerId());
 fireProducerAdvisory(context, dest,topic, info.createRemoveCommand());
 }
+} else {
+producers.remove(info.getProducerId());
+}
 }
 }
 
@@ -487,14 +563,7 @@ fireConsumerAdvisory(context, consumerDestination,topic, command, null);
 
 protected void fireConsumerAdvisory(ConnectionContext context, ActiveMQDestination consumerDestination,ActiveMQTopic topic, Command command, ConsumerId targetConsumerId) throws Exception {
 ActiveMQMessage advisoryMessage = new ActiveMQMessage();
-int count = 0;
-Set<Destination>set = getDestinations(consumerDestination);
-if (set != null) {
-for (Destination dest:set) {
-count += dest.getDestinationStatistics().getConsumers().getCount();
-}
-}
-advisoryMessage.setIntProperty(AdvisorySupport.MSG_PROPERTY_CONSUMER_COUNT, count);
+advisoryMessage.setIntProperty(AdvisorySupport.MSG_PROPERTY_CONSUMER_COUNT, getConsumerCount(consumerDestination));
 
 fireAdvisory(context, topic, command, targetConsumerId, advisoryMessage);
 }
@@ -505,6 +574,22 @@ fireProducerAdvisory(context,producerDestination, topic, command, null);
 
 protected void fireProducerAdvisory(ConnectionContext context, ActiveMQDestination producerDestination,ActiveMQTopic topic, Command command, ConsumerId targetConsumerId) throws Exception {
 ActiveMQMessage advisoryMessage = new ActiveMQMessage();
+advisoryMessage.setIntProperty("producerCount", getProducerCount(producerDestination));
+fireAdvisory(context, topic, command, targetConsumerId, advisoryMessage);
+}
+
+private int getConsumerCount(ActiveMQDestination consumerDestination) {
+int count = 0;
+Set<Destination>set = getDestinations(consumerDestination);
+if (set != null) {
+for (Destination dest:set) {
+count += dest.getDestinationStatistics().getConsumers().getCount();
+}
+}
+return count;
+}
+
+private int getProducerCount(ActiveMQDestination producerDestination) {
 int count = 0;
 if (producerDestination != null) {
 Set<Destination> set = getDestinations(producerDestination);
@@ -514,8 +599,75 @@ count += dest.getDestinationStatistics().getProducers().getCount();
 }
 }
 }
+return count;
+}
+
+/**
+* Queues the advisory with the coalescer when a coalescing window is set,
+* together with the matching update of the state map so an advisory
+* consumer replay sees both or neither. A null value removes the id.
+*
+* @return false if the advisory has to be fired and the state map updated
+*         by the caller
+*/
+private <K, V> boolean coalesce(int kind, K id, ActiveMQTopic topic, ActiveMQDestination destination, Command command, Map<K, V> state, V value) {
+if (advisoryCoalescingWindow <= 0) {
+return false;
+}
+AdvisoryCoalescer.PendingAdvisory advisory = new AdvisoryCoalescer.PendingAdvisory(kind, topic, destination, command);
+int backlog;
+synchronized (stateMutex) {
+if (value != null) {
+state.put(id, value);
+backlog = coalescer.add(id, advisory);
+} else {
+state.remove(id);
+backlog = coalescer.remove(id, advisory);
+}
+}
+if (backlog >= maxPendingAdvisories) {
+// bound the backlog, the caller pays for the flush like it would
+// have paid for firing its own advisory
+flushAdvisories();
+}
+return true;
+}
+
+/**
+* Publishes the advisories collected since the last flush. The consumer
+* and producer counts are looked up once per advisory topic and describe
+* the state at flush time.
+*/
+public void flushAdvisories() {
+synchronized (flushMutex) {
+Map<ActiveMQTopic, List<AdvisoryCoalescer.PendingAdvisory>> pending = coalescer.drain();
+if (pending == null) {
+return;
+}
+ConnectionContext context = getBrokerService().getAdminConnectionContext();
+for (Map.Entry<ActiveMQTopic, List<AdvisoryCoalescer.PendingAdvisory>> entry : pending.entrySet()) {
+int count = -1;
+for (AdvisoryCoalescer.PendingAdvisory advisory : entry.getValue()) {
+try {
+ActiveMQMessage advisoryMessage = new ActiveMQMessage();
+if (advisory.kind == AdvisoryCoalescer.CONSUMER) {
+if (count < 0) {
+count = getConsumerCount(advisory.destination);
+}
+advisoryMessage.setIntProperty(AdvisorySupport.MSG_PROPERTY_CONSUMER_COUNT, count);
+} else if (advisory.kind == AdvisoryCoalescer.PRODUCER) {
+if (count < 0) {
+count = getProducerCount(advisory.destination);
+}
 advisoryMessage.setIntProperty("producerCount", count);
-fireAdvisory(context, topic, command, targetConsumerId, advisoryMessage);
+}
+fireAdvisory(context, entry.getKey(), advisory.command, null, advisoryMessage);
+} catch (Exception e) {
+handleFireFailure("coalesced", e);
+}
+}
+}
+}
 }
 
 public void fireAdvisory(ConnectionContext context, ActiveMQTopic topic, Command command, ConsumerId targetConsumerId, ActiveMQMessage advisoryMessage) throws Exception {
@@ -569,4 +721,60 @@ return producers;
 public Map<ActiveMQDestination, DestinationInfo> getAdvisoryDestinations() {
 return destinations;
 }
+
+public long getAdvisoryCoalescingWindow() {
+return advisoryCoalescingWindow;
+}
+
+/**
+* Sets the window in milliseconds over which consumer, producer and
+* connection advisories are collected and coalesced before they are
+* published. The default of 0 publishes every advisory right away.
+* Must be set before the broker is started.
+*/
+public void setAdvisoryCoalescingWindow(long advisoryCoalescingWindow) {
+this.advisoryCoalescingWindow = advisoryCoalescingWindow;
+}
+
+public int getMaxPendingAdvisories() {
+return maxPendingAdvisories;
+}
+
+/**
+* Sets the number of pending advisories after which the broker publishes
+* them without waiting for the window to expire.
+*/
+public void setMaxPendingAdvisories(int maxPendingAdvisories) {
+this.maxPendingAdvisories = maxPendingAdvisories;
+}
+
+/**
+* @return the number of advisories waiting for the next flush
+*/
+public int getPendingAdvisoryCount() {
+return coalescer.getPendingCount();
+}
+
+/**
+* @return the number of advisories handed to the coalescer
+*/
+public long getEnqueuedAdvisoryCount() {
+return coalescer.getEnqueuedCount();
+}
+
+/**
+* @return the number of advisories dropped because a remove cancelled a
+*         pending add
+*/
+public long getCoalescedAdvisoryCount() {
+return coalescer.getCancelledCount();
+}
+
+public long getAdvisoryFlushCount() {
+return coalescer.getFlushCount();
+}
+
+public int getLastAdvisoryFlushSize() {
+return coalescer.getLastFlushSize();
+}
 }
\ No newline at end of file
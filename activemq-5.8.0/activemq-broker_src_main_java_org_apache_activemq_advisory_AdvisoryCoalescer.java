@@ -0,0 +1,203 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements.  See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License.  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.activemq.advisory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.activemq.command.ActiveMQDestination;
+import org.apache.activemq.command.ActiveMQTopic;
+import org.apache.activemq.command.Command;
+
+/**
+* Collects consumer, producer and connection advisories for a short window
+* so that a burst of adds and removes, such as a reconnect storm, turns into
+* one publish pass per window.
+*
+* Pending advisories are grouped by advisory topic and keyed by the id of
+* the consumer, producer or connection they describe. A remove that finds
+* the matching add still pending cancels both, advisory consumers never
+* learned about the object so there is nothing to retract.
+*/
+class AdvisoryCoalescer {
+
+static final int CONNECTION = 0;
+static final int CONSUMER = 1;
+static final int PRODUCER = 2;
+
+private final Object mutex = new Object();
+private Map<ActiveMQTopic, LinkedHashMap<Object, PendingAdvisory>> pending = new LinkedHashMap<ActiveMQTopic, LinkedHashMap<Object, PendingAdvisory>>();
+private int pendingCount;
+
+private final AtomicLong enqueuedCount = new AtomicLong();
+private final AtomicLong cancelledCount = new AtomicLong();
+private final AtomicLong flushCount = new AtomicLong();
+private volatile int lastFlushSize;
+
+/**
+* An advisory waiting for the next flush.
+*/
+static final class PendingAdvisory {
+final int kind;
+final ActiveMQTopic topic;
+final ActiveMQDestination destination;
+final Command command;
+
+PendingAdvisory(int kind, ActiveMQTopic topic, ActiveMQDestination destination, Command command) {
+this.kind = kind;
+this.topic = topic;
+this.destination = destination;
+this.command = command;
+}
+}
+
+/**
+* Keys a pending remove apart from a pending add of the same id, so a
+* remove followed by a new add of a reused id keeps both in order.
+*/
+private static final class RemoveKey {
+private final Object id;
+
+RemoveKey(Object id) {
+this.id = id;
+}
+
+@Override
+public int hashCode() {
+return id.hashCode() ^ 0x5f3759df;
+}
+
+@Override
+public boolean equals(Object o) {
+return o instanceof RemoveKey && id.equals(((RemoveKey) o).id);
+}
+}
+
+/**
+* @return the number of pending advisories after the add
+*/
+int add(Object id, PendingAdvisory advisory) {
+enqueuedCount.incrementAndGet();
+synchronized (mutex) {
+LinkedHashMap<Object, PendingAdvisory> advisories = pending.get(advisory.topic);
+if (advisories == null) {
+advisories = new LinkedHashMap<Object, PendingAdvisory>();
+pending.put(advisory.topic, advisories);
+}
+if (advisories.put(id, advisory) == null) {
+pendingCount++;
+}
+return pendingCount;
+}
+}
+
+/**
+* @return the number of pending advisories after the remove
+*/
+int remove(Object id, PendingAdvisory advisory) {
+enqueuedCount.incrementAndGet();
+synchronized (mutex) {
+LinkedHashMap<Object, PendingAdvisory> advisories = pending.get(advisory.topic);
+if (advisories != null && advisories.remove(id) != null) {
+pendingCount--;
+if (advisories.isEmpty()) {
+pending.remove(advisory.topic);
+}
+cancelledCount.addAndGet(2);
+return pendingCount;
+}
+if (advisories == null) {
+advisories = new LinkedHashMap<Object, PendingAdvisory>();
+pending.put(advisory.topic, advisories);
+}
+if (advisories.put(new RemoveKey(id), advisory) == null) {
+pendingCount++;
+}
+return pendingCount;
+}
+}
+
+/**
+* Hands out everything collected so far, grouped by advisory topic in the
+* order the topics first saw an advisory.
+*/
+Map<ActiveMQTopic, List<PendingAdvisory>> drain() {
+Map<ActiveMQTopic, LinkedHashMap<Object, PendingAdvisory>> drained;
+int drainedCount;
+synchronized (mutex) {
+if (pendingCount == 0) {
+return null;
+}
+drained = pending;
+drainedCount = pendingCount;
+pending = new LinkedHashMap<ActiveMQTopic, LinkedHashMap<Object, PendingAdvisory>>();
+pendingCount = 0;
+}
+Map<ActiveMQTopic, List<PendingAdvisory>> answer = new LinkedHashMap<ActiveMQTopic, List<PendingAdvisory>>(drained.size());
+for (Map.Entry<ActiveMQTopic, LinkedHashMap<Object, PendingAdvisory>> entry : drained.entrySet()) {
+answer.put(entry.getKey(), new ArrayList<PendingAdvisory>(entry.getValue().values()));
+}
+flushCount.incrementAndGet();
+lastFlushSize = drainedCount;
+return answer;
+}
+
+/**
+* Forgets all pending advisories.
+*/
+void clear() {
+synchronized (mutex) {
+pending = new LinkedHashMap<ActiveMQTopic, LinkedHashMap<Object, PendingAdvisory>>();
+pendingCount = 0;
+}
+}
+
+/**
+* @return true if an add advisory for the id is waiting on the topic
+*/
+boolean isPending(ActiveMQTopic topic, Object id) {
+synchronized (mutex) {
+LinkedHashMap<Object, PendingAdvisory> advisories = pending.get(topic);
+return advisories != null && advisories.containsKey(id);
+}
+}
+
+int getPendingCount() {
+synchronized (mutex) {
+return pendingCount;
+}
+}
+
+long getEnqueuedCount() {
+return enqueuedCount.get();
+}
+
+long getCancelledCount() {
+return cancelledCount.get();
+}
+
+long getFlushCount() {
+return flushCount.get();
+}
+
+int getLastFlushSize() {
+return lastFlushSize;
+}
+}
\ No newline at end of file
@@ -178,6 +178,7 @@ private JmsConnector[] jmsBridgeConnectors; // these are Jms to Jms bridges
 // to other jms messaging systems
 private boolean deleteAllMessagesOnStartup;
 private boolean advisorySupport = true;
+private long advisoryCoalescingWindow;
 private URI vmConnectorURI;
 private String defaultSocketURIString;
 private PolicyMap destinationPolicy;
@@ -1336,6 +1337,20 @@ public void setAdvisorySupport(boolean advisorySupport) {
 this.advisorySupport = advisorySupport;
 }
 
+public long getAdvisoryCoalescingWindow() {
+return advisoryCoalescingWindow;
+}
+
+/**
+* Sets the window in milliseconds over which consumer, producer and
+* connection advisories are coalesced before they are published, which
+* keeps reconnect storms from flooding advisory consumers. The default of 0
+* publishes every advisory right away.
+*/
+public void setAdvisoryCoalescingWindow(long advisoryCoalescingWindow) {
+this.advisoryCoalescingWindow = advisoryCoalescingWindow;
+}
+
 public List<TransportConnector> getTransportConnectors() {
 return new ArrayList<TransportConnector>(transportConnectors);
 }
@@ -2178,7 +2193,9 @@ throw IOExceptionSupport.create("Status MBean could not be registered in JMX: "
 }
 }
 if (isAdvisorySupport()) {
-broker = new AdvisoryBroker(broker);
+AdvisoryBroker advisoryBroker = new AdvisoryBroker(broker);
+advisoryBroker.setAdvisoryCoalescingWindow(getAdvisoryCoalescingWindow());
+broker = advisoryBroker;
 }
 broker = new CompositeDestinationBroker(broker);
 broker = new TransactionBroker(broker, getPersistenceAdapter().createTransactionStore());
@@ -41,6 +41,7 @@ import javax.management.openmbean.TabularType;
 import org.apache.activemq.ActiveMQConnectionFactory;
 import org.apache.activemq.broker.jmx.OpenTypeSupport.OpenTypeFactory;
 import org.apache.activemq.broker.region.Destination;
+import org.apache.activemq.broker.region.PrefetchSubscription;
 import org.apache.activemq.broker.region.Subscription;
 import org.apache.activemq.broker.region.policy.AbortSlowConsumerStrategy;
 import org.apache.activemq.broker.region.policy.SlowConsumerStrategy;
@@ -451,6 +452,38 @@ answer[index++] = BrokerMBeanSupport.createSubscriptionName(brokerObjectName, co
 return answer;
 }
 
+/**
+* @return the current dispatch window of each consumer, as consumer id
+*         and window size
+*/
+public String[] getPrefetchWindows() {
+List<Subscription> subscriptions = destination.getConsumers();
+List<String> answer = new ArrayList<String>(subscriptions.size());
+for (Subscription subscription : subscriptions) {
+int window = subscription.getPrefetchSize();
+if (subscription instanceof PrefetchSubscription) {
+window = ((PrefetchSubscription) subscription).getDispatchWindow();
+}
+answer.add(subscription.getConsumerInfo().getConsumerId() + "=" + window);
+}
+return answer.toArray(new String[answer.size()]);
+}
+
+/**
+* @return the sum of the current dispatch windows of all consumers
+*/
+public long getTotalPrefetchWindow() {
+long total = 0;
+for (Subscription subscription : destination.getConsumers()) {
+if (subscription instanceof PrefetchSubscription) {
+total += ((PrefetchSubscription) subscription).getDispatchWindow();
+} else {
+total += subscription.getPrefetchSize();
+}
+}
+return total;
+}
+
 @Override
 public ObjectName getSlowConsumerStrategy() throws IOException, MalformedObjectNameException {
 ObjectName result = null;
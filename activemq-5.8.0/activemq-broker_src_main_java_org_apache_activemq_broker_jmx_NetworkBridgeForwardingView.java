@@ -0,0 +1,79 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements.  See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License.  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.activemq.broker.jmx;
+
+import org.apache.activemq.network.DemandForwardingBridgeSupport;
+
+/**
+* Throughput and lag of the batched forwarding of a network bridge.
+*/
+public class NetworkBridgeForwardingView implements NetworkBridgeForwardingViewMBean {
+
+private final DemandForwardingBridgeSupport bridge;
+private long lastRateTime = System.currentTimeMillis();
+private long lastRateCount;
+
+public NetworkBridgeForwardingView(DemandForwardingBridgeSupport bridge) {
+this.bridge = bridge;
+}
+
+@Override
+public int getForwardingBatchSize() {
+return bridge.getForwardingBatchSize();
+}
+
+@Override
+public long getEnqueueCounter() {
+return bridge.getEnqueueCounter();
+}
+
+@Override
+public long getDequeueCounter() {
+return bridge.getDequeueCounter();
+}
+
+@Override
+public long getForwardedBatchCount() {
+return bridge.getForwardedBatchCount();
+}
+
+@Override
+public long getUnconfirmedForwardCount() {
+return bridge.getUnconfirmedForwardCount();
+}
+
+@Override
+public synchronized double getForwardRate() {
+long now = System.currentTimeMillis();
+long count = bridge.getDequeueCounter();
+long elapsed = now - lastRateTime;
+double rate = elapsed <= 0 ? 0 : (count - lastRateCount) * 1000.0 / elapsed;
+lastRateTime = now;
+lastRateCount = count;
+return rate;
+}
+
+@Override
+public long getLastBatchLatency() {
+return bridge.getLastBatchLatency();
+}
+
+@Override
+public long getAverageBatchLatency() {
+return bridge.getAverageBatchLatency();
+}
+}
\ No newline at end of file
@@ -0,0 +1,44 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements.  See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License.  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.activemq.broker.jmx;
+
+public interface NetworkBridgeForwardingViewMBean {
+
+@MBeanInfo("Number of messages forwarded in one remote transaction, 0 if batching is disabled.")
+int getForwardingBatchSize();
+
+@MBeanInfo("Number of messages taken from the local broker.")
+long getEnqueueCounter();
+
+@MBeanInfo("Number of messages confirmed by the remote broker.")
+long getDequeueCounter();
+
+@MBeanInfo("Number of batches committed on the remote broker.")
+long getForwardedBatchCount();
+
+@MBeanInfo("Number of messages sent to the remote broker and not confirmed yet.")
+long getUnconfirmedForwardCount();
+
+@MBeanInfo("Messages confirmed by the remote broker per second since the previous call.")
+double getForwardRate();
+
+@MBeanInfo("Time in milliseconds from opening to confirming the last batch.")
+long getLastBatchLatency();
+
+@MBeanInfo("Average time in milliseconds from opening to confirming a batch.")
+long getAverageBatchLatency();
+}
\ No newline at end of file
@@ -0,0 +1,115 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements.  See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License.  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.activemq.broker.region;
+
+/**
+* Sizes the dispatch window of a {@link PrefetchSubscription} from the rate
+* at which its consumer acknowledges messages.
+*
+* Every sample interval the controller measures the ack throughput and
+* estimates the mean ack latency as in flight messages divided by
+* throughput. The window is moved towards the number of messages the
+* consumer acknowledges within the target latency, within the configured
+* bounds and never above the consumer's own prefetch. A slow consumer so
+* only holds a few messages and leaves the rest to faster consumers.
+*/
+public class AdaptivePrefetchController {
+
+public static final int DEFAULT_MIN_WINDOW = 1;
+public static final int DEFAULT_MAX_WINDOW = Short.MAX_VALUE;
+public static final long DEFAULT_TARGET_LATENCY = 1000;
+public static final long DEFAULT_SAMPLE_INTERVAL = 250;
+
+// weight of a new sample in the moving averages
+private static final double SMOOTHING = 0.3;
+
+private final int minWindow;
+private final int maxWindow;
+private final long targetLatency;
+private final long sampleInterval;
+
+// written under the controller's lock, read without it on every dispatch
+private volatile int window;
+private long lastSampleTime;
+private long lastAckCount;
+private double throughput;
+private double latency;
+
+public AdaptivePrefetchController(int minWindow, int maxWindow, long targetLatency, long sampleInterval, int initialWindow) {
+this.minWindow = Math.max(1, minWindow);
+this.maxWindow = Math.max(this.minWindow, maxWindow);
+this.targetLatency = targetLatency;
+this.sampleInterval = sampleInterval;
+this.window = clamp(initialWindow);
+this.lastSampleTime = System.currentTimeMillis();
+}
+
+/**
+* Takes a sample if the sample interval has passed.
+*
+* @param ackCount the total number of messages the consumer acknowledged
+* @param inFlight the number of messages dispatched but not acknowledged
+*/
+public synchronized void sample(long ackCount, int inFlight) {
+long now = System.currentTimeMillis();
+long elapsed = now - lastSampleTime;
+if (elapsed < sampleInterval) {
+return;
+}
+double rate = (double) (ackCount - lastAckCount) / elapsed;
+lastSampleTime = now;
+lastAckCount = ackCount;
+throughput = throughput == 0 ? rate : throughput + SMOOTHING * (rate - throughput);
+if (throughput > 0) {
+latency = latency + SMOOTHING * (inFlight / throughput - latency);
+}
+if (inFlight == 0 && rate == 0) {
+// nothing to learn from an idle consumer
+return;
+}
+int target = clamp((int) Math.ceil(throughput * targetLatency));
+// move half way to damp oscillation
+window = clamp((window + target + 1) / 2);
+}
+
+/**
+* @param prefetchSize the consumer's prefetch, an upper bound for the
+*        window
+* @return the number of messages the consumer may have in flight
+*/
+public int getWindow(int prefetchSize) {
+return Math.min(window, prefetchSize);
+}
+
+/**
+* @return the smoothed ack throughput in messages per second
+*/
+public synchronized double getThroughput() {
+return throughput * 1000;
+}
+
+/**
+* @return the estimated mean ack latency in milliseconds
+*/
+public synchronized double getLatency() {
+return latency;
+}
+
+private int clamp(int value) {
+return Math.max(minWindow, Math.min(maxWindow, value));
+}
+}
\ No newline at end of file
@@ -59,6 +59,7 @@ protected PendingMessageCursor pending;
 protected final List<MessageReference> dispatched = new ArrayList<MessageReference>();
 protected final AtomicInteger prefetchExtension = new AtomicInteger();
 protected boolean usePrefetchExtension = true;
+protected AdaptivePrefetchController adaptivePrefetch;
 protected long enqueueCounter;
 protected long dispatchCounter;
 protected long dequeueCounter;
@@ -516,7 +517,7 @@ return dispatched.size();
 */
 @Override
 public boolean isFull() {
-return dispatched.size() - prefetchExtension.get() >= info.getPrefetchSize();
+return dispatched.size() - prefetchExtension.get() >= getDispatchWindow();
 }
 
 /**
@@ -524,7 +525,7 @@ return dispatched.size() - prefetchExtension.get() >= info.getPrefetchSize();
 */
 @Override
 public boolean isLowWaterMark() {
-return (dispatched.size() - prefetchExtension.get()) <= (info.getPrefetchSize() * .4);
+return (dispatched.size() - prefetchExtension.get()) <= (getDispatchWindow() * .4);
 }
 
 /**
@@ -532,12 +533,26 @@ return (dispatched.size() - prefetchExtension.get()) <= (info.getPrefetchSize()
 */
 @Override
 public boolean isHighWaterMark() {
-return (dispatched.size() - prefetchExtension.get()) >= (info.getPrefetchSize() * .9);
+return (dispatched.size() - prefetchExtension.get()) >= (getDispatchWindow() * .9);
 }
 
 @Override
 public int countBeforeFull() {
-return info.getPrefetchSize() + prefetchExtension.get() - dispatched.size();
+return getDispatchWindow() + prefetchExtension.get() - dispatched.size();
+}
+
+/**
+* @return the number of messages that may be in flight to the consumer, the
+*         prefetch size unless it is sized by an adaptive prefetch
+*         controller
+*/
+public int getDispatchWindow() {
+int prefetchSize = info.getPrefetchSize();
+AdaptivePrefetchController controller = adaptivePrefetch;
+if (controller == null || prefetchSize == 0) {
+return prefetchSize;
+}
+return controller.getWindow(prefetchSize);
 }
 
 @Override
@@ -620,6 +635,10 @@ return rc;
 protected void dispatchPending() throws IOException {
 synchronized(pendingLock) {
 try {
+AdaptivePrefetchController controller = adaptivePrefetch;
+if (controller != null) {
+controller.sample(dequeueCounter, dispatched.size());
+}
 int numberToDispatch = countBeforeFull();
 if (numberToDispatch > 0) {
 setSlowConsumer(false);
@@ -830,6 +849,18 @@ public void setUsePrefetchExtension(boolean usePrefetchExtension) {
 this.usePrefetchExtension = usePrefetchExtension;
 }
 
+public AdaptivePrefetchController getAdaptivePrefetch() {
+return adaptivePrefetch;
+}
+
+/**
+* @param adaptivePrefetch sizes the dispatch window from the consumer's ack
+*        rate, null for a window of the static prefetch size
+*/
+public void setAdaptivePrefetch(AdaptivePrefetchController adaptivePrefetch) {
+this.adaptivePrefetch = adaptivePrefetch;
+}
+
 protected int getPrefetchExtension() {
 return this.prefetchExtension.get();
 }
@@ -97,6 +97,7 @@ import org.slf4j.MDC;
 */
 public class Queue extends BaseDestination implements Task, UsageListener {
 protected static final Logger LOG = LoggerFactory.getLogger(Queue.class);
+public static final int DEFAULT_DISPATCH_SHARD_COUNT = 4;
 protected final TaskRunnerFactory taskFactory;
 protected TaskRunner taskRunner;
 private final ReentrantReadWriteLock consumersLock = new ReentrantReadWriteLock();
@@ -127,6 +128,9 @@ private int consumersBeforeDispatchStarts = 0;
 private CountDownLatch consumersBeforeStartsLatch;
 private final AtomicLong pendingWakeups = new AtomicLong();
 private boolean allConsumersExclusiveByDefault = false;
+private boolean shardedDispatch = false;
+private int dispatchShardCount = DEFAULT_DISPATCH_SHARD_COUNT;
+private ShardedQueueDispatcher shardedDispatcher;
 
 private final Runnable sendMessagesWaitingForSpaceTask = new Runnable() {
 public void run() {
@@ -364,6 +368,10 @@ memoryUsage.setParent(systemUsage.getMemoryUsage());
 
 this.taskRunner = taskFactory.createTaskRunner(this, "Queue:" + destination.getPhysicalName());
 
+if (shardedDispatch) {
+this.shardedDispatcher = new ShardedQueueDispatcher(dispatchSelector, dispatchShardCount);
+}
+
 super.initialize();
 if (store != null) {
 // Restore the persistent messages.
@@ -460,6 +468,9 @@ exclusiveConsumer = sub;
 }
 dispatchSelector.setExclusiveConsumer(exclusiveConsumer);
 }
+if (shardedDispatcher != null) {
+shardedDispatcher.consumersChanged(consumers, useConsumerPriority);
+}
 }finally {
 consumersLock.writeLock().unlock();
 }
@@ -526,6 +537,9 @@ exclusiveConsumer = s;
 }
 dispatchSelector.setExclusiveConsumer(exclusiveConsumer);
 }
+if (shardedDispatcher != null) {
+shardedDispatcher.consumersChanged(consumers, useConsumerPriority);
+}
 ConsumerId consumerId = sub.getConsumerInfo().getConsumerId();
 getMessageGroupOwners().removeConsumer(consumerId);
 
@@ -1005,6 +1019,26 @@ public boolean isAllConsumersExclusiveByDefault() {
 return allConsumersExclusiveByDefault;
 }
 
+public boolean isShardedDispatch() {
+return shardedDispatch;
+}
+
+/**
+* Enables the {@link ShardedQueueDispatcher}, must be set before the queue
+* is initialized.
+*/
+public void setShardedDispatch(boolean shardedDispatch) {
+this.shardedDispatch = shardedDispatch;
+}
+
+public int getDispatchShardCount() {
+return dispatchShardCount;
+}
+
+public void setDispatchShardCount(int dispatchShardCount) {
+this.dispatchShardCount = dispatchShardCount;
+}
+
 
 // Implementation methods
 // -------------------------------------------------------------------------
@@ -1868,6 +1902,62 @@ asyncWakeup();
 *         were not full.
 */
 private PendingList doActualDispatch(PendingList list) throws Exception {
+if (isShardedDispatchActive()) {
+return doShardedDispatch(list);
+}
+return doClassicDispatch(list);
+}
+
+private boolean isShardedDispatchActive() {
+return shardedDispatcher != null && !strictOrderDispatch && dispatchSelector.getExclusiveConsumer() == null;
+}
+
+/**
+* Dispatches through the {@link ShardedQueueDispatcher}, grouped messages
+* still need the consumer wide view of the classic path to keep groups
+* together. Runs of grouped and ungrouped messages are dispatched in list
+* order so the messages handed back keep their order.
+*/
+private PendingList doShardedDispatch(PendingList list) throws Exception {
+if (!shardedDispatcher.hasConsumers()) {
+// slave dispatch happens in processDispatchNotification
+return list;
+}
+PendingList rc = createPendingList();
+PendingList run = createPendingList();
+boolean grouped = false;
+for (MessageReference node : list) {
+boolean nodeGrouped = node.getGroupID() != null;
+if (nodeGrouped != grouped && !run.isEmpty()) {
+doShardedDispatch(run, grouped, rc);
+run = createPendingList();
+}
+grouped = nodeGrouped;
+run.addMessageLast(node);
+}
+if (!run.isEmpty()) {
+doShardedDispatch(run, grouped, rc);
+}
+return rc;
+}
+
+private void doShardedDispatch(PendingList run, boolean grouped, PendingList rc) throws Exception {
+if (grouped) {
+rc.addAll(doClassicDispatch(run));
+} else {
+shardedDispatcher.dispatch(run, rc);
+}
+}
+
+private PendingList createPendingList() {
+if (isPrioritizedMessages()) {
+return new PrioritizedPendingList();
+} else {
+return new OrderedPendingList();
+}
+}
+
+private PendingList doClassicDispatch(PendingList list) throws Exception {
 List<Subscription> consumers;
 consumersLock.writeLock().lock();
 
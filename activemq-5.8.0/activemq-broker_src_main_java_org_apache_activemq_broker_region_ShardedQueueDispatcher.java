@@ -0,0 +1,203 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements.  See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License.  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.activemq.broker.region;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.activemq.broker.region.cursors.PendingList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+* An alternative dispatch engine for a {@link Queue} with many consumers.
+*
+* The consumers are grouped by priority and the consumers of each priority
+* are split into a fixed number of shards. Each shard keeps its own round
+* robin position, so dispatching a message only needs a volatile read of the
+* current consumer snapshot instead of taking the queue's consumersLock and
+* re-sorting the consumer list after every message.
+*
+* Like the classic dispatch path a message is offered to the consumers of
+* the highest priority first and only goes to a lower priority once none of
+* them can take it, round robin happens among consumers of equal priority.
+*
+* Messages no consumer could take are handed back to the queue in their
+* original order, so redelivered and pending messages keep the queue's usual
+* dispatch order.
+*
+* Like round robin dispatch to competing consumers no total order across
+* consumers is implied, which is why the queue falls back to the classic
+* path for strict order dispatch, exclusive consumers and message groups.
+*/
+class ShardedQueueDispatcher {
+
+private static final Logger LOG = LoggerFactory.getLogger(ShardedQueueDispatcher.class);
+private static final Comparator<Subscription> PRIORITY_ORDER = new Comparator<Subscription>() {
+public int compare(Subscription s1, Subscription s2) {
+// descending priority
+return s2.getConsumerInfo().getPriority() - s1.getConsumerInfo().getPriority();
+}
+};
+
+private final QueueDispatchSelector dispatchSelector;
+private final int shardCount;
+private final AtomicInteger nextShard = new AtomicInteger();
+private volatile Level[] levels = new Level[0];
+private volatile int consumerCount;
+
+ShardedQueueDispatcher(QueueDispatchSelector dispatchSelector, int shardCount) {
+if (shardCount <= 0) {
+throw new IllegalArgumentException("shardCount must be > 0: " + shardCount);
+}
+this.dispatchSelector = dispatchSelector;
+this.shardCount = shardCount;
+}
+
+/**
+* Publishes a new consumer snapshot. The consumers of each priority are
+* dealt to the shards in the order of the queue's consumer list, only as
+* many shards as a priority has consumers are used, a single consumer
+* therefore sees strict queue order.
+*
+* @param useConsumerPriority
+*      false to treat all consumers as equal like the queue does
+*/
+void consumersChanged(List<Subscription> consumers, boolean useConsumerPriority) {
+List<Subscription> candidates = new ArrayList<Subscription>(consumers.size());
+for (Subscription sub : consumers) {
+if (!(sub instanceof QueueBrowserSubscription)) {
+candidates.add(sub);
+}
+}
+if (useConsumerPriority) {
+// stable, keeps the queue's order among equal priorities
+Collections.sort(candidates, PRIORITY_ORDER);
+}
+List<Level> newLevels = new ArrayList<Level>();
+int start = 0;
+for (int i = 1; i <= candidates.size(); i++) {
+if (i == candidates.size() || (useConsumerPriority
+&& PRIORITY_ORDER.compare(candidates.get(start), candidates.get(i)) != 0)) {
+newLevels.add(new Level(candidates.subList(start, i), shardCount));
+start = i;
+}
+}
+levels = newLevels.toArray(new Level[newLevels.size()]);
+consumerCount = candidates.size();
+if (LOG.isDebugEnabled()) {
+LOG.debug("Sharded dispatch over " + newLevels.size() + " priority level(s) for " + candidates.size() + " consumer(s)");
+}
+}
+
+/**
+* Dispatches the given list, messages no consumer could take are added to
+* the overflow list.
+*
+* @return the overflow list
+*/
+PendingList dispatch(PendingList list, PendingList overflow) throws Exception {
+Level[] current = levels;
+Set<Subscription> fullConsumers = new HashSet<Subscription>();
+for (MessageReference ref : list) {
+QueueMessageReference node = (QueueMessageReference) ref;
+if (node.isDropped()) {
+continue;
+}
+int home = nextShard.getAndIncrement() & Integer.MAX_VALUE;
+if (!dispatch(current, home, node, fullConsumers)) {
+overflow.addMessageLast(node);
+}
+}
+return overflow;
+}
+
+boolean hasConsumers() {
+return consumerCount > 0;
+}
+
+/**
+* Tries the priorities from the highest down, within a priority the
+* consumers of the home shard first and then those of the other shards.
+*/
+private boolean dispatch(Level[] current, int home, QueueMessageReference node, Set<Subscription> fullConsumers) throws Exception {
+for (Level level : current) {
+int active = level.shards.length;
+for (int i = 0; i < active; i++) {
+if (dispatchToShard(level, (home + i) % active, node, fullConsumers)) {
+return true;
+}
+}
+}
+return false;
+}
+
+private boolean dispatchToShard(Level level, int shard, QueueMessageReference node, Set<Subscription> fullConsumers) throws Exception {
+Subscription[] consumers = level.shards[shard];
+int size = consumers.length;
+int start = (level.positions[shard].getAndIncrement() & Integer.MAX_VALUE) % size;
+for (int i = 0; i < size; i++) {
+Subscription sub = consumers[(start + i) % size];
+if (fullConsumers.contains(sub)) {
+continue;
+}
+if (sub.isFull()) {
+// no further dispatch to a full consumer in this pass to
+// avoid out of order message receipt
+fullConsumers.add(sub);
+continue;
+}
+if (dispatchSelector.canSelect(sub, node) && !node.isAcked()) {
+sub.add(node);
+return true;
+}
+}
+return false;
+}
+
+/**
+* The consumers of one priority dealt to the shards, every shard holds at
+* least one consumer.
+*/
+private static final class Level {
+final Subscription[][] shards;
+final AtomicInteger[] positions;
+
+Level(List<Subscription> consumers, int shardCount) {
+int active = Math.min(shardCount, consumers.size());
+List<List<Subscription>> groups = new ArrayList<List<Subscription>>(active);
+for (int i = 0; i < active; i++) {
+groups.add(new ArrayList<Subscription>());
+}
+for (int i = 0; i < consumers.size(); i++) {
+groups.get(i % active).add(consumers.get(i));
+}
+shards = new Subscription[active][];
+positions = new AtomicInteger[active];
+for (int i = 0; i < active; i++) {
+List<Subscription> group = groups.get(i);
+shards[i] = group.toArray(new Subscription[group.size()]);
+positions[i] = new AtomicInteger();
+}
+}
+}
+}
\ No newline at end of file
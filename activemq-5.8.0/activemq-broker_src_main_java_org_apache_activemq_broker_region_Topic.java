@@ -68,6 +68,7 @@ private final TopicMessageStore topicStore;
 protected final CopyOnWriteArrayList<Subscription> consumers = new CopyOnWriteArrayList<Subscription>();
 private final ReentrantReadWriteLock dispatchLock = new ReentrantReadWriteLock();
 private DispatchPolicy dispatchPolicy = new SimpleDispatchPolicy();
+private TopicSelectorIndex selectorIndex;
 private SubscriptionRecoveryPolicy subscriptionRecoveryPolicy;
 private final ConcurrentHashMap<SubscriptionKey, DurableTopicSubscription> durableSubscribers = new ConcurrentHashMap<SubscriptionKey, DurableTopicSubscription>();
 private final TaskRunner taskRunner;
@@ -131,6 +132,7 @@ synchronized (consumers) {
 if (!consumers.contains(sub)){
 sub.add(context, this);
 consumers.add(sub);
+consumersChanged();
 applyRecovery=true;
 super.addSubscription(context, sub);
 }
@@ -147,6 +149,7 @@ synchronized (consumers) {
 if (!consumers.contains(sub)){
 sub.add(context, this);
 consumers.add(sub);
+consumersChanged();
 super.addSubscription(context, sub);
 }
 }
@@ -175,6 +178,7 @@ break;
 
 if (!hasSubscription) {
 consumers.add(sub);
+consumersChanged();
 }
 }
 }
@@ -187,6 +191,7 @@ if (!sub.getConsumerInfo().isDurable()) {
 super.removeSubscription(context, sub, lastDeliveredSequenceId);
 synchronized (consumers) {
 consumers.remove(sub);
+consumersChanged();
 }
 }
 sub.remove(context, this);
@@ -201,6 +206,7 @@ destinationStatistics.getConsumers().decrement();
 // deactivate and remove
 removed.deactivate(false);
 consumers.remove(removed);
+consumersChanged();
 }
 }
 }
@@ -229,11 +235,13 @@ topicStore.deleteSubscription(clientId, subscriptionName);
 info = null;
 synchronized (consumers) {
 consumers.remove(subscription);
+consumersChanged();
 }
 } else {
 synchronized (consumers) {
 if (!consumers.contains(subscription)) {
 consumers.add(subscription);
+consumersChanged();
 }
 }
 }
@@ -251,6 +259,7 @@ info.setSubscribedDestination(subscription.getConsumerInfo().getDestination());
 // This destination might be a pattern
 synchronized (consumers) {
 consumers.add(subscription);
+consumersChanged();
 topicStore.addSubsciption(info, subscription.getConsumerInfo().isRetroactive());
 }
 }
@@ -293,6 +302,7 @@ dispatchLock.writeLock().unlock();
 public void deactivate(ConnectionContext context, DurableTopicSubscription sub) throws Exception {
 synchronized (consumers) {
 consumers.remove(sub);
+consumersChanged();
 }
 sub.remove(context, this);
 }
@@ -642,6 +652,21 @@ sendMessagesWaitingForSpaceTask.run();
 // Properties
 // -------------------------------------------------------------------------
 
+private void consumersChanged() {
+TopicSelectorIndex index = selectorIndex;
+if (index != null) {
+index.invalidate();
+}
+}
+
+/**
+* Called when the selector of one of the subscriptions was changed at
+* runtime.
+*/
+void selectorChanged() {
+consumersChanged();
+}
+
 public DispatchPolicy getDispatchPolicy() {
 return dispatchPolicy;
 }
@@ -650,6 +675,24 @@ public void setDispatchPolicy(DispatchPolicy dispatchPolicy) {
 this.dispatchPolicy = dispatchPolicy;
 }
 
+public boolean isSelectorIndex() {
+return selectorIndex != null;
+}
+
+/**
+* When enabled, a message is only matched against the subscriptions whose
+* selectors can accept its property values, see {@link TopicSelectorIndex}.
+*/
+public void setSelectorIndex(boolean selectorIndex) {
+if (selectorIndex) {
+if (this.selectorIndex == null) {
+this.selectorIndex = new TopicSelectorIndex(consumers);
+}
+} else {
+this.selectorIndex = null;
+}
+}
+
 public SubscriptionRecoveryPolicy getSubscriptionRecoveryPolicy() {
 return subscriptionRecoveryPolicy;
 }
@@ -685,7 +728,9 @@ return;
 msgContext = context.getMessageEvaluationContext();
 msgContext.setDestination(destination);
 msgContext.setMessageReference(message);
-if (!dispatchPolicy.dispatch(message, msgContext, consumers)) {
+TopicSelectorIndex index = selectorIndex;
+List<Subscription> candidates = index != null ? index.getCandidates(msgContext) : consumers;
+if (!dispatchPolicy.dispatch(message, msgContext, candidates)) {
 onMessageWithNoConsumers(context, message);
 }
 
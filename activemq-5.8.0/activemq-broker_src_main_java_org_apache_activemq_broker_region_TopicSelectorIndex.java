@@ -0,0 +1,234 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements.  See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License.  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.activemq.broker.region;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jms.JMSException;
+
+import org.apache.activemq.filter.BooleanExpression;
+import org.apache.activemq.filter.ComparisonExpression;
+import org.apache.activemq.filter.ConstantExpression;
+import org.apache.activemq.filter.Expression;
+import org.apache.activemq.filter.LogicExpression;
+import org.apache.activemq.filter.MessageEvaluationContext;
+import org.apache.activemq.filter.PropertyExpression;
+import org.apache.activemq.selector.SelectorParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+* Narrows the subscriptions of a {@link Topic} a message has to be matched
+* against.
+*
+* A subscription whose selector can only be true when a property equals one
+* of a known set of string literals, like <code>symbol = 'X'</code>,
+* <code>symbol = 'X' AND price &gt; 10</code> or
+* <code>symbol = 'X' OR symbol = 'Y'</code>, is indexed under those values.
+* For a message only the subscriptions indexed under its property values and
+* the subscriptions that could not be indexed are candidates, every
+* candidate is still matched against its full selector.
+*
+* The index is rebuilt on the next dispatch after the topic's consumers
+* changed, selectors are only parsed once while they are in use.
+*/
+class TopicSelectorIndex {
+
+private static final Logger LOG = LoggerFactory.getLogger(TopicSelectorIndex.class);
+
+private final List<Subscription> consumers;
+private final Map<String, Key> keys = new HashMap<String, Key>();
+private volatile Snapshot snapshot;
+private volatile boolean dirty = true;
+
+TopicSelectorIndex(List<Subscription> consumers) {
+this.consumers = consumers;
+}
+
+/**
+* The property values a selector requires.
+*/
+static final class Key {
+final PropertyExpression property;
+final Set<String> values;
+
+Key(PropertyExpression property, Set<String> values) {
+this.property = property;
+this.values = values;
+}
+}
+
+private static final class PropertyIndex {
+final PropertyExpression property;
+final Map<String, List<Subscription>> subscriptions = new HashMap<String, List<Subscription>>();
+
+PropertyIndex(PropertyExpression property) {
+this.property = property;
+}
+}
+
+private static final class Snapshot {
+final List<Subscription> unindexed = new ArrayList<Subscription>();
+final List<PropertyIndex> properties = new ArrayList<PropertyIndex>();
+}
+
+/**
+* Marks the index stale, called whenever the topic's consumers change.
+*/
+void invalidate() {
+dirty = true;
+}
+
+/**
+* @return the subscriptions that may match the message of the context
+*/
+List<Subscription> getCandidates(MessageEvaluationContext context) throws JMSException {
+Snapshot current = snapshot;
+if (dirty || current == null) {
+current = rebuild();
+}
+if (current.properties.isEmpty()) {
+// nothing to narrow down
+return consumers;
+}
+List<Subscription> result = new ArrayList<Subscription>(current.unindexed);
+for (PropertyIndex index : current.properties) {
+Object value = index.property.evaluate(context);
+if (value instanceof String) {
+List<Subscription> matching = index.subscriptions.get(value);
+if (matching != null) {
+result.addAll(matching);
+}
+}
+}
+return result;
+}
+
+private synchronized Snapshot rebuild() {
+if (!dirty && snapshot != null) {
+return snapshot;
+}
+// cleared first so changes made while rebuilding trigger another one
+dirty = false;
+List<Subscription> subscriptions;
+synchronized (consumers) {
+subscriptions = new ArrayList<Subscription>(consumers);
+}
+Snapshot result = new Snapshot();
+Map<String, PropertyIndex> properties = new HashMap<String, PropertyIndex>();
+Map<String, Key> retained = new HashMap<String, Key>();
+for (Subscription sub : subscriptions) {
+String selector = sub.getConsumerInfo().getSelector();
+Key key = null;
+if (selector != null) {
+if (retained.containsKey(selector)) {
+key = retained.get(selector);
+} else {
+key = keys.containsKey(selector) ? keys.get(selector) : extract(selector);
+retained.put(selector, key);
+}
+}
+if (key == null) {
+result.unindexed.add(sub);
+continue;
+}
+PropertyIndex index = properties.get(key.property.getName());
+if (index == null) {
+index = new PropertyIndex(key.property);
+properties.put(key.property.getName(), index);
+result.properties.add(index);
+}
+for (String value : key.values) {
+List<Subscription> list = index.subscriptions.get(value);
+if (list == null) {
+list = new ArrayList<Subscription>();
+index.subscriptions.put(value, list);
+}
+list.add(sub);
+}
+}
+keys.clear();
+keys.putAll(retained);
+snapshot = result;
+return result;
+}
+
+private static Key extract(String selector) {
+if (selector.trim().length() == 0) {
+return null;
+}
+try {
+return extract(SelectorParser.parse(selector));
+} catch (Exception e) {
+if (LOG.isDebugEnabled()) {
+LOG.debug("Not indexing selector: " + selector + ", " + e);
+}
+return null;
+}
+}
+
+/**
+* @return the values the expression requires, or null if it can be true
+*         for any value
+*/
+static Key extract(Expression expression) {
+if (expression instanceof LogicExpression) {
+LogicExpression logic = (LogicExpression) expression;
+Key left = extract(logic.getLeft());
+Key right = extract(logic.getRight());
+if ("AND".equals(logic.getExpressionSymbol())) {
+// either side is required, use the narrower one
+if (left == null || (right != null && right.values.size() < left.values.size())) {
+return right;
+}
+return left;
+}
+if ("OR".equals(logic.getExpressionSymbol())) {
+if (left == null || right == null || !left.property.getName().equals(right.property.getName())) {
+return null;
+}
+Set<String> values = new HashSet<String>(left.values);
+values.addAll(right.values);
+return new Key(left.property, values);
+}
+return null;
+}
+if (expression instanceof ComparisonExpression && "=".equals(((ComparisonExpression) expression).getExpressionSymbol())) {
+ComparisonExpression comparison = (ComparisonExpression) expression;
+Key key = extract(comparison.getLeft(), comparison.getRight());
+return key != null ? key : extract(comparison.getRight(), comparison.getLeft());
+}
+return null;
+}
+
+private static Key extract(Expression property, Expression constant) {
+if (property instanceof PropertyExpression && constant instanceof ConstantExpression) {
+Object value = ((ConstantExpression) constant).getValue();
+if (value instanceof String) {
+Set<String> values = new HashSet<String>();
+values.add((String) value);
+return new Key((PropertyExpression) property, values);
+}
+}
+return null;
+}
+}
\ No newline at end of file
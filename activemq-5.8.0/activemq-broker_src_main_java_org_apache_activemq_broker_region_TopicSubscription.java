@@ -21,6 +21,7 @@ import java.util.LinkedList;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
+import javax.jms.InvalidSelectorException;
 import javax.jms.JMSException;
 
 import org.apache.activemq.ActiveMQMessageAudit;
@@ -454,6 +455,17 @@ audit = new ActiveMQMessageAudit(maxAuditDepth,maxProducersToAudit);
 }
 }
 
+@Override
+public void setSelector(String selector) throws InvalidSelectorException, UnsupportedOperationException {
+super.setSelector(selector);
+// a topic's selector index files this subscription under its old selector
+for (Destination dest : destinations) {
+if (dest instanceof Topic) {
+((Topic) dest).selectorChanged();
+}
+}
+}
+
 // Implementation methods
 // -------------------------------------------------------------------------
 @Override
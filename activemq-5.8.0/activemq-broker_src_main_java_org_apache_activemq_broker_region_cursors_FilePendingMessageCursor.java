@@ -19,6 +19,7 @@ package org.apache.activemq.broker.region.cursors;
 import java.io.IOException;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import org.apache.activemq.broker.Broker;
@@ -29,22 +30,19 @@ import org.apache.activemq.broker.region.MessageReference;
 import org.apache.activemq.broker.region.QueueMessageReference;
 import org.apache.activemq.command.Message;
 import org.apache.activemq.filter.NonCachedMessageEvaluationContext;
-import org.apache.activemq.openwire.OpenWireFormat;
-import org.apache.activemq.store.PList;
 import org.apache.activemq.store.PListStore;
-import org.apache.activemq.store.PListEntry;
 import org.apache.activemq.usage.SystemUsage;
 import org.apache.activemq.usage.Usage;
 import org.apache.activemq.usage.UsageListener;
-import org.apache.activemq.wireformat.WireFormat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.apache.activemq.util.ByteSequence;
 
 /**
 * persist pending messages pending message (messages awaiting dispatch to a
 * consumer) cursor
 *
+* Messages that do not fit in memory are spooled to the temp store in
+* compressed blocks, see {@link MessageSpool}.
 *
 */
 public class FilePendingMessageCursor extends AbstractPendingMessageCursor implements UsageListener {
@@ -54,13 +52,13 @@ protected Broker broker;
 private final PListStore store;
 private final String name;
 private PendingList memoryList;
-private PList diskList;
+private MessageSpool diskList;
+private int spoolBlockSize = MessageSpool.DEFAULT_BLOCK_SIZE;
 private Iterator<MessageReference> iter;
 private Destination regionDestination;
 private boolean iterating;
 private boolean flushRequired;
 private final AtomicBoolean started = new AtomicBoolean();
-private final WireFormat wireFormat = new OpenWireFormat();
 /**
 * @param broker
 * @param name
@@ -170,24 +168,41 @@ diskList = null;
 }
 }
 
+/**
+* The spooled messages are read and unmarshalled in bulk without holding
+* the cursor's monitor.
+*/
 @Override
-public synchronized LinkedList<MessageReference> pageInList(int maxItems) {
+public LinkedList<MessageReference> pageInList(int maxItems) {
 LinkedList<MessageReference> result = new LinkedList<MessageReference>();
 int count = 0;
+MessageSpool spool;
+Destination destination;
+synchronized (this) {
 for (Iterator<MessageReference> i = memoryList.iterator(); i.hasNext() && count < maxItems;) {
 MessageReference ref = i.next();
 ref.incrementReferenceCount();
 result.add(ref);
 count++;
 }
-if (count < maxItems && !isDiskListEmpty()) {
-for (Iterator<MessageReference> i = new DiskIterator(); i.hasNext() && count < maxItems;) {
-Message message = (Message) i.next();
-message.setRegionDestination(regionDestination);
+spool = isDiskListEmpty() ? null : diskList;
+destination = regionDestination;
+}
+if (count < maxItems && spool != null) {
+List<MessageSpool.Entry> entries;
+try {
+entries = spool.read(maxItems - count);
+} catch (IOException e) {
+LOG.error("I/O error", e);
+throw new RuntimeException(e);
+}
+for (MessageSpool.Entry entry : entries) {
+Message message = entry.message;
+message.getMessageId().setPlistLocator(entry.locator);
+message.setRegionDestination(destination);
 message.setMemoryUsage(this.getSystemUsage().getMemoryUsage());
 message.incrementReferenceCount();
 result.add(message);
-count++;
 }
 }
 return result;
@@ -230,8 +245,8 @@ flushToDisk();
 }
 }
 if (systemUsage.getTempUsage().waitForSpace(maxWaitTime)) {
-ByteSequence bs = getByteSequence(node.getMessage());
-getDiskList().addLast(node.getMessageId().toString(), bs);
+Object locator = getDiskList().addLast(node.getMessage());
+node.getMessageId().setPlistLocator(locator);
 return true;
 }
 return false;
@@ -279,8 +294,7 @@ flushToDisk();
 }
 systemUsage.getTempUsage().waitForSpace();
 node.decrementReferenceCount();
-ByteSequence bs = getByteSequence(node.getMessage());
-Object locator = getDiskList().addFirst(node.getMessageId().toString(), bs);
+Object locator = getDiskList().addFirst(node.getMessage());
 node.getMessageId().setPlistLocator(locator);
 
 } catch (Exception e) {
@@ -350,7 +364,7 @@ throw new RuntimeException(e);
 */
 @Override
 public synchronized int size() {
-return memoryList.size() + (isDiskListEmpty() ? 0 : (int)getDiskList().size());
+return memoryList.size() + (isDiskListEmpty() ? 0 : getDiskList().size());
 }
 
 /**
@@ -361,7 +375,7 @@ public synchronized void clear() {
 memoryList.clear();
 if (!isDiskListEmpty()) {
 try {
-getDiskList().destroy();
+getDiskList().clear();
 } catch (IOException e) {
 throw new RuntimeException(e);
 }
@@ -435,10 +449,9 @@ LOG.trace("" + name + ", flushToDisk() mem list size: " +memoryList.size()  + "
 for (Iterator<MessageReference> iterator = memoryList.iterator(); iterator.hasNext();) {
 MessageReference node = iterator.next();
 node.decrementReferenceCount();
-ByteSequence bs;
 try {
-bs = getByteSequence(node.getMessage());
-getDiskList().addLast(node.getMessageId().toString(), bs);
+Object locator = getDiskList().addLast(node.getMessage());
+node.getMessageId().setPlistLocator(locator);
 } catch (IOException e) {
 LOG.error("Failed to write to disk list", e);
 throw new RuntimeException(e);
@@ -457,10 +470,10 @@ protected boolean isDiskListEmpty() {
 return diskList == null || diskList.isEmpty();
 }
 
-public PList getDiskList() {
+public MessageSpool getDiskList() {
 if (diskList == null) {
 try {
-diskList = store.getPList(name);
+diskList = new MessageSpool(store.getPList(name), spoolBlockSize);
 } catch (Exception e) {
 LOG.error("Caught an IO Exception getting the DiskList " + name, e);
 throw new RuntimeException(e);
@@ -480,20 +493,20 @@ context.setBroker(broker);
 }
 }
 
-protected ByteSequence getByteSequence(Message message) throws IOException {
-org.apache.activemq.util.ByteSequence packet = wireFormat.marshal(message);
-return new ByteSequence(packet.data, packet.offset, packet.length);
+public int getSpoolBlockSize() {
+return spoolBlockSize;
 }
 
-protected Message getMessage(ByteSequence bs) throws IOException {
-org.apache.activemq.util.ByteSequence packet = new org.apache.activemq.util.ByteSequence(bs.getData(), bs
-.getOffset(), bs.getLength());
-return (Message) this.wireFormat.unmarshal(packet);
-
+/**
+* Sets the number of messages written to the temp store as one compressed
+* block, takes effect when the cursor first spools to disk.
+*/
+public void setSpoolBlockSize(int spoolBlockSize) {
+this.spoolBlockSize = spoolBlockSize;
 }
 
 final class DiskIterator implements Iterator<MessageReference> {
-private final PList.PListIterator iterator;
+private final MessageSpool.SpoolIterator iterator;
 DiskIterator() {
 try {
 iterator = getDiskList().iterator();
@@ -507,15 +520,10 @@ return iterator.hasNext();
 }
 
 public MessageReference next() {
-try {
-PListEntry entry = iterator.next();
-Message message = getMessage(entry.getByteSequence());
-message.getMessageId().setPlistLocator(entry.getLocator());
+MessageSpool.Entry entry = iterator.next();
+Message message = entry.message;
+message.getMessageId().setPlistLocator(entry.locator);
 return message;
-} catch (IOException e) {
-LOG.error("I/O error", e);
-throw new RuntimeException(e);
-}
 }
 
 public void remove() {
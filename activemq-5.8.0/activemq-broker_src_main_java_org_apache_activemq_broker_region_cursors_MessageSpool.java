@@ -0,0 +1,458 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements.  See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License.  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.activemq.broker.region.cursors;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.activemq.command.Message;
+import org.apache.activemq.openwire.OpenWireFormat;
+import org.apache.activemq.store.PList;
+import org.apache.activemq.store.PListEntry;
+import org.apache.activemq.util.ByteSequence;
+import org.apache.activemq.wireformat.WireFormat;
+
+/**
+* The disk spool of a {@link FilePendingMessageCursor}.
+*
+* Instead of one {@link PList} entry per message, messages are written in
+* deflated blocks. A block holds a column of message sizes followed by the
+* column of marshalled messages, so it is written and read with a single
+* PList operation. New messages collect in an open tail block that is
+* written once it holds blockSize messages.
+*
+* The spool keeps a sparse index with one entry per block which tracks the
+* messages removed from it; a block is deleted from the PList once all of
+* its messages are gone. A spooled message's plist locator refers to its
+* index entry, so removing it never touches the disk unless its block
+* becomes empty.
+*
+* The spool has its own lock, so {@link #read(int)} only holds it while
+* blocks are fetched from the PList and decompresses and unmarshals them
+* without holding any lock. All other methods are called under the owning
+* cursor's monitor, which also guards the spool's wire format.
+*/
+public class MessageSpool {
+
+public static final int DEFAULT_BLOCK_SIZE = 100;
+
+private final PList list;
+private final WireFormat wireFormat = new OpenWireFormat();
+private final int blockSize;
+private final Object lock = new Object();
+private final LinkedList<Block> blocks = new LinkedList<Block>();
+private final Map<String, Block> blocksById = new HashMap<String, Block>();
+private Block tail;
+private long nextBlockId;
+private int size;
+
+MessageSpool(PList list, int blockSize) {
+this.list = list;
+this.blockSize = Math.max(1, blockSize);
+}
+
+/**
+* An index entry, one per block.
+*/
+static final class Block {
+final String id;
+final BitSet removed = new BitSet();
+int count;
+int live;
+Object locator;
+// the marshalled messages while the block is still open
+List<ByteSequence> open;
+
+Block(String id) {
+this.id = id;
+}
+
+boolean isWritten() {
+return open == null;
+}
+}
+
+/**
+* Identifies a message in the spool.
+*/
+static final class Locator {
+final Block block;
+final int index;
+
+Locator(Block block, int index) {
+this.block = block;
+this.index = index;
+}
+}
+
+/**
+* A decoded message together with its locator.
+*/
+static final class Entry {
+final Message message;
+final Locator locator;
+
+Entry(Message message, Locator locator) {
+this.message = message;
+this.locator = locator;
+}
+}
+
+Locator addLast(Message message) throws IOException {
+ByteSequence packet = wireFormat.marshal(message);
+synchronized (lock) {
+if (tail == null || tail.count >= blockSize) {
+writeTail();
+tail = newBlock();
+tail.open = new ArrayList<ByteSequence>(blockSize);
+blocks.addLast(tail);
+}
+Locator locator = new Locator(tail, tail.count);
+tail.open.add(packet);
+tail.count++;
+tail.live++;
+size++;
+return locator;
+}
+}
+
+Locator addFirst(Message message) throws IOException {
+ByteSequence packet = wireFormat.marshal(message);
+List<ByteSequence> contents = new ArrayList<ByteSequence>(1);
+contents.add(packet);
+byte[] data = encode(contents);
+synchronized (lock) {
+Block block = newBlock();
+block.count = 1;
+block.live = 1;
+block.locator = list.addFirst(block.id, new ByteSequence(data));
+blocks.addFirst(block);
+size++;
+return new Locator(block, 0);
+}
+}
+
+/**
+* @return true if the message was still in the spool
+*/
+boolean remove(Object position) throws IOException {
+if (!(position instanceof Locator)) {
+return false;
+}
+Locator locator = (Locator) position;
+synchronized (lock) {
+Block block = locator.block;
+if (block.removed.get(locator.index) || !blocksById.containsKey(block.id)) {
+return false;
+}
+block.removed.set(locator.index);
+block.live--;
+size--;
+if (block.live == 0) {
+if (block.isWritten()) {
+list.remove(block.locator);
+}
+if (block == tail) {
+tail = null;
+}
+blocks.remove(block);
+blocksById.remove(block.id);
+}
+return true;
+}
+}
+
+boolean isEmpty() {
+synchronized (lock) {
+return size == 0;
+}
+}
+
+int size() {
+synchronized (lock) {
+return size;
+}
+}
+
+void clear() throws IOException {
+synchronized (lock) {
+list.destroy();
+blocks.clear();
+blocksById.clear();
+tail = null;
+size = 0;
+}
+}
+
+/**
+* Reads up to maxItems messages from the head of the spool. The raw
+* blocks are fetched under the spool's lock, everything else happens
+* without it.
+*/
+List<Entry> read(int maxItems) throws IOException {
+List<Block> selected = new ArrayList<Block>();
+List<BitSet> removed = new ArrayList<BitSet>();
+List<Object> contents = new ArrayList<Object>();
+synchronized (lock) {
+int live = 0;
+for (Block block : blocks) {
+if (live >= maxItems) {
+break;
+}
+selected.add(block);
+removed.add((BitSet) block.removed.clone());
+live += block.live;
+}
+PList.PListIterator iterator = null;
+try {
+for (Block block : selected) {
+if (block.isWritten()) {
+if (iterator == null) {
+iterator = list.iterator();
+}
+contents.add(fetch(iterator, block));
+} else {
+contents.add(new ArrayList<ByteSequence>(block.open));
+}
+}
+} finally {
+if (iterator != null) {
+iterator.release();
+}
+}
+}
+
+// the caller does not hold the cursor's monitor
+WireFormat decoder = new OpenWireFormat();
+List<Entry> result = new ArrayList<Entry>(maxItems);
+for (int i = 0; i < selected.size() && result.size() < maxItems; i++) {
+List<ByteSequence> packets = decodeContents(contents.get(i));
+BitSet gone = removed.get(i);
+for (int j = 0; j < packets.size() && result.size() < maxItems; j++) {
+if (!gone.get(j)) {
+result.add(new Entry((Message) decoder.unmarshal(packets.get(j)), new Locator(selected.get(i), j)));
+}
+}
+}
+return result;
+}
+
+/**
+* @return an iterator over the spooled messages that decodes one block
+*         at a time
+*/
+SpoolIterator iterator() throws IOException {
+return new SpoolIterator();
+}
+
+final class SpoolIterator implements Iterator<Entry> {
+private final Iterator<Block> snapshot;
+private PList.PListIterator iterator;
+private Block block;
+private List<ByteSequence> packets;
+private int index;
+private Entry next;
+private Entry current;
+
+SpoolIterator() {
+synchronized (lock) {
+snapshot = new ArrayList<Block>(blocks).iterator();
+}
+}
+
+public boolean hasNext() {
+if (next == null) {
+try {
+next = advance();
+} catch (IOException e) {
+throw new RuntimeException(e);
+}
+}
+return next != null;
+}
+
+public Entry next() {
+if (!hasNext()) {
+throw new NoSuchElementException();
+}
+current = next;
+next = null;
+return current;
+}
+
+public void remove() {
+if (current == null) {
+throw new IllegalStateException();
+}
+try {
+MessageSpool.this.remove(current.locator);
+} catch (IOException e) {
+throw new RuntimeException(e);
+}
+current = null;
+}
+
+void release() {
+synchronized (lock) {
+if (iterator != null) {
+iterator.release();
+iterator = null;
+}
+}
+}
+
+private Entry advance() throws IOException {
+while (true) {
+if (packets != null) {
+while (index < packets.size()) {
+int i = index++;
+boolean gone;
+synchronized (lock) {
+gone = block.removed.get(i);
+}
+if (!gone) {
+return new Entry(unmarshal(packets.get(i)), new Locator(block, i));
+}
+}
+}
+if (!snapshot.hasNext()) {
+return null;
+}
+block = snapshot.next();
+index = 0;
+Object raw;
+synchronized (lock) {
+if (!blocksById.containsKey(block.id)) {
+packets = null;
+continue;
+}
+if (block.isWritten()) {
+if (iterator == null) {
+iterator = list.iterator();
+}
+raw = fetch(iterator, block);
+} else {
+raw = new ArrayList<ByteSequence>(block.open);
+}
+}
+packets = decodeContents(raw);
+}
+}
+}
+
+/**
+* Moves the iterator forward to the entry of the given block. Blocks
+* are in the same order in the PList and the index, so entries that are
+* skipped belong to blocks added in front of the ones being read.
+*/
+private ByteSequence fetch(PList.PListIterator iterator, Block block) throws IOException {
+while (iterator.hasNext()) {
+PListEntry entry = iterator.next();
+if (block.id.equals(entry.getId())) {
+return entry.getByteSequence();
+}
+}
+throw new IOException("Spool block " + block.id + " not found in " + list.getName());
+}
+
+private void writeTail() throws IOException {
+if (tail != null && tail.open != null) {
+List<ByteSequence> packets = tail.open;
+List<ByteSequence> live = new ArrayList<ByteSequence>(packets.size());
+for (int i = 0; i < packets.size(); i++) {
+// removed messages keep their slot so locators stay valid
+live.add(tail.removed.get(i) ? new ByteSequence(new byte[0]) : packets.get(i));
+}
+tail.locator = list.addLast(tail.id, new ByteSequence(encode(live)));
+tail.open = null;
+}
+tail = null;
+}
+
+private Block newBlock() {
+Block block = new Block(Long.toString(nextBlockId++));
+blocksById.put(block.id, block);
+return block;
+}
+
+@SuppressWarnings("unchecked")
+private static List<ByteSequence> decodeContents(Object raw) throws IOException {
+if (raw instanceof ByteSequence) {
+return decode((ByteSequence) raw);
+}
+return (List<ByteSequence>) raw;
+}
+
+private static byte[] encode(List<ByteSequence> packets) throws IOException {
+ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+try {
+DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes, deflater));
+out.writeInt(packets.size());
+for (ByteSequence packet : packets) {
+out.writeInt(packet.getLength());
+}
+for (ByteSequence packet : packets) {
+out.write(packet.getData(), packet.getOffset(), packet.getLength());
+}
+out.close();
+} finally {
+deflater.end();
+}
+return bytes.toByteArray();
+}
+
+private static List<ByteSequence> decode(ByteSequence data) throws IOException {
+InputStream in = new InflaterInputStream(new ByteArrayInputStream(data.getData(), data.getOffset(), data.getLength()));
+DataInputStream dataIn = new DataInputStream(in);
+try {
+int count = dataIn.readInt();
+int[] lengths = new int[count];
+for (int i = 0; i < count; i++) {
+lengths[i] = dataIn.readInt();
+}
+List<ByteSequence> packets = new ArrayList<ByteSequence>(count);
+for (int i = 0; i < count; i++) {
+byte[] packet = new byte[lengths[i]];
+dataIn.readFully(packet);
+packets.add(new ByteSequence(packet));
+}
+return packets;
+} finally {
+dataIn.close();
+}
+}
+
+private Message unmarshal(ByteSequence packet) throws IOException {
+return (Message) wireFormat.unmarshal(packet);
+}
+}
\ No newline at end of file
@@ -18,9 +18,11 @@ package org.apache.activemq.broker.region.policy;
 
 import org.apache.activemq.ActiveMQPrefetchPolicy;
 import org.apache.activemq.broker.Broker;
+import org.apache.activemq.broker.region.AdaptivePrefetchController;
 import org.apache.activemq.broker.region.BaseDestination;
 import org.apache.activemq.broker.region.Destination;
 import org.apache.activemq.broker.region.DurableTopicSubscription;
+import org.apache.activemq.broker.region.PrefetchSubscription;
 import org.apache.activemq.broker.region.Queue;
 import org.apache.activemq.broker.region.QueueBrowserSubscription;
 import org.apache.activemq.broker.region.QueueSubscription;
@@ -65,6 +67,14 @@ private boolean producerFlowControl = true;
 private boolean alwaysRetroactive = false;
 private long blockedProducerWarningInterval = Destination.DEFAULT_BLOCKED_PRODUCER_WARNING_INTERVAL;
 private boolean optimizedDispatch=false;
+private boolean shardedDispatch=false;
+private int dispatchShardCount=Queue.DEFAULT_DISPATCH_SHARD_COUNT;
+private boolean selectorIndex=false;
+private boolean adaptivePrefetch=false;
+private int adaptivePrefetchMin=AdaptivePrefetchController.DEFAULT_MIN_WINDOW;
+private int adaptivePrefetchMax=AdaptivePrefetchController.DEFAULT_MAX_WINDOW;
+private long adaptivePrefetchTargetLatency=AdaptivePrefetchController.DEFAULT_TARGET_LATENCY;
+private long adaptivePrefetchSampleInterval=AdaptivePrefetchController.DEFAULT_SAMPLE_INTERVAL;
 private int maxPageSize=BaseDestination.MAX_PAGE_SIZE;
 private int maxBrowsePageSize=BaseDestination.MAX_BROWSE_PAGE_SIZE;
 private boolean useCache=true;
@@ -122,6 +132,8 @@ queue.setMessages(messages);
 queue.setUseConsumerPriority(isUseConsumerPriority());
 queue.setStrictOrderDispatch(isStrictOrderDispatch());
 queue.setOptimizedDispatch(isOptimizedDispatch());
+queue.setShardedDispatch(isShardedDispatch());
+queue.setDispatchShardCount(getDispatchShardCount());
 queue.setLazyDispatch(isLazyDispatch());
 queue.setTimeBeforeDispatchStarts(getTimeBeforeDispatchStarts());
 queue.setConsumersBeforeDispatchStarts(getConsumersBeforeDispatchStarts());
@@ -143,6 +155,7 @@ if (memoryLimit > 0) {
 topic.getMemoryUsage().setLimit(memoryLimit);
 }
 topic.setLazyDispatch(isLazyDispatch());
+topic.setSelectorIndex(isSelectorIndex());
 }
 
 public void baseConfiguration(Broker broker,BaseDestination destination) {
@@ -232,6 +245,7 @@ sub.setMaxAuditDepth(auditDepth);
 }
 sub.setMaxProducersToAudit(getMaxProducersToAudit());
 sub.setUsePrefetchExtension(isUsePrefetchExtension());
+configureAdaptivePrefetch(sub);
 }
 
 public void configure(Broker broker, SystemUsage memoryManager, QueueBrowserSubscription sub) {
@@ -244,6 +258,14 @@ public void configure(Broker broker, SystemUsage memoryManager, QueueSubscriptio
 configurePrefetch(sub);
 sub.setCursorMemoryHighWaterMark(getCursorMemoryHighWaterMark());
 sub.setUsePrefetchExtension(isUsePrefetchExtension());
+configureAdaptivePrefetch(sub);
+}
+
+public void configureAdaptivePrefetch(PrefetchSubscription sub) {
+if (isAdaptivePrefetch()) {
+sub.setAdaptivePrefetch(new AdaptivePrefetchController(getAdaptivePrefetchMin(), getAdaptivePrefetchMax(),
+getAdaptivePrefetchTargetLatency(), getAdaptivePrefetchSampleInterval(), sub.getPrefetchSize()));
+}
 }
 
 public void configurePrefetch(Subscription subscription) {
@@ -523,6 +545,90 @@ public void setOptimizedDispatch(boolean optimizedDispatch) {
 this.optimizedDispatch = optimizedDispatch;
 }
 
+public boolean isShardedDispatch() {
+return shardedDispatch;
+}
+
+/**
+* Dispatch queue messages through per consumer group shards rather than
+* the single, re-sorted consumer list, useful for queues with
+* many competing consumers.
+*/
+public void setShardedDispatch(boolean shardedDispatch) {
+this.shardedDispatch = shardedDispatch;
+}
+
+public int getDispatchShardCount() {
+return dispatchShardCount;
+}
+
+public void setDispatchShardCount(int dispatchShardCount) {
+this.dispatchShardCount = dispatchShardCount;
+}
+
+public boolean isAdaptivePrefetch() {
+return adaptivePrefetch;
+}
+
+/**
+* Size the dispatch window of queue and durable topic subscriptions from
+* the ack rate of their consumers, so slow consumers hold fewer messages.
+* The window stays between adaptivePrefetchMin and adaptivePrefetchMax and
+* never exceeds the consumer's prefetch.
+*/
+public void setAdaptivePrefetch(boolean adaptivePrefetch) {
+this.adaptivePrefetch = adaptivePrefetch;
+}
+
+public int getAdaptivePrefetchMin() {
+return adaptivePrefetchMin;
+}
+
+public void setAdaptivePrefetchMin(int adaptivePrefetchMin) {
+this.adaptivePrefetchMin = adaptivePrefetchMin;
+}
+
+public int getAdaptivePrefetchMax() {
+return adaptivePrefetchMax;
+}
+
+public void setAdaptivePrefetchMax(int adaptivePrefetchMax) {
+this.adaptivePrefetchMax = adaptivePrefetchMax;
+}
+
+public long getAdaptivePrefetchTargetLatency() {
+return adaptivePrefetchTargetLatency;
+}
+
+/**
+* @param adaptivePrefetchTargetLatency the time in milliseconds a consumer
+*        should need to work through its window
+*/
+public void setAdaptivePrefetchTargetLatency(long adaptivePrefetchTargetLatency) {
+this.adaptivePrefetchTargetLatency = adaptivePrefetchTargetLatency;
+}
+
+public long getAdaptivePrefetchSampleInterval() {
+return adaptivePrefetchSampleInterval;
+}
+
+public void setAdaptivePrefetchSampleInterval(long adaptivePrefetchSampleInterval) {
+this.adaptivePrefetchSampleInterval = adaptivePrefetchSampleInterval;
+}
+
+public boolean isSelectorIndex() {
+return selectorIndex;
+}
+
+/**
+* Index topic subscriptions by the property values their selectors require
+* so a message is only matched against subscriptions that can accept it,
+* useful for topics with many selector subscriptions.
+*/
+public void setSelectorIndex(boolean selectorIndex) {
+this.selectorIndex = selectorIndex;
+}
+
 public int getMaxPageSize() {
 return maxPageSize;
 }
@@ -19,6 +19,7 @@ package org.apache.activemq.network;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
@@ -29,6 +30,7 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -44,6 +46,8 @@ import org.apache.activemq.broker.BrokerService;
 import org.apache.activemq.broker.BrokerServiceAware;
 import org.apache.activemq.broker.ConnectionContext;
 import org.apache.activemq.broker.TransportConnection;
+import org.apache.activemq.broker.jmx.AnnotatedMBean;
+import org.apache.activemq.broker.jmx.NetworkBridgeForwardingView;
 import org.apache.activemq.broker.region.AbstractRegion;
 import org.apache.activemq.broker.region.DurableTopicSubscription;
 import org.apache.activemq.broker.region.Region;
@@ -66,6 +70,7 @@ import org.apache.activemq.command.DataStructure;
 import org.apache.activemq.command.DestinationInfo;
 import org.apache.activemq.command.ExceptionResponse;
 import org.apache.activemq.command.KeepAliveInfo;
+import org.apache.activemq.command.LocalTransactionId;
 import org.apache.activemq.command.Message;
 import org.apache.activemq.command.MessageAck;
 import org.apache.activemq.command.MessageDispatch;
@@ -75,6 +80,7 @@ import org.apache.activemq.command.RemoveInfo;
 import org.apache.activemq.command.Response;
 import org.apache.activemq.command.SessionInfo;
 import org.apache.activemq.command.ShutdownInfo;
+import org.apache.activemq.command.TransactionInfo;
 import org.apache.activemq.command.WireFormatInfo;
 import org.apache.activemq.filter.DestinationFilter;
 import org.apache.activemq.filter.MessageEvaluationContext;
@@ -153,6 +159,26 @@ private final ExecutorService serialExecutor = Executors.newSingleThreadExecutor
 private Transport duplexInboundLocalBroker = null;
 private ProducerInfo duplexInboundLocalProducerInfo;
 
+private int forwardingBatchSize;
+private long forwardingBatchTimeout = 10;
+private int maxOutstandingForwardingBatches = 4;
+private final Object batchMutex = new Object();
+private final LongSequenceGenerator batchTransactionIdGenerator = new LongSequenceGenerator();
+private ForwardingBatch currentBatch;
+private volatile Semaphore batchWindow;
+private boolean batchFlushScheduled;
+private ObjectName forwardingViewObjectName;
+private final AtomicLong forwardedBatchCounter = new AtomicLong();
+private final AtomicLong unconfirmedForwardCounter = new AtomicLong();
+private final AtomicLong totalBatchLatency = new AtomicLong();
+private volatile long lastBatchLatency;
+private final Runnable batchFlushTask = new Runnable() {
+@Override
+public void run() {
+flushForwardingBatch();
+}
+};
+
 public DemandForwardingBridgeSupport(NetworkBridgeConfiguration configuration, Transport localBroker, Transport remoteBroker) {
 this.configuration = configuration;
 this.localBroker = localBroker;
@@ -255,6 +281,7 @@ LOG.debug(" stopping " + configuration.getBrokerName() + " bridge to " + remoteB
 
 futureRemoteBrokerInfo.cancel(true);
 futureLocalBrokerInfo.cancel(true);
+stopForwardingBatches();
 
 NetworkBridgeListener l = this.networkBridgeListener;
 if (l != null) {
@@ -549,6 +576,7 @@ remoteBroker.oneway(remoteSessionInfo);
 producerInfo = new ProducerInfo(remoteSessionInfo, 1);
 producerInfo.setResponseRequired(false);
 remoteBroker.oneway(producerInfo);
+startForwardingBatches();
 // Listen to consumer advisory messages on the remote broker to determine demand.
 if (!configuration.isStaticBridge()) {
 demandConsumerInfo = new ConsumerInfo(remoteSessionInfo, 1);
@@ -986,7 +1014,14 @@ sub.decrementOutstandingResponses();
 return;
 }
 
-if (message.isPersistent() || configuration.isAlwaysSyncSend()) {
+if (batchWindow != null && !message.getDestination().isTemporary()) {
+
+// forwarded as part of a remote transaction, acked locally once
+// the transaction is committed on the remote broker. All messages
+// of a destination take this path so their order is kept
+forwardInBatch(md, sub, message);
+
+} else if (message.isPersistent() || configuration.isAlwaysSyncSend()) {
 
 // The message was not sent using async send, so we should only
 // ack the local broker when we get confirmation that the remote
@@ -1052,6 +1087,175 @@ serviceLocalException(e);
 }
 }
 
+/**
+* Sends the message as part of the current forwarding batch, a remote
+* transaction that is committed once it holds forwardingBatchSize messages
+* or has been open for forwardingBatchTimeout milliseconds.
+*/
+private void forwardInBatch(MessageDispatch md, DemandSubscription sub, Message message) throws IOException {
+ForwardingBatch full = null;
+synchronized (batchMutex) {
+if (currentBatch == null) {
+LocalTransactionId transactionId = new LocalTransactionId(remoteConnectionInfo.getConnectionId(), batchTransactionIdGenerator.getNextSequenceId());
+remoteBroker.oneway(new TransactionInfo(remoteConnectionInfo.getConnectionId(), transactionId, TransactionInfo.BEGIN));
+currentBatch = new ForwardingBatch(transactionId);
+}
+message.setTransactionId(currentBatch.transactionId);
+try {
+remoteBroker.oneway(message);
+} catch (IOException e) {
+sub.decrementOutstandingResponses();
+throw e;
+}
+currentBatch.add(md, sub);
+unconfirmedForwardCounter.incrementAndGet();
+if (currentBatch.size() >= forwardingBatchSize) {
+full = currentBatch;
+}
+}
+if (full != null) {
+// blocks the local dispatch while the window of outstanding batches
+// is full, which pushes back on the local broker like a full prefetch
+try {
+while (!batchWindow.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+if (disposed.get()) {
+return;
+}
+}
+} catch (InterruptedException e) {
+Thread.currentThread().interrupt();
+return;
+}
+synchronized (batchMutex) {
+if (currentBatch != full) {
+// already committed by the flush task
+batchWindow.release();
+return;
+}
+currentBatch = null;
+commitBatch(full);
+}
+}
+}
+
+/**
+* Commits the current forwarding batch when it has been open for at least
+* forwardingBatchTimeout milliseconds and a slot of the window is free.
+*/
+private void flushForwardingBatch() {
+if (disposed.get() || !batchWindow.tryAcquire()) {
+return;
+}
+synchronized (batchMutex) {
+ForwardingBatch batch = currentBatch;
+if (batch == null || System.currentTimeMillis() - batch.startTime < forwardingBatchTimeout) {
+batchWindow.release();
+return;
+}
+currentBatch = null;
+try {
+commitBatch(batch);
+} catch (IOException e) {
+serviceLocalException(e);
+}
+}
+}
+
+/**
+* Sends the commit of a batch, must be called with the batchMutex held so
+* that batches are committed on the remote broker in the order their
+* messages were sent. The caller owns a slot of the window which is given
+* back once the commit completes.
+*/
+private void commitBatch(final ForwardingBatch batch) throws IOException {
+TransactionInfo commit = new TransactionInfo(remoteConnectionInfo.getConnectionId(), batch.transactionId, TransactionInfo.COMMIT_ONE_PHASE);
+try {
+remoteBroker.asyncRequest(commit, new ResponseCallback() {
+@Override
+public void onCompletion(FutureResponse future) {
+try {
+Response response = future.getResult();
+if (response.isException()) {
+ExceptionResponse er = (ExceptionResponse) response;
+for (MessageDispatch md : batch.dispatches) {
+serviceLocalException(md, er.getException());
+}
+} else {
+for (MessageDispatch md : batch.dispatches) {
+localBroker.oneway(new MessageAck(md, MessageAck.INDIVIDUAL_ACK_TYPE, 1));
+}
+dequeueCounter.addAndGet(batch.size());
+}
+} catch (IOException e) {
+serviceLocalException(e);
+} finally {
+completeBatch(batch);
+}
+}
+});
+} catch (IOException e) {
+completeBatch(batch);
+throw e;
+}
+}
+
+private void completeBatch(ForwardingBatch batch) {
+for (DemandSubscription sub : batch.subscriptions) {
+sub.decrementOutstandingResponses();
+}
+long latency = System.currentTimeMillis() - batch.startTime;
+lastBatchLatency = latency;
+totalBatchLatency.addAndGet(latency);
+forwardedBatchCounter.incrementAndGet();
+unconfirmedForwardCounter.addAndGet(-batch.size());
+batchWindow.release();
+}
+
+private void startForwardingBatches() {
+if (forwardingBatchSize > 0 && !batchFlushScheduled) {
+batchWindow = new Semaphore(maxOutstandingForwardingBatches);
+brokerService.getScheduler().executePeriodically(batchFlushTask, forwardingBatchTimeout);
+batchFlushScheduled = true;
+}
+}
+
+private void stopForwardingBatches() {
+if (batchFlushScheduled) {
+brokerService.getScheduler().cancel(batchFlushTask);
+batchFlushScheduled = false;
+}
+// an open batch is rolled back by the remote broker when the
+// connection goes away, its messages stay unacked locally
+synchronized (batchMutex) {
+currentBatch = null;
+}
+unregisterForwardingView();
+}
+
+private void registerForwardingView() {
+if (forwardingBatchSize > 0 && mbeanObjectName != null && brokerService != null && brokerService.isUseJmx()) {
+try {
+ObjectName objectName = new ObjectName(mbeanObjectName.toString() + ",service=Forwarding");
+AnnotatedMBean.registerMBean(brokerService.getManagementContext(), new NetworkBridgeForwardingView(this), objectName);
+forwardingViewObjectName = objectName;
+} catch (Throwable e) {
+LOG.debug("Network bridge forwarding MBean could not be registered: " + e, e);
+}
+}
+}
+
+private void unregisterForwardingView() {
+ObjectName objectName = forwardingViewObjectName;
+forwardingViewObjectName = null;
+if (objectName != null) {
+try {
+brokerService.getManagementContext().unregisterMBean(objectName);
+} catch (Throwable e) {
+LOG.debug("Network bridge forwarding MBean could not be unregistered: " + e, e);
+}
+}
+}
+
 private boolean suppressMessageDispatch(MessageDispatch md, DemandSubscription sub) throws Exception {
 boolean suppress = false;
 // for durable subs, suppression via filter leaves dangling acks so we
@@ -1560,6 +1764,67 @@ public long getEnqueueCounter() {
 return enqueueCounter.get();
 }
 
+public int getForwardingBatchSize() {
+return forwardingBatchSize;
+}
+
+/**
+* Sets the number of messages that are forwarded in one remote
+* transaction, so a whole batch costs a single round trip to the remote
+* broker. The default of 0 forwards every message with its own request.
+*/
+public void setForwardingBatchSize(int forwardingBatchSize) {
+this.forwardingBatchSize = forwardingBatchSize;
+}
+
+public long getForwardingBatchTimeout() {
+return forwardingBatchTimeout;
+}
+
+/**
+* Sets the time in milliseconds after which an incomplete batch is
+* committed.
+*/
+public void setForwardingBatchTimeout(long forwardingBatchTimeout) {
+this.forwardingBatchTimeout = forwardingBatchTimeout;
+}
+
+public int getMaxOutstandingForwardingBatches() {
+return maxOutstandingForwardingBatches;
+}
+
+/**
+* Sets the number of batches that may await their commit response before
+* the bridge stops taking messages from the local broker.
+*/
+public void setMaxOutstandingForwardingBatches(int maxOutstandingForwardingBatches) {
+this.maxOutstandingForwardingBatches = maxOutstandingForwardingBatches;
+}
+
+/**
+* @return the number of committed forwarding batches
+*/
+public long getForwardedBatchCount() {
+return forwardedBatchCounter.get();
+}
+
+/**
+* @return the number of messages sent to the remote broker whose batch has
+*         not been confirmed yet
+*/
+public long getUnconfirmedForwardCount() {
+return unconfirmedForwardCounter.get();
+}
+
+public long getLastBatchLatency() {
+return lastBatchLatency;
+}
+
+public long getAverageBatchLatency() {
+long count = forwardedBatchCounter.get();
+return count == 0 ? 0 : totalBatchLatency.get() / count;
+}
+
 protected boolean isDuplex() {
 return configuration.isDuplex() || createdByDuplex;
 }
@@ -1577,7 +1842,9 @@ localBrokerPath[0] = localBrokerId;
 
 @Override
 public void setMbeanObjectName(ObjectName objectName) {
+unregisterForwardingView();
 this.mbeanObjectName = objectName;
+registerForwardingView();
 }
 
 @Override
@@ -1585,6 +1852,29 @@ public ObjectName getMbeanObjectName() {
 return mbeanObjectName;
 }
 
+/**
+* The messages forwarded in one remote transaction.
+*/
+private static final class ForwardingBatch {
+final LocalTransactionId transactionId;
+final long startTime = System.currentTimeMillis();
+final List<MessageDispatch> dispatches = new ArrayList<MessageDispatch>();
+final List<DemandSubscription> subscriptions = new ArrayList<DemandSubscription>();
+
+ForwardingBatch(LocalTransactionId transactionId) {
+this.transactionId = transactionId;
+}
+
+void add(MessageDispatch md, DemandSubscription sub) {
+dispatches.add(md);
+subscriptions.add(sub);
+}
+
+int size() {
+return dispatches.size();
+}
+}
+
 /*
 * Used to allow for async tasks to await receipt of the BrokerInfo from the local and
 * remote sides of the network bridge.
@@ -19,12 +19,16 @@ package org.apache.activemq.transport.vm;
 import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.activemq.command.Message;
+import org.apache.activemq.command.MessageDispatch;
 import org.apache.activemq.command.ShutdownInfo;
 import org.apache.activemq.thread.Task;
 import org.apache.activemq.thread.TaskRunner;
@@ -34,9 +38,18 @@ import org.apache.activemq.transport.ResponseCallback;
 import org.apache.activemq.transport.Transport;
 import org.apache.activemq.transport.TransportDisposedIOException;
 import org.apache.activemq.transport.TransportListener;
+import org.apache.activemq.util.ConcurrentRingBuffer;
 
 /**
 * A Transport implementation that uses direct method invocations.
+*
+* In async mode commands are normally queued on a LinkedBlockingQueue and
+* dispatched one per task runner iteration. With ringDispatch enabled they
+* are queued on a lock free ring instead and each iteration dispatches up to
+* maxDispatchBatch of them. With copyMessages enabled messages, sent as well
+* as dispatched, are handed to the peer as shallow copies that share the
+* marshalled body, which isolates the headers and properties of both sides
+* without the full marshalling of the marshal option.
 */
 public class VMTransport implements Transport, Task {
 
@@ -50,11 +63,17 @@ protected boolean marshal;
 protected boolean network;
 protected boolean async = true;
 protected int asyncQueueDepth = 2000;
+protected boolean ringDispatch;
+protected int maxDispatchBatch = 100;
+protected boolean copyMessages;
 protected final URI location;
 protected final long id;
 
 // Implementation
 private LinkedBlockingQueue<Object> messageQueue;
+private ConcurrentRingBuffer<Object> dispatchRing;
+private final Object ringSpace = new Object();
+private int ringWaiters;
 private TaskRunnerFactory taskRunnerFactory;
 private TaskRunner taskRunner;
 
@@ -89,6 +108,15 @@ if (peer.disposed.get()) {
 throw new TransportDisposedIOException("Peer (" + peer.toString() + ") disposed.");
 }
 
+if (copyMessages) {
+command = copy(command);
+}
+
+if (peer.async && peer.ringDispatch) {
+peer.enqueue(command);
+return;
+}
+
 if (peer.async || !peer.started.get()) {
 peer.getMessageQueue().put(command);
 peer.wakeup();
@@ -104,6 +132,55 @@ throw iioe;
 dispatch(peer, peer.messageQueue, command);
 }
 
+/**
+* @return a copy of a command that carries a message, the command itself
+*         otherwise
+*/
+private Object copy(Object command) {
+if (command instanceof Message) {
+return ((Message) command).copy();
+}
+if (command instanceof MessageDispatch) {
+MessageDispatch md = (MessageDispatch) command;
+if (md.getMessage() != null) {
+MessageDispatch copy = new MessageDispatch();
+copy.setConsumerId(md.getConsumerId());
+copy.setDestination(md.getDestination());
+copy.setMessage(md.getMessage().copy());
+copy.setRedeliveryCounter(md.getRedeliveryCounter());
+return copy;
+}
+}
+return command;
+}
+
+/**
+* Adds a command to this transport's dispatch ring, waiting for space while
+* the ring is full.
+*/
+protected void enqueue(Object command) throws IOException, InterruptedException {
+ConcurrentRingBuffer<Object> ring = getDispatchRing();
+if (!ring.offer(command)) {
+synchronized (ringSpace) {
+ringWaiters++;
+try {
+// iterateRing signals under this lock once it took commands off
+// the ring, so retrying under it cannot miss that signal
+while (!ring.offer(command)) {
+if (disposed.get()) {
+throw new TransportDisposedIOException("Peer (" + toString() + ") disposed.");
+}
+wakeup();
+ringSpace.wait();
+}
+} finally {
+ringWaiters--;
+}
+}
+}
+wakeup();
+}
+
 public void dispatch(VMTransport transport, BlockingQueue<Object> pending, Object command) {
 TransportListener transportListener = transport.getTransportListener();
 if (transportListener != null) {
@@ -174,13 +251,22 @@ if (disposed.compareAndSet(false, true)) {
 
 TaskRunner tr = taskRunner;
 LinkedBlockingQueue<Object> mq = this.messageQueue;
+ConcurrentRingBuffer<Object> ring = this.dispatchRing;
 
 taskRunner = null;
 messageQueue = null;
+dispatchRing = null;
 
 if (mq != null) {
 mq.clear();
 }
+if (ring != null) {
+while (ring.poll() != null) {
+}
+synchronized (ringSpace) {
+ringSpace.notifyAll();
+}
+}
 
 // Allow pending deliveries to finish up, but don't wait
 // forever in case of an stalled onCommand.
@@ -226,6 +312,10 @@ public boolean iterate() {
 
 final TransportListener tl = transportListener;
 
+if (ringDispatch) {
+return iterateRing(tl);
+}
+
 LinkedBlockingQueue<Object> mq;
 try {
 mq = getMessageQueue();
@@ -249,6 +339,39 @@ return false;
 }
 }
 
+private boolean iterateRing(TransportListener tl) {
+ConcurrentRingBuffer<Object> ring;
+try {
+ring = getDispatchRing();
+} catch (TransportDisposedIOException e) {
+return false;
+}
+
+List<Object> batch = new ArrayList<Object>(Math.min(maxDispatchBatch, ring.size() + 1));
+Object next;
+while (batch.size() < maxDispatchBatch && (next = ring.poll()) != null) {
+batch.add(next);
+}
+if (!batch.isEmpty()) {
+synchronized (ringSpace) {
+if (ringWaiters > 0) {
+ringSpace.notifyAll();
+}
+}
+}
+for (Object command : batch) {
+if (disposed.get()) {
+return false;
+}
+if (command == DISCONNECT) {
+tl.onException(new TransportDisposedIOException("Peer (" + peer.toString() + ") disposed."));
+} else {
+tl.onCommand(command);
+}
+}
+return !ring.isEmpty() && !disposed.get();
+}
+
 public void setTransportListener(TransportListener commandListener) {
 this.transportListener = commandListener;
 }
@@ -278,6 +401,23 @@ messageQueue = result = new LinkedBlockingQueue<Object>(this.asyncQueueDepth);
 return result;
 }
 
+protected ConcurrentRingBuffer<Object> getDispatchRing() throws TransportDisposedIOException {
+ConcurrentRingBuffer<Object> result = dispatchRing;
+if (result == null) {
+synchronized (this) {
+result = dispatchRing;
+if (result == null) {
+if (disposed.get()) {
+throw new TransportDisposedIOException("The Transport has been disposed");
+}
+
+dispatchRing = result = new ConcurrentRingBuffer<Object>(this.asyncQueueDepth);
+}
+}
+}
+return result;
+}
+
 protected TaskRunner getTaskRunner() throws TransportDisposedIOException {
 TaskRunner result = taskRunner;
 if (result == null) {
@@ -379,6 +519,42 @@ public void setAsyncQueueDepth(int asyncQueueDepth) {
 this.asyncQueueDepth = asyncQueueDepth;
 }
 
+public boolean isRingDispatch() {
+return ringDispatch;
+}
+
+/**
+* @param ringDispatch queue async commands on a lock free ring and
+*        dispatch them in batches
+*/
+public void setRingDispatch(boolean ringDispatch) {
+this.ringDispatch = ringDispatch;
+}
+
+public int getMaxDispatchBatch() {
+return maxDispatchBatch;
+}
+
+/**
+* @param maxDispatchBatch the number of commands dispatched per task
+*        runner iteration in ring dispatch mode
+*/
+public void setMaxDispatchBatch(int maxDispatchBatch) {
+this.maxDispatchBatch = maxDispatchBatch;
+}
+
+public boolean isCopyMessages() {
+return copyMessages;
+}
+
+/**
+* @param copyMessages hand sent and dispatched messages to the peer as
+*        copies sharing the marshalled body
+*/
+public void setCopyMessages(boolean copyMessages) {
+this.copyMessages = copyMessages;
+}
+
 public boolean isFaultTolerant() {
 return false;
 }
@@ -0,0 +1,121 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements.  See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License.  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.activemq.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+* A bounded, lock free ring buffer that is safe for any number of producers
+* and consumers.
+*
+* Every slot carries a sequence number that tells producers and consumers
+* whether the slot is free for the current lap of the ring, so offer and poll
+* only ever contend on a single compare and set of the head or tail counter.
+* The capacity is rounded up to the next power of two.
+*/
+public class ConcurrentRingBuffer<E> {
+
+private final int mask;
+private final AtomicReferenceArray<E> elements;
+private final AtomicLongArray sequences;
+private final AtomicLong head = new AtomicLong();
+private final AtomicLong tail = new AtomicLong();
+
+public ConcurrentRingBuffer(int capacity) {
+if (capacity <= 0) {
+throw new IllegalArgumentException("capacity must be > 0: " + capacity);
+}
+int size = 1;
+while (size < capacity) {
+size <<= 1;
+}
+this.mask = size - 1;
+this.elements = new AtomicReferenceArray<E>(size);
+this.sequences = new AtomicLongArray(size);
+for (int i = 0; i < size; i++) {
+sequences.set(i, i);
+}
+}
+
+/**
+* @return true if the element was added, false if the ring is full
+*/
+public boolean offer(E element) {
+if (element == null) {
+throw new NullPointerException();
+}
+while (true) {
+long position = tail.get();
+int index = (int) (position & mask);
+long available = sequences.get(index) - position;
+if (available == 0) {
+if (tail.compareAndSet(position, position + 1)) {
+elements.lazySet(index, element);
+// publishes the element to consumers
+sequences.set(index, position + 1);
+return true;
+}
+} else if (available < 0) {
+return false;
+}
+}
+}
+
+/**
+* @return the oldest element or null if the ring is empty
+*/
+public E poll() {
+while (true) {
+long position = head.get();
+int index = (int) (position & mask);
+long available = sequences.get(index) - (position + 1);
+if (available == 0) {
+if (head.compareAndSet(position, position + 1)) {
+E element = elements.get(index);
+elements.lazySet(index, null);
+// hands the slot back to producers for the next lap
+sequences.set(index, position + mask + 1);
+return element;
+}
+} else if (available < 0) {
+return null;
+}
+}
+}
+
+/**
+* @return an estimate of the number of elements, exact when the ring is
+*         quiescent
+*/
+public int size() {
+long size = tail.get() - head.get();
+if (size < 0) {
+return 0;
+}
+return (int) Math.min(size, capacity());
+}
+
+public boolean isEmpty() {
+return tail.get() == head.get();
+}
+
+public int capacity() {
+return mask + 1;
+}
+}
\ No newline at end of file
@@ -21,6 +21,7 @@ import java.util.Calendar;
 import java.util.Collections;
 import java.util.List;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.jms.MessageFormatException;
 
 public class CronParser {
@@ -31,6 +32,10 @@ private static final int HOURS = 1;
 private static final int DAY_OF_MONTH = 2;
 private static final int MONTH = 3;
 private static final int DAY_OF_WEEK = 4;
+private static final int MAX_CACHED_ENTRIES = 1024;
+
+// parsed cron entries, the same few entries are evaluated over and over
+private static final ConcurrentHashMap<String, ParsedEntry> PARSED_ENTRIES = new ConcurrentHashMap<String, ParsedEntry>();
 
 public static long getNextScheduledTime(final String cronEntry, long currentTime) throws MessageFormatException {
 
@@ -48,8 +53,13 @@ result = result / 1000 * 1000;
 return result;
 }
 
-List<String> list = tokenize(cronEntry);
-List<CronEntry> entries = buildCronEntries(list);
+ParsedEntry parsed = parse(cronEntry);
+NextTime last = parsed.last;
+if (last != null && last.currentTime == currentTime) {
+return last.result;
+}
+
+List<CronEntry> entries = parsed.entries;
 Calendar working = Calendar.getInstance();
 working.setTimeInMillis(currentTime);
 working.set(Calendar.SECOND, 0);
@@ -115,9 +125,25 @@ if (result <= currentTime) {
 throw new ArithmeticException("Unable to compute next scheduled exection time.");
 }
 
+parsed.last = new NextTime(currentTime, result);
 return result;
 }
 
+static ParsedEntry parse(final String cronEntry) {
+ParsedEntry parsed = PARSED_ENTRIES.get(cronEntry);
+if (parsed == null) {
+parsed = new ParsedEntry(buildCronEntries(tokenize(cronEntry)));
+if (PARSED_ENTRIES.size() >= MAX_CACHED_ENTRIES) {
+PARSED_ENTRIES.clear();
+}
+ParsedEntry existing = PARSED_ENTRIES.putIfAbsent(cronEntry, parsed);
+if (existing != null) {
+parsed = existing;
+}
+}
+return parsed;
+}
+
 protected static long doUpdateCurrentMonth(Calendar working, CronEntry month) throws MessageFormatException {
 
 int currentMonth = working.get(Calendar.MONTH) + 1;
@@ -336,6 +362,32 @@ result.add(dayOfWeek);
 return result;
 }
 
+/**
+* The entries of a cron expression together with the last computed next
+* scheduled time. Jobs are scheduled on whole seconds, so many of them ask
+* for the next time of the same entry at the same current time.
+*/
+static class ParsedEntry {
+
+final List<CronEntry> entries;
+volatile NextTime last;
+
+ParsedEntry(List<CronEntry> entries) {
+this.entries = entries;
+}
+}
+
+static class NextTime {
+
+final long currentTime;
+final long result;
+
+NextTime(long currentTime, long result) {
+this.currentTime = currentTime;
+this.result = result;
+}
+}
+
 static class CronEntry {
 
 final String name;
@@ -16,9 +16,11 @@
 */
 package org.apache.activemq.command;
 
-import java.util.concurrent.atomic.AtomicReference;
-
 /**
+* Identifies a message by its producer and the producer's sequence number.
+* Identity, hashing and ordering only use those binary fields, the text form
+* is built the first time it is asked for.
+*
 * @openwire:marshaller code="110"
 *
 */
@@ -33,7 +35,7 @@ protected long brokerSequenceId;
 private transient String key;
 private transient int hashCode;
 
-private transient AtomicReference<Object> dataLocator = new AtomicReference<Object>();
+private transient volatile Object dataLocator;
 private transient Object entryLocator;
 private transient Object plistLocator;
 
@@ -64,15 +66,33 @@ this.producerSequenceId = producerSequenceId;
 */
 public void setValue(String messageKey) {
 key = messageKey;
+hashCode = 0;
 // Parse off the sequenceId
-int p = messageKey.lastIndexOf(":");
+int p = messageKey.lastIndexOf(':');
 if (p >= 0) {
-producerSequenceId = Long.parseLong(messageKey.substring(p + 1));
+producerSequenceId = parseSequence(messageKey, p + 1);
 messageKey = messageKey.substring(0, p);
 }
 producerId = new ProducerId(messageKey);
 }
 
+private static long parseSequence(String text, int start) {
+int end = text.length();
+if (start >= end || end - start > 18) {
+// empty, signed or possibly overflowing, let Long report it
+return Long.parseLong(text.substring(start));
+}
+long value = 0;
+for (int i = start; i < end; i++) {
+int digit = text.charAt(i) - '0';
+if (digit < 0 || digit > 9) {
+return Long.parseLong(text.substring(start));
+}
+value = value * 10 + digit;
+}
+return value;
+}
+
 /**
 * Sets the transient text view of the message which will be ignored if the
 * message is marshaled on a transport; so is only for in-JVM changes to
@@ -99,17 +119,22 @@ return producerSequenceId == id.producerSequenceId && producerId.equals(id.produ
 }
 
 public int hashCode() {
-if (hashCode == 0) {
-hashCode = producerId.hashCode() ^ (int)producerSequenceId;
+int h = hashCode;
+if (h == 0) {
+h = producerId.hashCode() * 31 + (int)(producerSequenceId ^ (producerSequenceId >>> 32));
+hashCode = h;
 }
-return hashCode;
+return h;
 }
 
 public String toString() {
-if (key == null) {
-key = producerId.toString() + ":" + producerSequenceId;
+String k = key;
+if (k == null) {
+String producer = producerId.toString();
+k = new StringBuilder(producer.length() + 20).append(producer).append(':').append(producerSequenceId).toString();
+key = k;
 }
-return key;
+return k;
 }
 
 /**
@@ -121,6 +146,7 @@ return producerId;
 
 public void setProducerId(ProducerId producerId) {
 this.producerId = producerId;
+this.hashCode = 0;
 }
 
 /**
@@ -132,6 +158,7 @@ return producerSequenceId;
 
 public void setProducerSequenceId(long producerSequenceId) {
 this.producerSequenceId = producerSequenceId;
+this.hashCode = 0;
 }
 
 /**
@@ -153,21 +180,26 @@ public MessageId copy() {
 MessageId copy = new MessageId(producerId, producerSequenceId);
 copy.key = key;
 copy.brokerSequenceId = brokerSequenceId;
-copy.dataLocator = new AtomicReference<Object>(dataLocator != null ? dataLocator.get() : null);
+copy.dataLocator = dataLocator;
 copy.entryLocator = entryLocator;
 copy.plistLocator = plistLocator;
 return copy;
 }
 
 /**
-* @param
-* @return
+* Orders ids of the same producer by their sequence number and ids of
+* different producers by the text of the producer id.
+*
 * @see java.lang.Comparable#compareTo(java.lang.Object)
 */
 public int compareTo(MessageId other) {
 int result = -1;
 if (other != null) {
-result = this.toString().compareTo(other.toString());
+if (producerId.equals(other.producerId)) {
+result = producerSequenceId < other.producerSequenceId ? -1 : (producerSequenceId == other.producerSequenceId ? 0 : 1);
+} else {
+result = producerId.toString().compareTo(other.producerId.toString());
+}
 }
 return result;
 }
@@ -177,7 +209,7 @@ return result;
 * by the message stores.
 */
 public Object getDataLocator() {
-return dataLocator.get();
+return dataLocator;
 }
 
 /**
@@ -185,7 +217,7 @@ return dataLocator.get();
 * by the message stores.
 */
 public void setDataLocator(Object value) {
-this.dataLocator.set(value);
+this.dataLocator = value;
 }
 
 public Object getEntryLocator() {
@@ -16,15 +16,35 @@
 */
 package org.apache.activemq.filter;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
 import javax.jms.JMSException;
 
 /**
 * A filter performing a comparison of two objects
 *
+* When used as a filter through {@link #matches(MessageEvaluationContext)} a
+* chain of ANDs or ORs is flattened into a single list of terms. Only
+* whether each term is TRUE matters then, so the terms can be tried in any
+* order: the first matches count how often each term decided the result and
+* the terms are then re-ordered once so the most selective ones are tried
+* first. After that sample the hot path keeps no statistics at all.
+* {@link #evaluate(MessageEvaluationContext)} keeps the left to right
+* evaluation of the expression tree.
 *
 */
 public abstract class LogicExpression extends BinaryExpression implements BooleanExpression {
 
+private static final int SAMPLE_SIZE = 1024;
+
+private volatile Term[] terms;
+private volatile boolean sampling = true;
+private int conjunction = -1;
+private int samples;
+
 /**
 * @param left
 * @param right
@@ -82,8 +102,116 @@ return "AND";
 public abstract Object evaluate(MessageEvaluationContext message) throws JMSException;
 
 public boolean matches(MessageEvaluationContext message) throws JMSException {
+Term[] current = terms;
+if (current == null) {
+current = flatten();
+}
+if (current.length == 0) {
 Object object = evaluate(message);
 return object != null && object == Boolean.TRUE;
 }
+// an AND fails on the first term that is not TRUE, an OR succeeds on
+// the first term that is
+boolean and = conjunction == 1;
+int decided = -1;
+for (int i = 0; i < current.length; i++) {
+if (current[i].expression.matches(message) != and) {
+decided = i;
+break;
+}
+}
+if (sampling) {
+sample(current, decided);
+}
+return decided < 0 ? and : !and;
+}
+
+/**
+* Records which term decided a match until the sample is complete and
+* then publishes the term order for good.
+*/
+private synchronized void sample(Term[] current, int decided) {
+if (!sampling || current != terms) {
+return;
+}
+int tried = decided < 0 ? current.length : decided + 1;
+for (int i = 0; i < tried; i++) {
+current[i].evaluations++;
+}
+if (decided >= 0) {
+current[decided].decisions++;
+}
+if (++samples >= SAMPLE_SIZE) {
+reorder(current);
+sampling = false;
+}
+}
+
+/**
+* Collects the operands of the chain of logic expressions with the same
+* symbol as this one.
+*/
+private synchronized Term[] flatten() {
+if (terms == null) {
+String symbol = getExpressionSymbol();
+if ("AND".equals(symbol) || "OR".equals(symbol)) {
+conjunction = "AND".equals(symbol) ? 1 : 0;
+List<Term> list = new ArrayList<Term>();
+collect(this, symbol, list);
+terms = list.toArray(new Term[list.size()]);
+} else {
+terms = new Term[0];
+}
+}
+return terms;
+}
+
+private static void collect(Expression expression, String symbol, List<Term> list) {
+if (expression instanceof LogicExpression && symbol.equals(((LogicExpression)expression).getExpressionSymbol())) {
+LogicExpression logic = (LogicExpression)expression;
+collect(logic.getLeft(), symbol, list);
+collect(logic.getRight(), symbol, list);
+} else {
+list.add(new Term((BooleanExpression)expression));
+}
+}
+
+/**
+* Publishes the term order, most selective first.
+*/
+private void reorder(Term[] current) {
+final double[] selectivity = new double[current.length];
+Integer[] order = new Integer[current.length];
+for (int i = 0; i < current.length; i++) {
+selectivity[i] = current[i].selectivity();
+order[i] = Integer.valueOf(i);
+}
+Arrays.sort(order, new Comparator<Integer>() {
+public int compare(Integer i1, Integer i2) {
+return Double.compare(selectivity[i2.intValue()], selectivity[i1.intValue()]);
+}
+});
+Term[] sorted = new Term[current.length];
+for (int i = 0; i < order.length; i++) {
+sorted[i] = current[order[i].intValue()];
+}
+terms = sorted;
+}
+
+private static final class Term {
+final BooleanExpression expression;
+// guarded by the owning expression while it is sampling
+long evaluations;
+long decisions;
+
+Term(BooleanExpression expression) {
+this.expression = expression;
+}
+
+double selectivity() {
+// terms that were never tried keep a neutral position
+return evaluations == 0 ? 0.5 : (double)decisions / evaluations;
+}
+}
 
 }
\ No newline at end of file
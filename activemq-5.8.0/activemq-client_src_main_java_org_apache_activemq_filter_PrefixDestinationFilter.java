@@ -29,6 +29,8 @@ public class PrefixDestinationFilter extends DestinationFilter {
 
 private String[] prefixes;
 private byte destinationType;
+// the literal name prefix when no path before the '>' is a wildcard
+private String namePrefix;
 
 /**
 * An array of paths, the last path is '>'
@@ -38,10 +40,32 @@ private byte destinationType;
 public PrefixDestinationFilter(String[] prefixes, byte destinationType) {
 this.prefixes = prefixes;
 this.destinationType = destinationType;
+StringBuilder builder = new StringBuilder();
+for (int i = 0; i < prefixes.length - 1; i++) {
+if (prefixes[i].equals(ANY_CHILD)) {
+builder = null;
+break;
+}
+builder.append(prefixes[i]).append(DestinationPath.SEPARATOR);
+}
+if (builder != null) {
+namePrefix = builder.toString();
+}
 }
 
 public boolean matches(ActiveMQDestination destination) {
 if (destination.getDestinationType() != destinationType) return false;
+if (namePrefix != null) {
+// avoids splitting the name of every destination tested, a name that
+// ends right after the prefix still has the empty path the '>' matches
+String name = destination.getPhysicalName();
+if (name.startsWith(namePrefix)) {
+return true;
+}
+if (name.indexOf(ANY_CHILD) < 0) {
+return false;
+}
+}
 String[] path = DestinationPath.getDestinationPaths(destination.getPhysicalName());
 int length = prefixes.length;
 if (path.length >= length) {
@@ -16,6 +16,8 @@
 */
 package org.apache.activemq.usage;
 
+import java.util.concurrent.atomic.AtomicLongArray;
+
 /**
 * Used to keep track of how much of something is being used so that a
 * productive working set usage can be controlled. Main use case is manage
@@ -27,6 +29,7 @@ package org.apache.activemq.usage;
 public class MemoryUsage extends Usage<MemoryUsage> {
 
 private long usage;
+private volatile Stripes stripes;
 
 public MemoryUsage() {
 this(null, null);
@@ -62,6 +65,10 @@ public void waitForSpace() throws InterruptedException {
 if (parent != null) {
 parent.waitForSpace();
 }
+if (stripes != null) {
+// the percentage may lag behind by up to the slack
+reconcile();
+}
 synchronized (usageMutex) {
 for (int i = 0; percentUsage >= 100; i++) {
 usageMutex.wait();
@@ -80,6 +87,9 @@ if (!parent.waitForSpace(timeout)) {
 return false;
 }
 }
+if (stripes != null) {
+reconcile();
+}
 synchronized (usageMutex) {
 if (percentUsage >= 100) {
 usageMutex.wait(timeout);
@@ -118,12 +128,19 @@ public void increaseUsage(long value) {
 if (value == 0) {
 return;
 }
+Stripes stripes = this.stripes;
+if (stripes != null) {
+if (stripes.add(value)) {
+reconcile();
+}
+} else {
 int percentUsage;
 synchronized (usageMutex) {
 usage += value;
 percentUsage = caclPercentUsage();
 }
 setPercentUsage(percentUsage);
+}
 if (parent != null) {
 ((MemoryUsage)parent).increaseUsage(value);
 }
@@ -138,26 +155,140 @@ public void decreaseUsage(long value) {
 if (value == 0) {
 return;
 }
+Stripes stripes = this.stripes;
+if (stripes != null) {
+// reconcile right away while full, waiters need to see the space
+if (stripes.add(-value) || percentUsage >= 100) {
+reconcile();
+}
+} else {
 int percentUsage;
 synchronized (usageMutex) {
 usage -= value;
 percentUsage = caclPercentUsage();
 }
 setPercentUsage(percentUsage);
+}
 if (parent != null) {
 parent.decreaseUsage(value);
 }
 }
 
+/**
+* Recomputes the usage percentage from the exact sum of the stripes.
+*/
+private void reconcile() {
+Stripes stripes = this.stripes;
+if (stripes == null) {
+return;
+}
+int percentUsage;
+synchronized (usageMutex) {
+usage = stripes.sum();
+percentUsage = caclPercentUsage();
+}
+setPercentUsage(percentUsage);
+}
+
 protected long retrieveUsage() {
-return usage;
+Stripes stripes = this.stripes;
+return stripes != null ? stripes.sum() : usage;
 }
 
 public long getUsage() {
-return usage;
+Stripes stripes = this.stripes;
+return stripes != null ? stripes.sum() : usage;
 }
 
 public void setUsage(long usage) {
+Stripes stripes = this.stripes;
+if (stripes != null) {
+stripes.set(usage);
+}
 this.usage = usage;
 }
+
+public long getUsageSlack() {
+Stripes stripes = this.stripes;
+return stripes != null ? stripes.slack : 0;
+}
+
+/**
+* Sets how many bytes the usage percentage may lag behind the actual
+* usage. With a slack greater than 0 the usage is counted in per thread
+* stripes without taking the usage lock and the percentage, limit checks
+* and listeners are only updated once the accumulated change exceeds the
+* slack, or right away while the usage is full. The default of 0 keeps
+* the exact, locked accounting.
+*/
+public void setUsageSlack(long usageSlack) {
+synchronized (usageMutex) {
+if (usageSlack > 0) {
+long current = retrieveUsage();
+Stripes created = new Stripes(Runtime.getRuntime().availableProcessors(), usageSlack);
+created.set(current);
+stripes = created;
+} else if (stripes != null) {
+usage = stripes.sum();
+stripes = null;
+}
+}
+}
+
+/**
+* Usage counted in padded cells, one picked per thread, each cell also
+* accumulates the change it has seen since the last reconciliation.
+*/
+private static final class Stripes {
+// one cache line per cell
+private static final int PAD = 8;
+
+final long slack;
+private final int mask;
+private final long threshold;
+private final AtomicLongArray cells;
+private final AtomicLongArray drift;
+
+Stripes(int concurrency, long slack) {
+int size = 1;
+while (size < concurrency * 2) {
+size <<= 1;
+}
+this.mask = size - 1;
+this.slack = slack;
+this.threshold = Math.max(1, slack / size);
+this.cells = new AtomicLongArray(size * PAD);
+this.drift = new AtomicLongArray(size * PAD);
+}
+
+/**
+* @return true if the change seen by the cell exceeds its share of the
+*         slack and the usage has to be reconciled
+*/
+boolean add(long value) {
+int index = ((int) Thread.currentThread().getId() & mask) * PAD;
+cells.addAndGet(index, value);
+if (drift.addAndGet(index, Math.abs(value)) >= threshold) {
+drift.set(index, 0);
+return true;
+}
+return false;
+}
+
+long sum() {
+long sum = 0;
+for (int i = 0; i < cells.length(); i += PAD) {
+sum += cells.get(i);
+}
+return sum;
+}
+
+void set(long value) {
+for (int i = 0; i < cells.length(); i += PAD) {
+cells.set(i, 0);
+drift.set(i, 0);
+}
+cells.set(0, value);
+}
+}
 }
\ No newline at end of file
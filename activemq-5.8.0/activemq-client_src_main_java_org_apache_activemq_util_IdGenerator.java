@@ -32,9 +32,9 @@ private static final Logger LOG = LoggerFactory.getLogger(IdGenerator.class);
 private static final String UNIQUE_STUB;
 private static int instanceCount;
 private static String hostName;
-private String seed;
-private AtomicLong sequence = new AtomicLong(1);
-private int length;
+private final String seed;
+private final AtomicLong sequence = new AtomicLong(1);
+private final int length;
 
 static {
 String stub = "";
@@ -96,12 +96,13 @@ return hostName;
 
 
 /**
-* Generate a unqiue id
+* Generate a unqiue id, safe to call from any number of threads without
+* locking
 *
 * @return a unique id
 */
 
-public synchronized String generateId() {
+public String generateId() {
 StringBuilder sb = new StringBuilder(length);
 sb.append(seed);
 sb.append(sequence.getAndIncrement());
@@ -174,7 +175,7 @@ result = seed1.compareTo(seed2);
 if (result == 0) {
 long count1 = IdGenerator.getSequenceFromId(id1);
 long count2 = IdGenerator.getSequenceFromId(id2);
-result = (int)(count1 - count2);
+result = count1 < count2 ? -1 : (count1 == count2 ? 0 : 1);
 }
 }
 return result;
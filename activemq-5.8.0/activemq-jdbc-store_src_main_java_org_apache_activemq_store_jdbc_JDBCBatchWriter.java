@@ -0,0 +1,299 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements.  See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License.  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.activemq.store.jdbc;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.activemq.command.ActiveMQDestination;
+import org.apache.activemq.command.MessageId;
+import org.apache.activemq.util.IOExceptionSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+* Coalesces the non transactional message adds and acks of concurrent
+* producers and consumers into shared JDBC transactions.
+*
+* Operations are queued and written by a single thread once maxBatchSize
+* operations are waiting or the oldest one has waited maxBatchLatency
+* milliseconds. All operations of a batch go through one
+* {@link TransactionContext}, so with batched statements enabled on the
+* adapter a batch costs a single addBatch/executeBatch round trip per
+* statement type plus one commit. Each operation is only completed after its
+* batch has been committed, so per message durability is unchanged.
+*/
+public class JDBCBatchWriter implements Runnable {
+
+private static final Logger LOG = LoggerFactory.getLogger(JDBCBatchWriter.class);
+
+public static final int DEFAULT_MAX_BATCH_SIZE = 100;
+public static final long DEFAULT_MAX_BATCH_LATENCY = 5;
+
+private final JDBCPersistenceAdapter persistenceAdapter;
+private final Object mutex = new Object();
+private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+private long maxBatchLatency = DEFAULT_MAX_BATCH_LATENCY;
+
+private List<Operation> pending = new ArrayList<Operation>();
+private long firstPendingTime;
+private boolean stopped = true;
+private Thread thread;
+
+private final AtomicLong batchCount = new AtomicLong();
+private final AtomicLong operationCount = new AtomicLong();
+
+public JDBCBatchWriter(JDBCPersistenceAdapter persistenceAdapter) {
+this.persistenceAdapter = persistenceAdapter;
+}
+
+/**
+* A queued add or ack, which completes once the batch holding it is
+* committed.
+*/
+abstract static class Operation {
+private final CountDownLatch done = new CountDownLatch(1);
+private final Runnable onCommit;
+private volatile IOException exception;
+
+Operation(Runnable onCommit) {
+this.onCommit = onCommit;
+}
+
+abstract void execute(JDBCAdapter adapter, TransactionContext c) throws SQLException, IOException;
+
+void complete(IOException error) {
+this.exception = error;
+if (error == null && onCommit != null) {
+onCommit.run();
+}
+done.countDown();
+}
+
+/**
+* Blocks until the operation has been committed.
+*/
+void await() throws IOException {
+try {
+done.await();
+} catch (InterruptedException e) {
+Thread.currentThread().interrupt();
+throw new InterruptedIOException();
+}
+if (exception != null) {
+throw exception;
+}
+}
+}
+
+public void start() {
+synchronized (mutex) {
+if (!stopped) {
+return;
+}
+stopped = false;
+}
+thread = new Thread(this, "ActiveMQ JDBC Batch Writer");
+thread.setDaemon(true);
+thread.start();
+}
+
+/**
+* Stops accepting operations and writes what is already queued.
+*/
+public void stop() throws InterruptedException {
+synchronized (mutex) {
+stopped = true;
+mutex.notifyAll();
+}
+if (thread != null) {
+thread.join();
+thread = null;
+}
+}
+
+/**
+* Queues the insert of a message, the sequence id is taken while the
+* queue is locked so batches are committed in sequence order.
+*/
+public Operation addMessage(final MessageId messageId, final ActiveMQDestination destination, final byte[] data,
+final long expiration, final byte priority, final SequenceCallback callback) throws IOException {
+synchronized (mutex) {
+final long sequenceId = persistenceAdapter.getNextSequenceId();
+Operation operation = new Operation(new Runnable() {
+public void run() {
+callback.committed(sequenceId);
+}
+}) {
+void execute(JDBCAdapter adapter, TransactionContext c) throws SQLException, IOException {
+adapter.doAddMessage(c, sequenceId, messageId, destination, data, expiration, priority, null);
+}
+};
+enqueue(operation);
+return operation;
+}
+}
+
+/**
+* Queues the removal of an acknowledged message.
+*/
+public Operation removeMessage(final long sequenceId) throws IOException {
+Operation operation = new Operation(null) {
+void execute(JDBCAdapter adapter, TransactionContext c) throws SQLException, IOException {
+adapter.doRemoveMessage(c, sequenceId, null);
+}
+};
+synchronized (mutex) {
+enqueue(operation);
+}
+return operation;
+}
+
+/**
+* @return an operation that is already complete, for adds that turn out
+*         to have nothing to write
+*/
+public Operation completed() {
+Operation operation = new Operation(null) {
+void execute(JDBCAdapter adapter, TransactionContext c) {
+}
+};
+operation.complete(null);
+return operation;
+}
+
+/**
+* Told the sequence id of a message once its batch is committed.
+*/
+public interface SequenceCallback {
+void committed(long sequenceId);
+}
+
+private void enqueue(Operation operation) throws IOException {
+if (stopped) {
+throw new IOException("JDBC batch writer is stopped");
+}
+if (pending.isEmpty()) {
+firstPendingTime = System.currentTimeMillis();
+mutex.notifyAll();
+}
+pending.add(operation);
+if (pending.size() >= maxBatchSize) {
+mutex.notifyAll();
+}
+}
+
+public void run() {
+while (true) {
+List<Operation> batch;
+synchronized (mutex) {
+try {
+while (!stopped) {
+if (pending.isEmpty()) {
+mutex.wait();
+} else {
+long wait = firstPendingTime + maxBatchLatency - System.currentTimeMillis();
+if (wait <= 0 || pending.size() >= maxBatchSize) {
+break;
+}
+mutex.wait(wait);
+}
+}
+} catch (InterruptedException e) {
+stopped = true;
+}
+if (pending.isEmpty()) {
+if (stopped) {
+return;
+}
+continue;
+}
+batch = pending;
+pending = new ArrayList<Operation>();
+}
+write(batch);
+}
+}
+
+private void write(List<Operation> batch) {
+IOException failure = null;
+try {
+JDBCAdapter adapter = persistenceAdapter.getAdapter();
+TransactionContext c = persistenceAdapter.getTransactionContext();
+c.begin();
+try {
+for (Operation operation : batch) {
+operation.execute(adapter, c);
+}
+} catch (SQLException e) {
+JDBCPersistenceAdapter.log("JDBC Failure: ", e);
+c.rollback();
+throw IOExceptionSupport.create("Failed to write a batch of " + batch.size() + " operations: " + e, e);
+} catch (IOException e) {
+c.rollback();
+throw e;
+}
+c.commit();
+batchCount.incrementAndGet();
+operationCount.addAndGet(batch.size());
+} catch (IOException e) {
+LOG.warn("JDBC batch of " + batch.size() + " operations failed: " + e);
+failure = e;
+} catch (Throwable e) {
+LOG.warn("JDBC batch of " + batch.size() + " operations failed: " + e, e);
+failure = IOExceptionSupport.create(e);
+}
+for (Operation operation : batch) {
+operation.complete(failure);
+}
+}
+
+public int getMaxBatchSize() {
+return maxBatchSize;
+}
+
+public void setMaxBatchSize(int maxBatchSize) {
+this.maxBatchSize = maxBatchSize;
+}
+
+public long getMaxBatchLatency() {
+return maxBatchLatency;
+}
+
+public void setMaxBatchLatency(long maxBatchLatency) {
+this.maxBatchLatency = maxBatchLatency;
+}
+
+/**
+* @return the number of committed batches
+*/
+public long getBatchCount() {
+return batchCount.get();
+}
+
+/**
+* @return the number of committed adds and acks
+*/
+public long getOperationCount() {
+return operationCount.get();
+}
+}
\ No newline at end of file
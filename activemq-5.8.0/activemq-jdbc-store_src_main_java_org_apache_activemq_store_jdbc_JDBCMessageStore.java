@@ -96,6 +96,11 @@ c.close();
 }
 
 public void addMessage(ConnectionContext context, Message message) throws IOException {
+JDBCBatchWriter.Operation operation = batchAddMessage(context, message);
+if (operation != null) {
+operation.await();
+return;
+}
 MessageId messageId = message.getMessageId();
 if (audit != null && audit.isDuplicate(message)) {
 if (LOG.isDebugEnabled()) {
@@ -109,13 +114,7 @@ return;
 long sequenceId = persistenceAdapter.getNextSequenceId();
 
 // Serialize the Message..
-byte data[];
-try {
-ByteSequence packet = wireFormat.marshal(message);
-data = ByteSequenceData.toByteArray(packet);
-} catch (IOException e) {
-throw IOExceptionSupport.create("Failed to broker message: " + messageId + " in container: " + e, e);
-}
+byte data[] = marshal(message);
 
 // Get a connection and insert the message into the DB.
 TransactionContext c = persistenceAdapter.getTransactionContext(context);
@@ -135,6 +134,64 @@ onAdd(messageId, sequenceId, message.getPriority());
 }
 }
 
+private byte[] marshal(Message message) throws IOException {
+try {
+ByteSequence packet = wireFormat.marshal(message);
+return ByteSequenceData.toByteArray(packet);
+} catch (IOException e) {
+throw IOExceptionSupport.create("Failed to broker message: " + message.getMessageId() + " in container: " + e, e);
+}
+}
+
+/**
+* @return the batch writer if the operation of the given context can
+*         join a shared batch, only operations outside of a local or XA
+*         transaction can
+*/
+private JDBCBatchWriter getBatchWriter(ConnectionContext context) {
+JDBCBatchWriter writer = persistenceAdapter.getBatchWriter();
+if (writer == null || context == null) {
+return writer;
+}
+if (context.getXid() != null) {
+return null;
+}
+TransactionContext c = (TransactionContext) context.getLongTermStoreContext();
+if (c != null && c.isInTransaction()) {
+return null;
+}
+return writer;
+}
+
+/**
+* Queues the message on the batch writer.
+*
+* @return the pending operation or null if the message has to be added
+*         directly
+*/
+private JDBCBatchWriter.Operation batchAddMessage(ConnectionContext context, final Message message) throws IOException {
+JDBCBatchWriter writer = getBatchWriter(context);
+if (writer == null) {
+return null;
+}
+final MessageId messageId = message.getMessageId();
+if (audit != null && audit.isDuplicate(message)) {
+if (LOG.isDebugEnabled()) {
+LOG.debug(destination.getPhysicalName()
++ " ignoring duplicated (add) message, already stored: "
++ messageId);
+}
+return writer.completed();
+}
+byte data[] = marshal(message);
+return writer.addMessage(messageId, destination, data, message.getExpiration(),
+this.isPrioritizedMessages() ? message.getPriority() : 0, new JDBCBatchWriter.SequenceCallback() {
+public void committed(long sequenceId) {
+onAdd(messageId, sequenceId, message.getPriority());
+}
+});
+}
+
 protected void onAdd(MessageId messageId, long sequenceId, byte priority) {
 }
 
@@ -193,6 +250,12 @@ public void removeMessage(ConnectionContext context, MessageAck ack) throws IOEx
 
 long seq = persistenceAdapter.getStoreSequenceIdForMessageId(ack.getLastMessageId(), destination)[0];
 
+JDBCBatchWriter writer = getBatchWriter(context);
+if (writer != null) {
+writer.removeMessage(seq).await();
+return;
+}
+
 // Get a connection and remove the message from the DB
 TransactionContext c = persistenceAdapter.getTransactionContext(context);
 try {
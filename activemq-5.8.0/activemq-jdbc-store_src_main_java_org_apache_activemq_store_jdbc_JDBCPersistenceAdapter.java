@@ -103,6 +103,10 @@ protected ActiveMQMessageAudit audit;
 
 protected LongSequenceGenerator sequenceGenerator = new LongSequenceGenerator();
 protected int maxRows = DefaultJDBCAdapter.MAX_ROWS;
+protected boolean batchWrites;
+protected int batchWriteMaxSize = JDBCBatchWriter.DEFAULT_MAX_BATCH_SIZE;
+protected long batchWriteMaxLatency = JDBCBatchWriter.DEFAULT_MAX_BATCH_LATENCY;
+protected JDBCBatchWriter batchWriter;
 
 {
 setLockKeepAlivePeriod(DEFAULT_LOCK_KEEP_ALIVE_PERIOD);
@@ -313,6 +317,13 @@ cleanup();
 }, 0, cleanupPeriod, TimeUnit.MILLISECONDS);
 }
 createMessageAudit();
+if (batchWrites) {
+JDBCBatchWriter writer = new JDBCBatchWriter(this);
+writer.setMaxBatchSize(batchWriteMaxSize);
+writer.setMaxBatchLatency(batchWriteMaxLatency);
+writer.start();
+batchWriter = writer;
+}
 }
 
 public synchronized void doStop(ServiceStopper stopper) throws Exception {
@@ -320,6 +331,11 @@ if (cleanupTicket != null) {
 cleanupTicket.cancel(true);
 cleanupTicket = null;
 }
+if (batchWriter != null) {
+// flushes the operations that are already queued
+batchWriter.stop();
+batchWriter = null;
+}
 }
 
 public void cleanup() {
@@ -722,6 +738,51 @@ public void setMaxRows(int maxRows) {
 this.maxRows = maxRows;
 }
 
+public boolean isBatchWrites() {
+return batchWrites;
+}
+
+/**
+* When enabled, non transactional message adds and acks from all
+* destinations are coalesced into shared JDBC transactions by a
+* {@link JDBCBatchWriter}. Each add or ack still completes only once its
+* batch is committed.
+*/
+public void setBatchWrites(boolean batchWrites) {
+this.batchWrites = batchWrites;
+}
+
+public int getBatchWriteMaxSize() {
+return batchWriteMaxSize;
+}
+
+/**
+* the number of adds and acks after which a batch is written
+*/
+public void setBatchWriteMaxSize(int batchWriteMaxSize) {
+this.batchWriteMaxSize = batchWriteMaxSize;
+}
+
+public long getBatchWriteMaxLatency() {
+return batchWriteMaxLatency;
+}
+
+/**
+* the time in milliseconds the oldest add or ack of a batch may wait
+* before the batch is written
+*/
+public void setBatchWriteMaxLatency(long batchWriteMaxLatency) {
+this.batchWriteMaxLatency = batchWriteMaxLatency;
+}
+
+/**
+* @return the batch writer or null when batch writes are disabled or the
+*         adapter is not started
+*/
+public JDBCBatchWriter getBatchWriter() {
+return batchWriter;
+}
+
 public void recover(JdbcMemoryTransactionStore jdbcMemoryTransactionStore) throws IOException {
 TransactionContext c = getTransactionContext();
 try {
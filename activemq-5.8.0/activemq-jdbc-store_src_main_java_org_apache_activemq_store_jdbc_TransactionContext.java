@@ -153,6 +153,13 @@ connection = null;
 }
 }
 
+/**
+* @return true between {@link #begin()} and commit or rollback
+*/
+public boolean isInTransaction() {
+return inTx;
+}
+
 public void begin() throws IOException {
 if (inTx) {
 throw new IOException("Already started.");
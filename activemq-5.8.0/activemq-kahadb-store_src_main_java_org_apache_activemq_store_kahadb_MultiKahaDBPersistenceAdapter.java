@@ -20,12 +20,21 @@ import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.activemq.broker.BrokerService;
 import org.apache.activemq.broker.BrokerServiceAware;
@@ -47,6 +56,7 @@ import org.apache.activemq.store.TransactionStore;
 import org.apache.activemq.store.kahadb.data.KahaTransactionInfo;
 import org.apache.activemq.store.kahadb.data.KahaXATransactionId;
 import org.apache.activemq.usage.SystemUsage;
+import org.apache.activemq.util.IOExceptionSupport;
 import org.apache.activemq.util.IOHelper;
 import org.apache.activemq.util.IntrospectionSupport;
 import org.slf4j.Logger;
@@ -70,6 +80,21 @@ private File directory = new File(IOHelper.getDefaultDataDirectory() + File.sepa
 
 MultiKahaDBTransactionStore transactionStore = new MultiKahaDBTransactionStore(this);
 
+private int storeThreads;
+private boolean coordinatedCheckpoint;
+private long checkpointInterval = 5*1000;
+private long cleanupInterval = 30*1000;
+private ExecutorService storeExecutor;
+private Thread checkpointThread;
+private final AtomicBoolean started = new AtomicBoolean();
+
+/**
+* Work done on every child adapter, possibly concurrently.
+*/
+interface AdapterTask {
+void execute(KahaDBPersistenceAdapter adapter) throws Exception;
+}
+
 // all local store transactions are XA, 2pc if more than one adapter involved
 TransactionIdTransformer transactionIdTransformer = new TransactionIdTransformer() {
 @Override
@@ -144,8 +169,63 @@ throw new IllegalStateException();
 
 @Override
 public void checkpoint(final boolean sync) throws IOException {
-for (PersistenceAdapter persistenceAdapter : adapters) {
-persistenceAdapter.checkpoint(sync);
+forEachAdapter(new AdapterTask() {
+@Override
+public void execute(KahaDBPersistenceAdapter adapter) throws Exception {
+adapter.checkpoint(sync);
+}
+});
+}
+
+/**
+* Runs the task for every child adapter. Once started the adapters are
+* handled concurrently on the store executor so that stores living on
+* different disks do their IO in parallel, the call returns when all of
+* them are done.
+*/
+void forEachAdapter(final AdapterTask task) throws IOException {
+List<KahaDBPersistenceAdapter> snapshot;
+synchronized (adapters) {
+snapshot = new ArrayList<KahaDBPersistenceAdapter>(adapters);
+}
+ExecutorService executor = storeExecutor;
+if (executor == null || snapshot.size() < 2) {
+try {
+for (KahaDBPersistenceAdapter adapter : snapshot) {
+task.execute(adapter);
+}
+} catch (Exception e) {
+throw IOExceptionSupport.create(e);
+}
+return;
+}
+List<Future<Object>> futures = new ArrayList<Future<Object>>(snapshot.size());
+for (final KahaDBPersistenceAdapter adapter : snapshot) {
+futures.add(executor.submit(new Callable<Object>() {
+@Override
+public Object call() throws Exception {
+task.execute(adapter);
+return null;
+}
+}));
+}
+Throwable failure = null;
+for (Future<Object> future : futures) {
+try {
+future.get();
+} catch (ExecutionException e) {
+if (failure == null) {
+failure = e.getCause();
+}
+} catch (InterruptedException e) {
+Thread.currentThread().interrupt();
+if (failure == null) {
+failure = e;
+}
+}
+}
+if (failure != null) {
+throw IOExceptionSupport.create(failure);
 }
 }
 
@@ -209,9 +289,12 @@ return transactionStore;
 
 @Override
 public void deleteAllMessages() throws IOException {
-for (PersistenceAdapter persistenceAdapter : adapters) {
-persistenceAdapter.deleteAllMessages();
+forEachAdapter(new AdapterTask() {
+@Override
+public void execute(KahaDBPersistenceAdapter adapter) throws Exception {
+adapter.deleteAllMessages();
 }
+});
 transactionStore.deleteAllMessages();
 IOHelper.deleteChildren(getDirectory());
 }
@@ -318,10 +401,76 @@ if (filteredAdapter.getDestination() == matchAll && filteredAdapter.isPerDestina
 findAndRegisterExistingAdapters(filteredAdapter);
 }
 }
-for (PersistenceAdapter persistenceAdapter : adapters) {
-persistenceAdapter.start();
+startStoreExecutor();
+forEachAdapter(new AdapterTask() {
+@Override
+public void execute(KahaDBPersistenceAdapter adapter) throws Exception {
+// the property order of the configuration is not guaranteed, the
+// adapters may have been configured before coordinatedCheckpoint
+configureCheckpoint(adapter);
+adapter.start();
+}
+});
+started.set(true);
+startCheckpoint();
+}
+
+private void startStoreExecutor() {
+int threads = storeThreads > 0 ? storeThreads : Math.max(1, adapters.size());
+if (threads > 1 && storeExecutor == null) {
+final AtomicInteger count = new AtomicInteger();
+storeExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+@Override
+public Thread newThread(Runnable runnable) {
+Thread thread = new Thread(runnable, "ActiveMQ mKahaDB Store Worker " + count.incrementAndGet());
+thread.setDaemon(true);
+return thread;
+}
+});
+}
+}
+
+/**
+* With a coordinated checkpoint the child stores do not run their own
+* checkpoint threads, this one checkpoints all of them at once, in
+* parallel, so their index writes overlap instead of drifting apart.
+*/
+private void startCheckpoint() {
+if (!coordinatedCheckpoint || (checkpointInterval == 0 && cleanupInterval == 0)) {
+return;
+}
+checkpointThread = new Thread("ActiveMQ mKahaDB Checkpoint Worker") {
+@Override
+public void run() {
+try {
+long lastCleanup = System.currentTimeMillis();
+long lastCheckpoint = System.currentTimeMillis();
+long sleepTime = Math.min(checkpointInterval > 0 ? checkpointInterval : cleanupInterval, 500);
+while (started.get()) {
+Thread.sleep(sleepTime);
+long now = System.currentTimeMillis();
+if (cleanupInterval > 0 && (now - lastCleanup >= cleanupInterval)) {
+checkpoint(true);
+lastCleanup = now;
+lastCheckpoint = now;
+} else if (checkpointInterval > 0 && (now - lastCheckpoint >= checkpointInterval)) {
+checkpoint(false);
+lastCheckpoint = now;
+}
+}
+} catch (InterruptedException e) {
+// stopping
+} catch (IOException ioe) {
+LOG.error("Checkpoint failed", ioe);
+if (brokerService != null) {
+brokerService.handleIOException(ioe);
+}
 }
 }
+};
+checkpointThread.setDaemon(true);
+checkpointThread.start();
+}
 
 private void findAndRegisterExistingAdapters(FilteredKahaDBPersistenceAdapter template) {
 FileFilter destinationNames = new FileFilter() {
@@ -376,7 +525,9 @@ adapter.setDirectory(directory);
 }
 
 private FilteredKahaDBPersistenceAdapter registerAdapter(KahaDBPersistenceAdapter adapter, ActiveMQDestination destination) {
+synchronized (adapters) {
 adapters.add(adapter);
+}
 FilteredKahaDBPersistenceAdapter result = new FilteredKahaDBPersistenceAdapter(destination, adapter);
 put(destination, result);
 return result;
@@ -386,6 +537,14 @@ private void configureAdapter(KahaDBPersistenceAdapter adapter) {
 // need a per store factory that will put the store in the branch qualifier to disiambiguate xid mbeans
 adapter.getStore().setTransactionIdTransformer(transactionIdTransformer);
 adapter.setBrokerService(getBrokerService());
+configureCheckpoint(adapter);
+}
+
+private void configureCheckpoint(KahaDBPersistenceAdapter adapter) {
+if (coordinatedCheckpoint) {
+adapter.getStore().setCheckpointInterval(0);
+adapter.getStore().setCleanupInterval(0);
+}
 }
 
 private KahaDBPersistenceAdapter kahaDBFromTemplate(KahaDBPersistenceAdapter template) {
@@ -398,8 +557,26 @@ return adapter;
 
 @Override
 public void stop() throws Exception {
-for (PersistenceAdapter persistenceAdapter : adapters) {
-persistenceAdapter.stop();
+started.set(false);
+Thread thread = checkpointThread;
+checkpointThread = null;
+if (thread != null) {
+thread.interrupt();
+thread.join();
+}
+try {
+forEachAdapter(new AdapterTask() {
+@Override
+public void execute(KahaDBPersistenceAdapter adapter) throws Exception {
+adapter.stop();
+}
+});
+} finally {
+ExecutorService executor = storeExecutor;
+storeExecutor = null;
+if (executor != null) {
+executor.shutdown();
+}
 }
 }
 
@@ -425,6 +602,47 @@ public BrokerService getBrokerService() {
 return brokerService;
 }
 
+public int getStoreThreads() {
+return storeThreads;
+}
+
+/**
+* Sets the number of threads used to start, stop and checkpoint the child
+* stores concurrently, defaults to one per configured store.
+*/
+public void setStoreThreads(int storeThreads) {
+this.storeThreads = storeThreads;
+}
+
+public boolean isCoordinatedCheckpoint() {
+return coordinatedCheckpoint;
+}
+
+/**
+* When enabled the child stores do not run their own checkpoint timers,
+* all of them are checkpointed together using the checkpointInterval and
+* cleanupInterval of this adapter.
+*/
+public void setCoordinatedCheckpoint(boolean coordinatedCheckpoint) {
+this.coordinatedCheckpoint = coordinatedCheckpoint;
+}
+
+public long getCheckpointInterval() {
+return checkpointInterval;
+}
+
+public void setCheckpointInterval(long checkpointInterval) {
+this.checkpointInterval = checkpointInterval;
+}
+
+public long getCleanupInterval() {
+return cleanupInterval;
+}
+
+public void setCleanupInterval(long cleanupInterval) {
+this.cleanupInterval = cleanupInterval;
+}
+
 public void setTransactionStore(MultiKahaDBTransactionStore transactionStore) {
 this.transactionStore = transactionStore;
 }
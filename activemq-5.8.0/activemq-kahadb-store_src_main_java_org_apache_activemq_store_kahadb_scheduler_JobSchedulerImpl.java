@@ -20,9 +20,13 @@ import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -44,8 +48,29 @@ import org.apache.activemq.util.ByteSequence;
 import org.apache.activemq.store.kahadb.disk.util.LongMarshaller;
 import org.apache.activemq.store.kahadb.disk.util.VariableMarshaller;
 
+/**
+* Schedules jobs in a KahaDB BTree index keyed by execution time.
+*
+* A newly scheduled job is written to the index before schedule() returns.
+* Callers that arrive while another one is writing queue their jobs and the
+* next writer stores all of them in one page file transaction. Jobs due within the
+* near term horizon are additionally held in a {@link TimingWheel}, so they
+* fire from memory instead of the scheduler reading the first index entry on
+* every pass; the index stays the durable record and is updated for all the
+* jobs that fired in a pass in one transaction.
+*/
 class JobSchedulerImpl extends ServiceSupport implements Runnable, JobScheduler {
 private static final Logger LOG = LoggerFactory.getLogger(JobSchedulerImpl.class);
+private static final long WHEEL_TICK = 10;
+private static final int WHEEL_SIZE = 512;
+private static final long NEAR_TERM_HORIZON = 60 * 1000;
+// how far the horizon moves before the index is read again
+private static final long HORIZON_RELOAD_STEP = NEAR_TERM_HORIZON / 2;
+private static final Comparator<JobLocation> NEXT_TIME_ORDER = new Comparator<JobLocation>() {
+public int compare(JobLocation a, JobLocation b) {
+return a.getNextTime() < b.getNextTime() ? -1 : (a.getNextTime() == b.getNextTime() ? 0 : 1);
+}
+};
 final JobSchedulerStoreImpl store;
 private final AtomicBoolean running = new AtomicBoolean();
 private String name;
@@ -54,6 +79,12 @@ private Thread thread;
 private final List<JobListener> jobListeners = new CopyOnWriteArrayList<JobListener>();
 private static final IdGenerator ID_GENERATOR = new IdGenerator();
 private final ScheduleTime scheduleTime = new ScheduleTime();
+private final ConcurrentLinkedQueue<PendingJob> pendingJobs = new ConcurrentLinkedQueue<PendingJob>();
+// the near term jobs, guarded by this
+private TimingWheel<JobLocation> wheel;
+private final Map<String, JobLocation> wheelJobs = new HashMap<String, JobLocation>();
+private final List<JobLocation> overdueJobs = new ArrayList<JobLocation>();
+private long loadedUntil = -1;
 
 JobSchedulerImpl(JobSchedulerStoreImpl store) {
 
@@ -92,31 +123,66 @@ public void removeListener(JobListener l) {
 this.jobListeners.remove(l);
 }
 
-public synchronized void schedule(final String jobId, final ByteSequence payload, final long delay) throws IOException {
-this.store.getPageFile().tx().execute(new Transaction.Closure<IOException>() {
-public void execute(Transaction tx) throws IOException {
-schedule(tx, jobId, payload, "", 0, delay, 0);
+public void schedule(final String jobId, final ByteSequence payload, final long delay) throws IOException {
+enqueue(new PendingJob(jobId, payload, "", 0, delay, 0));
 }
-});
+
+public void schedule(final String jobId, final ByteSequence payload, final String cronEntry) throws Exception {
+schedule(jobId, payload, cronEntry, 0, 0, 0);
 }
 
-public synchronized void schedule(final String jobId, final ByteSequence payload, final String cronEntry) throws Exception {
-this.store.getPageFile().tx().execute(new Transaction.Closure<IOException>() {
-public void execute(Transaction tx) throws IOException {
-schedule(tx, jobId, payload, cronEntry, 0, 0, 0);
+public void schedule(final String jobId, final ByteSequence payload, final String cronEntry, final long delay,
+final long period, final int repeat) throws IOException {
+if (cronEntry != null && cronEntry.length() > 0) {
+// fail the caller rather than the scheduler thread on a bad entry
+try {
+CronParser.getNextScheduledTime(cronEntry, (System.currentTimeMillis() / 1000) * 1000);
+} catch (MessageFormatException e) {
+throw new IOException(e.getMessage());
+}
+}
+enqueue(new PendingJob(jobId, payload, cronEntry, delay, period, repeat));
 }
-});
 
+/**
+* Queues the job and returns once it is stored in the index, possibly in
+* the same transaction as jobs queued by other callers meanwhile.
+*/
+private void enqueue(PendingJob job) throws IOException {
+this.pendingJobs.add(job);
+flushPendingJobs();
+if (job.failure != null) {
+throw job.failure;
+}
+this.scheduleTime.newJob();
 }
 
-public synchronized void schedule(final String jobId, final ByteSequence payload, final String cronEntry, final long delay,
-final long period, final int repeat) throws IOException {
+/**
+* Writes the queued jobs to the index in a single transaction.
+*/
+synchronized void flushPendingJobs() throws IOException {
+if (this.pendingJobs.isEmpty()) {
+return;
+}
+final List<PendingJob> batch = new ArrayList<PendingJob>();
+PendingJob job;
+while ((job = this.pendingJobs.poll()) != null) {
+batch.add(job);
+}
+try {
 this.store.getPageFile().tx().execute(new Transaction.Closure<IOException>() {
 public void execute(Transaction tx) throws IOException {
-schedule(tx, jobId, payload, cronEntry, delay, period, repeat);
+for (PendingJob job : batch) {
+schedule(tx, job.jobId, job.payload, job.cronEntry, job.delay, job.period, job.repeat);
+}
 }
 });
-
+} catch (IOException e) {
+for (PendingJob failed : batch) {
+failed.failure = e;
+}
+throw e;
+}
 }
 
 /*
@@ -124,6 +190,7 @@ schedule(tx, jobId, payload, cronEntry, delay, period, repeat);
 * @see org.apache.activemq.beanstalk.JobScheduler#remove(long)
 */
 public synchronized void remove(final long time) throws IOException {
+flushPendingJobs();
 this.store.getPageFile().tx().execute(new Transaction.Closure<IOException>() {
 public void execute(Transaction tx) throws IOException {
 remove(tx, time);
@@ -145,6 +212,7 @@ removeFromIndex(tx, time, jobId);
 * java.lang.String)
 */
 public synchronized void remove(final long time, final String jobId) throws IOException {
+flushPendingJobs();
 this.store.getPageFile().tx().execute(new Transaction.Closure<IOException>() {
 public void execute(Transaction tx) throws IOException {
 remove(tx, time, jobId);
@@ -157,6 +225,7 @@ remove(tx, time, jobId);
 * @see org.apache.activemq.beanstalk.JobScheduler#remove(java.lang.String)
 */
 public synchronized void remove(final String jobId) throws IOException {
+flushPendingJobs();
 this.store.getPageFile().tx().execute(new Transaction.Closure<IOException>() {
 public void execute(Transaction tx) throws IOException {
 remove(tx, jobId);
@@ -165,6 +234,7 @@ remove(tx, jobId);
 }
 
 public synchronized long getNextScheduleTime() throws IOException {
+flushPendingJobs();
 Map.Entry<Long, List<JobLocation>> first = this.index.getFirst(this.store.getPageFile().tx());
 return first != null ? first.getKey() : -1l;
 }
@@ -174,6 +244,7 @@ return first != null ? first.getKey() : -1l;
 * @see org.apache.activemq.beanstalk.JobScheduler#getNextScheduleJobs()
 */
 public synchronized List<Job> getNextScheduleJobs() throws IOException {
+flushPendingJobs();
 final List<Job> result = new ArrayList<Job>();
 
 this.store.getPageFile().tx().execute(new Transaction.Closure<IOException>() {
@@ -192,6 +263,7 @@ return result;
 }
 
 public synchronized List<Job> getAllJobs() throws IOException {
+flushPendingJobs();
 final List<Job> result = new ArrayList<Job>();
 this.store.getPageFile().tx().execute(new Transaction.Closure<IOException>() {
 public void execute(Transaction tx) throws IOException {
@@ -215,6 +287,7 @@ return result;
 }
 
 public synchronized List<Job> getAllJobs(final long start, final long finish) throws IOException {
+flushPendingJobs();
 final List<Job> result = new ArrayList<Job>();
 this.store.getPageFile().tx().execute(new Transaction.Closure<IOException>() {
 public void execute(Transaction tx) throws IOException {
@@ -238,6 +311,7 @@ return result;
 }
 
 public synchronized void removeAllJobs() throws IOException {
+flushPendingJobs();
 this.store.getPageFile().tx().execute(new Transaction.Closure<IOException>() {
 public void execute(Transaction tx) throws IOException {
 destroy(tx);
@@ -246,6 +320,7 @@ destroy(tx);
 }
 
 public synchronized void removeAllJobs(final long start, final long finish) throws IOException {
+flushPendingJobs();
 this.store.getPageFile().tx().execute(new Transaction.Closure<IOException>() {
 public void execute(Transaction tx) throws IOException {
 destroy(tx, start, finish);
@@ -296,7 +371,7 @@ if (LOG.isDebugEnabled()) {
 LOG.debug("Scheduling " + jobLocation);
 }
 storeJob(tx, jobLocation, time);
-this.scheduleTime.newJob();
+track(jobLocation, time);
 }
 
 synchronized void storeJob(final JobLocation jobLocation, final long nextExecutionTime) throws IOException {
@@ -344,6 +419,9 @@ break;
 }
 }
 }
+if (result != null) {
+untrack(jobId, time);
+}
 return result;
 }
 
@@ -351,6 +429,7 @@ void remove(Transaction tx, long time) throws IOException {
 List<JobLocation> values = this.index.remove(tx, time);
 if (values != null) {
 for (JobLocation jl : values) {
+untrack(jl.getJobId(), time);
 this.store.decrementJournalCount(tx, jl.getLocation());
 }
 }
@@ -372,6 +451,11 @@ return;
 }
 
 synchronized void destroy(Transaction tx) throws IOException {
+this.wheelJobs.clear();
+this.overdueJobs.clear();
+if (this.wheel != null) {
+this.wheel.clear();
+}
 List<Long> keys = new ArrayList<Long>();
 for (Iterator<Map.Entry<Long, List<JobLocation>>> i = this.index.iterator(tx); i.hasNext();) {
 Map.Entry<Long, List<JobLocation>> entry = i.next();
@@ -397,6 +481,7 @@ keys.add(entry.getKey());
 List<JobLocation> values = entry.getValue();
 if (values != null) {
 for (JobLocation jl : values) {
+untrack(jl.getJobId(), entry.getKey().longValue());
 this.store.decrementJournalCount(tx, jl.getLocation());
 }
 }
@@ -409,13 +494,142 @@ this.index.remove(tx, l);
 }
 }
 
-private synchronized Map.Entry<Long, List<JobLocation>> getNextToSchedule() throws IOException {
-if (!this.store.isStopped() && !this.store.isStopping()) {
-Map.Entry<Long, List<JobLocation>> first = this.index.getFirst(this.store.getPageFile().tx());
-return first;
+/**
+* Adds a job stored in the index to the wheel if its time falls in the
+* part of the index already loaded into the wheel.
+*/
+private void track(JobLocation job, long time) {
+if (this.wheel != null && time <= this.loadedUntil) {
+this.wheelJobs.put(job.getJobId(), job);
+if (!this.wheel.add(time, job)) {
+this.overdueJobs.add(job);
+}
+}
+}
+
+/**
+* Forgets a job removed from the index, its wheel entry is skipped when it
+* comes up.
+*/
+private void untrack(String jobId, long time) {
+JobLocation job = this.wheelJobs.get(jobId);
+if (job != null && job.getNextTime() == time) {
+this.wheelJobs.remove(jobId);
+}
+}
+
+/**
+* Drops the wheel's view of the index so the next pass loads it again from
+* the index, which puts back the due jobs a failed fireJobs transaction
+* left in the index but no longer tracked.
+*/
+private void reloadWheel() {
+this.wheel.clear();
+this.wheelJobs.clear();
+this.overdueJobs.clear();
+this.loadedUntil = -1;
+}
+
+/**
+* @return the jobs due at the given time
+*/
+private List<JobLocation> getDueJobs(final long currentTime) throws IOException {
+final List<JobLocation> candidates = this.wheel.advance(currentTime);
+candidates.addAll(this.overdueJobs);
+this.overdueJobs.clear();
+
+// move the index entries coming into the horizon into the wheel, jobs
+// stored meanwhile within the loaded part are tracked as they are stored
+final long horizon = currentTime + NEAR_TERM_HORIZON;
+if (horizon > this.loadedUntil + HORIZON_RELOAD_STEP) {
+this.store.getPageFile().tx().execute(new Transaction.Closure<IOException>() {
+public void execute(Transaction tx) throws IOException {
+Iterator<Map.Entry<Long, List<JobLocation>>> iter = index.iterator(tx, loadedUntil + 1);
+while (iter.hasNext()) {
+Map.Entry<Long, List<JobLocation>> next = iter.next();
+if (next == null || next.getKey().longValue() > horizon) {
+break;
+}
+for (JobLocation jl : next.getValue()) {
+jl.setNextTime(next.getKey().longValue());
+wheelJobs.put(jl.getJobId(), jl);
+if (!wheel.add(next.getKey().longValue(), jl)) {
+candidates.add(jl);
+}
+}
+}
+}
+});
+this.loadedUntil = horizon;
+}
+
+List<JobLocation> due = new ArrayList<JobLocation>(candidates.size());
+for (JobLocation job : candidates) {
+// skips jobs removed or rescheduled since they were added
+if (this.wheelJobs.get(job.getJobId()) == job) {
+this.wheelJobs.remove(job.getJobId());
+due.add(job);
+}
+}
+// fire in execution time order like the index would
+Collections.sort(due, NEXT_TIME_ORDER);
+return due;
+}
+
+private void fireJobs(final List<JobLocation> due, final long currentTime) throws IOException {
+this.store.getPageFile().tx().execute(new Transaction.Closure<IOException>() {
+public void execute(Transaction tx) throws IOException {
+for (JobLocation job : due) {
+try {
+fireJob(tx, job, currentTime);
+} catch (MessageFormatException e) {
+throw new IOException(e.getMessage());
+}
+}
+}
+});
 }
-return null;
 
+private void fireJob(Transaction tx, JobLocation job, long currentTime) throws IOException, MessageFormatException {
+final long executionTime = job.getNextTime();
+int repeat = job.getRepeat();
+long nextExecutionTime = calculateNextExecutionTime(job, currentTime, repeat);
+if (job.isCron() == false) {
+fireJob(job);
+if (repeat != 0) {
+job.setRepeat(repeat - 1);
+// re-store the job unless it was removed meanwhile
+if (removeFromIndex(tx, executionTime, job.getJobId()) != null) {
+storeJob(tx, job, nextExecutionTime);
+track(job, nextExecutionTime);
+}
+} else {
+remove(tx, executionTime, job.getJobId());
+}
+} else {
+// cron job
+if (repeat == 0) {
+// we haven't got a separate scheduler to execute at this
+// time - just a cron job - so fire it
+fireJob(job);
+}
+if (nextExecutionTime > currentTime) {
+// we will run again ...
+if (removeFromIndex(tx, executionTime, job.getJobId()) != null) {
+storeJob(tx, job, nextExecutionTime);
+track(job, nextExecutionTime);
+if (repeat != 0) {
+// the cron job is used to set off a separate schedule,
+// so it is not fired to the listeners itself
+String jobId = ID_GENERATOR.generateId();
+ByteSequence payload = getPayload(job.getLocation());
+schedule(tx, jobId, payload, "", job.getDelay(), job.getPeriod(), job.getRepeat());
+}
+}
+} else {
+remove(tx, executionTime, job.getJobId());
+}
+}
 }
 
 void fireJob(JobLocation job) throws IllegalStateException, IOException {
@@ -451,94 +665,45 @@ public String toString() {
 return "JobScheduler:" + this.name;
 }
 
+/**
+* @return how long to wait until the next job in the wheel falls due or the
+*         loaded part of the index has to be extended, 0 for the default
+*/
+private long getWaitTime() {
+if (!this.overdueJobs.isEmpty()) {
+return WHEEL_TICK;
+}
+if (this.loadedUntil < 0) {
+return 0;
+}
+long wakeUpTime = this.loadedUntil + HORIZON_RELOAD_STEP - NEAR_TERM_HORIZON + 1;
+long next = this.wheel.nextTime();
+if (next >= 0) {
+// the wheel hands out a job up to one tick after its time
+wakeUpTime = Math.min(wakeUpTime, next + WHEEL_TICK);
+}
+return Math.max(wakeUpTime - System.currentTimeMillis(), WHEEL_TICK);
+}
+
 protected void mainLoop() {
 while (this.running.get()) {
 this.scheduleTime.clearNewJob();
 try {
-// peek the next job
 long currentTime = System.currentTimeMillis();
-
-// Reads the list of the next entries and removes them from the store in one atomic step.
-// Prevents race conditions on short delays, when storeJob() tries to append new items to the
-// existing list during this read operation (see AMQ-3141).
 synchronized (this) {
-Map.Entry<Long, List<JobLocation>> first = getNextToSchedule();
-if (first != null) {
-List<JobLocation> list = new ArrayList<JobLocation>(first.getValue());
-final long executionTime = first.getKey();
-long nextExecutionTime = 0;
-if (executionTime <= currentTime) {
-for (final JobLocation job : list) {
-int repeat = job.getRepeat();
-nextExecutionTime = calculateNextExecutionTime(job, currentTime, repeat);
-long waitTime = nextExecutionTime - currentTime;
-this.scheduleTime.setWaitTime(waitTime);
-if (job.isCron() == false) {
-fireJob(job);
-if (repeat != 0) {
-repeat--;
-job.setRepeat(repeat);
-// remove this job from the index - so it
-// doesn't get destroyed
-removeFromIndex(executionTime, job.getJobId());
-// and re-store it
-storeJob(job, nextExecutionTime);
-}
-} else {
-// cron job
-if (repeat == 0) {
-// we haven't got a separate scheduler to
-// execute at
-// this time - just a cron job - so fire it
-fireJob(job);
-//this.scheduleTime.setWaitTime(this.scheduleTime.DEFAULT_WAIT);
-}
-if (nextExecutionTime > currentTime) {
-// we will run again ...
-// remove this job from the index - so it
-// doesn't get destroyed
-removeFromIndex(executionTime, job.getJobId());
-// and re-store it
-storeJob(job, nextExecutionTime);
-if (repeat != 0) {
-// we have a separate schedule to run at
-// this time
-// so the cron job is used to set of a
-// seperate scheule
-// hence we won't fire the original cron
-// job to the listeners
-// but we do need to start a separate
-// schedule
-String jobId = ID_GENERATOR.generateId();
-ByteSequence payload = getPayload(job.getLocation());
-schedule(jobId, payload, "", job.getDelay(), job.getPeriod(), job.getRepeat());
-waitTime = job.getDelay() != 0 ? job.getDelay() : job.getPeriod();
-this.scheduleTime.setWaitTime(waitTime);
-}
-}
-}
-}
-// now remove all jobs that have not been
-// rescheduled from this execution time
-remove(executionTime);
-
-// If there is a job that should fire before the currently set wait time
-// we need to reset wait time otherwise we'll miss it.
-Map.Entry<Long, List<JobLocation>> nextUp = getNextToSchedule();
-if (nextUp != null) {
-final long timeUntilNextScheduled = nextUp.getKey() - currentTime;
-if (timeUntilNextScheduled < this.scheduleTime.getWaitTime()) {
-this.scheduleTime.setWaitTime(timeUntilNextScheduled);
-}
-}
-
-} else {
-if (LOG.isDebugEnabled()) {
-LOG.debug("Not yet time to execute the job, waiting " + (executionTime - currentTime) + " ms");
+if (!this.store.isStopped() && !this.store.isStopping()) {
+flushPendingJobs();
+List<JobLocation> due = getDueJobs(currentTime);
+if (!due.isEmpty()) {
+try {
+fireJobs(due, currentTime);
+} catch (IOException e) {
+reloadWheel();
+throw e;
 }
-this.scheduleTime.setWaitTime(executionTime - currentTime);
 }
 }
+this.scheduleTime.setWaitTime(getWaitTime());
 }
 this.scheduleTime.pause();
 
@@ -555,6 +720,12 @@ LOG.error(this.name + " Failed to shutdown JobSchedulerStore", e);
 
 @Override
 protected void doStart() throws Exception {
+synchronized (this) {
+this.wheel = new TimingWheel<JobLocation>(WHEEL_TICK, WHEEL_SIZE, System.currentTimeMillis() - WHEEL_TICK);
+this.wheelJobs.clear();
+this.overdueJobs.clear();
+this.loadedUntil = -1;
+}
 this.running.set(true);
 this.thread = new Thread(this, "JobScheduler:" + this.name);
 this.thread.setDaemon(true);
@@ -570,6 +741,9 @@ Thread t = this.thread;
 if (t != null) {
 t.join(1000);
 }
+if (!this.store.isStopped() && !this.store.isStopping()) {
+flushPendingJobs();
+}
 
 }
 
@@ -627,6 +801,26 @@ jobLocation.writeExternal(dataOut);
 }
 }
 
+static class PendingJob {
+final String jobId;
+final ByteSequence payload;
+final String cronEntry;
+final long delay;
+final long period;
+final int repeat;
+// set under the scheduler lock when the transaction storing the job failed
+IOException failure;
+
+PendingJob(String jobId, ByteSequence payload, String cronEntry, long delay, long period, int repeat) {
+this.jobId = jobId;
+this.payload = payload;
+this.cronEntry = cronEntry;
+this.delay = delay;
+this.period = period;
+this.repeat = repeat;
+}
+}
+
 static class ScheduleTime {
 private final int DEFAULT_WAIT = 500;
 private final int DEFAULT_NEW_JOB_WAIT = 100;
@@ -0,0 +1,184 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements.  See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License.  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.activemq.store.kahadb.scheduler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+* A hierarchical timing wheel.
+*
+* Each level is a ring of buckets of one tick each. An element due within the
+* span of the lowest level goes straight into the bucket of its tick, later
+* elements go to the next level whose ticks span a whole lower level, and are
+* moved down a level when their bucket comes up. Adding and expiring an
+* element therefore costs a constant amount of work per level no matter how
+* many elements are held.
+*
+* Elements never expire before their time but may expire up to one tick
+* after it. Not thread safe.
+*/
+class TimingWheel<E> {
+
+private final long tickMs;
+private final int wheelSize;
+private final long interval;
+private final List<Entry<E>>[] buckets;
+private long currentTime;
+private TimingWheel<E> overflow;
+private int size;
+
+@SuppressWarnings("unchecked")
+TimingWheel(long tickMs, int wheelSize, long startMs) {
+if (tickMs <= 0 || wheelSize <= 0) {
+throw new IllegalArgumentException("tickMs and wheelSize must be > 0");
+}
+this.tickMs = tickMs;
+this.wheelSize = wheelSize;
+this.interval = tickMs * wheelSize;
+this.buckets = new List[wheelSize];
+for (int i = 0; i < wheelSize; i++) {
+buckets[i] = new ArrayList<Entry<E>>();
+}
+this.currentTime = startMs - (startMs % tickMs);
+}
+
+/**
+* @return false if the element is already due, it is not added then
+*/
+boolean add(long time, E element) {
+if (addEntry(new Entry<E>(time, element))) {
+size++;
+return true;
+}
+return false;
+}
+
+/**
+* Advances the wheel to the given time.
+*
+* @return the elements that became due
+*/
+List<E> advance(long now) {
+List<Entry<E>> moved = new ArrayList<Entry<E>>();
+// a bucket is only emptied once all of its tick lies before now
+advanceClock(now - tickMs + 1, moved);
+List<E> expired = new ArrayList<E>();
+for (Entry<E> entry : moved) {
+if (!addEntry(entry)) {
+expired.add(entry.element);
+}
+}
+size -= expired.size();
+return expired;
+}
+
+/**
+* @return the time of the earliest element held, or -1 if there is none
+*/
+long nextTime() {
+long next = -1;
+long tick = currentTime / tickMs;
+for (int i = 1; i < wheelSize; i++) {
+List<Entry<E>> bucket = buckets[(int) ((tick + i) % wheelSize)];
+if (!bucket.isEmpty()) {
+for (Entry<E> entry : bucket) {
+if (next < 0 || entry.time < next) {
+next = entry.time;
+}
+}
+break;
+}
+}
+// an element added to the next level early can still be due before
+// one added to this level later
+if (overflow != null) {
+long overflowNext = overflow.nextTime();
+if (overflowNext >= 0 && (next < 0 || overflowNext < next)) {
+next = overflowNext;
+}
+}
+return next;
+}
+
+int size() {
+return size;
+}
+
+boolean isEmpty() {
+return size == 0;
+}
+
+void clear() {
+for (List<Entry<E>> bucket : buckets) {
+bucket.clear();
+}
+overflow = null;
+size = 0;
+}
+
+private boolean addEntry(Entry<E> entry) {
+if (entry.time < currentTime + tickMs) {
+return false;
+} else if (entry.time < currentTime + interval) {
+buckets[(int) ((entry.time / tickMs) % wheelSize)].add(entry);
+return true;
+} else {
+if (overflow == null) {
+overflow = new TimingWheel<E>(interval, wheelSize, currentTime);
+}
+return overflow.addEntry(entry);
+}
+}
+
+private void advanceClock(long time, List<Entry<E>> moved) {
+if (time < currentTime + tickMs) {
+return;
+}
+long ticks = (time - currentTime) / tickMs;
+if (ticks >= wheelSize) {
+// every bucket comes up at least once
+for (List<Entry<E>> bucket : buckets) {
+moved.addAll(bucket);
+bucket.clear();
+}
+currentTime = time - (time % tickMs);
+} else {
+for (long i = 0; i < ticks; i++) {
+currentTime += tickMs;
+List<Entry<E>> bucket = buckets[(int) ((currentTime / tickMs) % wheelSize)];
+if (!bucket.isEmpty()) {
+moved.addAll(bucket);
+bucket.clear();
+}
+}
+}
+if (overflow != null) {
+overflow.advanceClock(currentTime, moved);
+}
+}
+
+private static final class Entry<E> {
+final long time;
+final E element;
+
+Entry(long time, E element) {
+this.time = time;
+this.element = element;
+}
+}
+}
\ No newline at end of file
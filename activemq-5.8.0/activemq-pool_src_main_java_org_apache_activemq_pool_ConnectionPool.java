@@ -18,9 +18,11 @@
 package org.apache.activemq.pool;
 
 import java.io.IOException;
-import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import javax.jms.JMSException;
 import javax.jms.Session;
@@ -29,6 +31,7 @@ import org.apache.activemq.ActiveMQConnection;
 import org.apache.activemq.ActiveMQSession;
 import org.apache.activemq.transport.TransportListener;
 import org.apache.activemq.util.JMSExceptionSupport;
+import org.apache.commons.pool.KeyedObjectPool;
 import org.apache.commons.pool.KeyedPoolableObjectFactory;
 import org.apache.commons.pool.impl.GenericKeyedObjectPool;
 import org.apache.commons.pool.impl.GenericObjectPool;
@@ -43,20 +46,36 @@ import org.apache.commons.pool.impl.GenericObjectPool;
 */
 public class ConnectionPool {
 
-private ActiveMQConnection connection;
+/**
+* The number of buckets of the session wait time histogram, bucket 0 counts
+* waits below one microsecond and bucket n waits below 2^n microseconds.
+*/
+public static final int WAIT_TIME_BUCKETS = 32;
+
+private volatile ActiveMQConnection connection;
 private int referenceCount;
-private long lastUsed = System.currentTimeMillis();
+private volatile long lastUsed = System.currentTimeMillis();
 private long firstUsed = lastUsed;
-private boolean hasFailed;
-private boolean hasExpired;
+private volatile boolean hasFailed;
+private volatile boolean hasExpired;
 private int idleTimeout = 30 * 1000;
 private long expiryTimeout = 0l;
 
 private final AtomicBoolean started = new AtomicBoolean(false);
 private final GenericKeyedObjectPool<SessionKey, PooledSession> sessionPool;
-private final List<PooledSession> loanedSessions = new CopyOnWriteArrayList<PooledSession>();
+private final LockFreeKeyedObjectPool<SessionKey, PooledSession> lockFreeSessionPool;
+private final Set<PooledSession> loanedSessions = Collections.newSetFromMap(new ConcurrentHashMap<PooledSession, Boolean>());
+private final AtomicLongArray sessionWaitTimes = new AtomicLongArray(WAIT_TIME_BUCKETS);
 
 public ConnectionPool(ActiveMQConnection connection) {
+this(connection, false);
+}
+
+/**
+* @param useLockFreeSessionPool
+*      whether sessions are pooled without locking, see {@link LockFreeKeyedObjectPool}
+*/
+public ConnectionPool(ActiveMQConnection connection, boolean useLockFreeSessionPool) {
 
 this.connection = connection;
 
@@ -86,7 +105,7 @@ hasFailed = true;
 }
 
 // Create our internal Pool of session instances.
-this.sessionPool = new GenericKeyedObjectPool<SessionKey, PooledSession>(
+KeyedPoolableObjectFactory<SessionKey, PooledSession> sessionFactory =
 new KeyedPoolableObjectFactory<SessionKey, PooledSession>() {
 
 @Override
@@ -104,7 +123,7 @@ session.getInternalSession().close();
 public PooledSession makeObject(SessionKey key) throws Exception {
 ActiveMQSession session = (ActiveMQSession)
 ConnectionPool.this.connection.createSession(key.isTransacted(), key.getAckMode());
-return new PooledSession(key, session, sessionPool);
+return new PooledSession(key, session, getSessionPool());
 }
 
 @Override
@@ -116,8 +135,21 @@ ConnectionPool.this.loanedSessions.remove(session);
 public boolean validateObject(SessionKey key, PooledSession session) {
 return true;
 }
+};
+if (useLockFreeSessionPool) {
+this.sessionPool = null;
+this.lockFreeSessionPool = new LockFreeKeyedObjectPool<SessionKey, PooledSession>(sessionFactory);
+} else {
+this.sessionPool = new GenericKeyedObjectPool<SessionKey, PooledSession>(sessionFactory);
+this.lockFreeSessionPool = null;
+}
+}
+
+private KeyedObjectPool<SessionKey, PooledSession> getSessionPool() {
+if (lockFreeSessionPool != null) {
+return lockFreeSessionPool;
 }
-);
+return sessionPool;
 }
 
 public void start() throws JMSException {
@@ -131,25 +163,42 @@ throw(e);
 }
 }
 
-public synchronized ActiveMQConnection getConnection() {
+public ActiveMQConnection getConnection() {
 return connection;
 }
 
 public Session createSession(boolean transacted, int ackMode) throws JMSException {
 SessionKey key = new SessionKey(transacted, ackMode);
 PooledSession session;
+long start = System.nanoTime();
 try {
-session = sessionPool.borrowObject(key);
+session = getSessionPool().borrowObject(key);
 } catch (Exception e) {
 throw JMSExceptionSupport.create(e);
+} finally {
+long micros = (System.nanoTime() - start) / 1000;
+sessionWaitTimes.incrementAndGet(micros <= 0 ? 0 : Math.min(WAIT_TIME_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
 }
 return session;
 }
 
+/**
+* @return the number of createSession calls per wait time bucket, bucket 0
+*         counts waits below one microsecond and bucket n waits below 2^n
+*         microseconds
+*/
+public long[] getSessionWaitTimeHistogram() {
+long[] histogram = new long[WAIT_TIME_BUCKETS];
+for (int i = 0; i < WAIT_TIME_BUCKETS; i++) {
+histogram[i] = sessionWaitTimes.get(i);
+}
+return histogram;
+}
+
 public synchronized void close() {
 if (connection != null) {
 try {
-sessionPool.close();
+getSessionPool().close();
 } catch (Exception e) {
 } finally {
 try {
@@ -202,7 +251,18 @@ getConnection().cleanUpTempDestinations();
 *
 * @return true if this connection has expired.
 */
-public synchronized boolean expiredCheck() {
+public boolean expiredCheck() {
+// checked on every borrow of the connection, so skip the lock as long
+// as nothing can have expired, closing is left to the synchronized check
+if (connection != null && !hasExpired && !hasFailed
+&& (idleTimeout <= 0 || System.currentTimeMillis() <= lastUsed + idleTimeout)
+&& (expiryTimeout <= 0 || System.currentTimeMillis() <= firstUsed + expiryTimeout)) {
+return false;
+}
+return doExpiredCheck();
+}
+
+private synchronized boolean doExpiredCheck() {
 if (connection == null) {
 return true;
 }
@@ -244,33 +304,40 @@ return expiryTimeout;
 }
 
 public int getMaximumActiveSessionPerConnection() {
+if (lockFreeSessionPool != null) {
+return lockFreeSessionPool.getMaxActive();
+}
 return this.sessionPool.getMaxActive();
 }
 
 public void setMaximumActiveSessionPerConnection(int maximumActiveSessionPerConnection) {
+if (lockFreeSessionPool != null) {
+lockFreeSessionPool.setMaxActive(maximumActiveSessionPerConnection);
+} else {
 this.sessionPool.setMaxActive(maximumActiveSessionPerConnection);
 }
+}
 
 /**
 * @return the total number of Pooled session including idle sessions that are not
 *          currently loaned out to any client.
 */
 public int getNumSessions() {
-return this.sessionPool.getNumIdle() + this.sessionPool.getNumActive();
+return getSessionPool().getNumIdle() + getSessionPool().getNumActive();
 }
 
 /**
 * @return the total number of Sessions that are in the Session pool but not loaned out.
 */
 public int getNumIdleSessions() {
-return this.sessionPool.getNumIdle();
+return getSessionPool().getNumIdle();
 }
 
 /**
 * @return the total number of Session's that have been loaned to PooledConnection instances.
 */
 public int getNumActiveSessions() {
-return this.sessionPool.getNumActive();
+return getSessionPool().getNumActive();
 }
 
 /**
@@ -282,11 +349,18 @@ return this.sessionPool.getNumActive();
 * 		Indicates whether blocking should be used to wait for more space to create a session.
 */
 public void setBlockIfSessionPoolIsFull(boolean block) {
+if (lockFreeSessionPool != null) {
+lockFreeSessionPool.setBlockWhenExhausted(block);
+} else {
 this.sessionPool.setWhenExhaustedAction(
 (block ? GenericObjectPool.WHEN_EXHAUSTED_BLOCK : GenericObjectPool.WHEN_EXHAUSTED_FAIL));
 }
+}
 
 public boolean isBlockIfSessionPoolIsFull() {
+if (lockFreeSessionPool != null) {
+return lockFreeSessionPool.isBlockWhenExhausted();
+}
 return this.sessionPool.getWhenExhaustedAction() == GenericObjectPool.WHEN_EXHAUSTED_BLOCK;
 }
 
@@ -0,0 +1,358 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements.  See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License.  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.activemq.pool;
+
+import java.lang.ref.WeakReference;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.pool.KeyedObjectPool;
+import org.apache.commons.pool.KeyedPoolableObjectFactory;
+
+/**
+* A keyed object pool that does not take a lock to borrow or return an
+* instance.
+* <p/>
+* Every thread remembers the instance it returned last for each key and gets
+* it back on its next borrow with a single compare and set, so a thread that
+* keeps borrowing and returning, like a JmsTemplate send, never touches state
+* shared with other threads. Returned instances are also published on a
+* shared queue from which other threads can take them when they have no
+* instance of their own. Only a borrow that finds the pool exhausted blocks.
+* The remembered instances are only weakly referenced, a pool that is closed
+* and dropped is not kept alive by the threads that used it.
+*/
+class LockFreeKeyedObjectPool<K, V> implements KeyedObjectPool<K, V> {
+
+private static final int IDLE = 0;
+private static final int BORROWED = 1;
+private static final int DESTROYED = 2;
+
+private final KeyedPoolableObjectFactory<K, V> factory;
+private final ConcurrentHashMap<K, KeyPool> pools = new ConcurrentHashMap<K, KeyPool>();
+private final ConcurrentHashMap<V, Entry<K, V>> entries = new ConcurrentHashMap<V, Entry<K, V>>();
+private final ThreadLocal<ConcurrentHashMap<K, WeakReference<Entry<K, V>>>> affinity = new ThreadLocal<ConcurrentHashMap<K, WeakReference<Entry<K, V>>>>() {
+@Override
+protected ConcurrentHashMap<K, WeakReference<Entry<K, V>>> initialValue() {
+return new ConcurrentHashMap<K, WeakReference<Entry<K, V>>>();
+}
+};
+private volatile int maxActive = 8;
+private volatile boolean blockWhenExhausted = true;
+private volatile long maxWait = -1;
+private volatile boolean closed;
+
+private static final class Entry<K, V> {
+final K key;
+final V value;
+final AtomicInteger state = new AtomicInteger(BORROWED);
+final AtomicBoolean queued = new AtomicBoolean();
+final WeakReference<Entry<K, V>> reference;
+
+Entry(K key, V value) {
+this.key = key;
+this.value = value;
+this.reference = new WeakReference<Entry<K, V>>(this);
+}
+}
+
+private final class KeyPool {
+final ConcurrentLinkedQueue<Entry<K, V>> idle = new ConcurrentLinkedQueue<Entry<K, V>>();
+final AtomicInteger total = new AtomicInteger();
+final AtomicInteger active = new AtomicInteger();
+final AtomicInteger waiters = new AtomicInteger();
+}
+
+LockFreeKeyedObjectPool(KeyedPoolableObjectFactory<K, V> factory) {
+this.factory = factory;
+}
+
+@Override
+public V borrowObject(K key) throws Exception {
+long start = System.nanoTime();
+while (true) {
+if (closed) {
+throw new IllegalStateException("Pool closed");
+}
+KeyPool pool = getKeyPool(key);
+
+Entry<K, V> entry = null;
+WeakReference<Entry<K, V>> reference = affinity.get().get(key);
+if (reference != null) {
+entry = reference.get();
+if (entry != null && entry.state.compareAndSet(IDLE, BORROWED)) {
+return activate(pool, entry);
+}
+if (entry == null || entry.state.get() == DESTROYED) {
+affinity.get().remove(key);
+}
+}
+while ((entry = pool.idle.poll()) != null) {
+entry.queued.set(false);
+if (entry.state.compareAndSet(IDLE, BORROWED)) {
+return activate(pool, entry);
+}
+}
+
+int total = pool.total.get();
+if (!isExhausted(total)) {
+if (pool.total.compareAndSet(total, total + 1)) {
+V value;
+try {
+value = factory.makeObject(key);
+} catch (Exception e) {
+pool.total.decrementAndGet();
+throw e;
+}
+entry = new Entry<K, V>(key, value);
+entries.put(value, entry);
+return activate(pool, entry);
+}
+continue;
+}
+
+if (!blockWhenExhausted) {
+throw new NoSuchElementException("Pool exhausted");
+}
+long timeout = maxWait;
+if (timeout > 0 && System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(timeout)) {
+throw new NoSuchElementException("Timeout waiting for idle object");
+}
+pool.waiters.incrementAndGet();
+try {
+synchronized (pool) {
+// re-check under the monitor, returns notify it only when
+// somebody waits
+if (pool.idle.isEmpty() && isExhausted(pool.total.get()) && !closed) {
+pool.wait(timeout > 0 ? timeout : 100);
+}
+}
+} finally {
+pool.waiters.decrementAndGet();
+}
+}
+}
+
+private boolean isExhausted(int total) {
+int max = maxActive;
+// like commons-pool a negative maximum means no limit
+return max >= 0 && total >= max;
+}
+
+private V activate(KeyPool pool, Entry<K, V> entry) throws Exception {
+try {
+factory.activateObject(entry.key, entry.value);
+} catch (Exception e) {
+destroy(pool, entry);
+throw e;
+}
+pool.active.incrementAndGet();
+return entry.value;
+}
+
+@Override
+public void returnObject(K key, V obj) throws Exception {
+Entry<K, V> entry = entries.get(obj);
+if (entry == null || !entry.state.compareAndSet(BORROWED, IDLE)) {
+return;
+}
+KeyPool pool = getKeyPool(key);
+pool.active.decrementAndGet();
+try {
+factory.passivateObject(key, obj);
+} catch (Exception e) {
+if (entry.state.compareAndSet(IDLE, DESTROYED)) {
+destroy(pool, entry);
+}
+return;
+}
+if (closed) {
+if (entry.state.compareAndSet(IDLE, DESTROYED)) {
+destroy(pool, entry);
+}
+return;
+}
+affinity.get().put(key, entry.reference);
+if (entry.queued.compareAndSet(false, true)) {
+pool.idle.offer(entry);
+}
+wakeWaiter(pool);
+}
+
+@Override
+public void invalidateObject(K key, V obj) throws Exception {
+Entry<K, V> entry = entries.get(obj);
+if (entry == null) {
+return;
+}
+KeyPool pool = getKeyPool(key);
+int previous = entry.state.getAndSet(DESTROYED);
+if (previous == BORROWED) {
+pool.active.decrementAndGet();
+}
+if (previous != DESTROYED) {
+destroy(pool, entry);
+wakeWaiter(pool);
+}
+}
+
+private void destroy(KeyPool pool, Entry<K, V> entry) throws Exception {
+entry.state.set(DESTROYED);
+if (entries.remove(entry.value) != null) {
+pool.total.decrementAndGet();
+factory.destroyObject(entry.key, entry.value);
+}
+}
+
+private void wakeWaiter(KeyPool pool) {
+if (pool.waiters.get() > 0) {
+synchronized (pool) {
+pool.notify();
+}
+}
+}
+
+@Override
+public void addObject(K key) throws Exception {
+KeyPool pool = getKeyPool(key);
+pool.total.incrementAndGet();
+V value;
+try {
+value = factory.makeObject(key);
+} catch (Exception e) {
+pool.total.decrementAndGet();
+throw e;
+}
+Entry<K, V> entry = new Entry<K, V>(key, value);
+entry.state.set(IDLE);
+entries.put(value, entry);
+factory.passivateObject(key, value);
+entry.queued.set(true);
+pool.idle.offer(entry);
+}
+
+@Override
+public int getNumIdle(K key) {
+KeyPool pool = pools.get(key);
+return pool == null ? 0 : Math.max(0, pool.total.get() - pool.active.get());
+}
+
+@Override
+public int getNumActive(K key) {
+KeyPool pool = pools.get(key);
+return pool == null ? 0 : pool.active.get();
+}
+
+@Override
+public int getNumIdle() {
+int count = 0;
+for (K key : pools.keySet()) {
+count += getNumIdle(key);
+}
+return count;
+}
+
+@Override
+public int getNumActive() {
+int count = 0;
+for (KeyPool pool : pools.values()) {
+count += pool.active.get();
+}
+return count;
+}
+
+@Override
+public void clear() throws Exception {
+for (K key : pools.keySet()) {
+clear(key);
+}
+}
+
+@Override
+public void clear(K key) throws Exception {
+KeyPool pool = pools.get(key);
+if (pool == null) {
+return;
+}
+Entry<K, V> entry;
+while ((entry = pool.idle.poll()) != null) {
+entry.queued.set(false);
+if (entry.state.compareAndSet(IDLE, DESTROYED)) {
+destroy(pool, entry);
+}
+}
+}
+
+@Override
+public void close() throws Exception {
+closed = true;
+// other threads drop their weak references on their own
+affinity.remove();
+clear();
+for (KeyPool pool : pools.values()) {
+synchronized (pool) {
+pool.notifyAll();
+}
+}
+}
+
+@Override
+@Deprecated
+public void setFactory(KeyedPoolableObjectFactory<K, V> factory) {
+throw new IllegalStateException("Factory may not be replaced");
+}
+
+private KeyPool getKeyPool(K key) {
+KeyPool pool = pools.get(key);
+if (pool == null) {
+pool = new KeyPool();
+KeyPool existing = pools.putIfAbsent(key, pool);
+if (existing != null) {
+pool = existing;
+}
+}
+return pool;
+}
+
+int getMaxActive() {
+return maxActive;
+}
+
+void setMaxActive(int maxActive) {
+this.maxActive = maxActive;
+}
+
+boolean isBlockWhenExhausted() {
+return blockWhenExhausted;
+}
+
+void setBlockWhenExhausted(boolean blockWhenExhausted) {
+this.blockWhenExhausted = blockWhenExhausted;
+}
+
+long getMaxWait() {
+return maxWait;
+}
+
+void setMaxWait(long maxWait) {
+this.maxWait = maxWait;
+}
+}
\ No newline at end of file
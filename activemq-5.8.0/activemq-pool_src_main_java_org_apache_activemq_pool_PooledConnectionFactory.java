@@ -16,6 +16,9 @@
 */
 package org.apache.activemq.pool;
 
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.jms.Connection;
@@ -76,6 +79,8 @@ private int idleTimeout = 30 * 1000;
 private boolean blockIfSessionPoolIsFull = true;
 private long expiryTimeout = 0l;
 private boolean createConnectionOnStartup = true;
+private boolean useLockFreeSessionPool;
+private final Set<ConnectionPool> connectionPools = Collections.newSetFromMap(new ConcurrentHashMap<ConnectionPool, Boolean>());
 
 /**
 * Creates new PooledConnectionFactory with a default ActiveMQConnectionFactory instance.
@@ -116,6 +121,7 @@ public void activateObject(ConnectionKey key, ConnectionPool connection) throws
 
 @Override
 public void destroyObject(ConnectionKey key, ConnectionPool connection) throws Exception {
+connectionPools.remove(connection);
 try {
 if (LOG.isTraceEnabled()) {
 LOG.trace("Destroying connection: {}", connection);
@@ -135,6 +141,7 @@ connection.setIdleTimeout(getIdleTimeout());
 connection.setExpiryTimeout(getExpiryTimeout());
 connection.setMaximumActiveSessionPerConnection(getMaximumActiveSessionPerConnection());
 connection.setBlockIfSessionPoolIsFull(isBlockIfSessionPoolIsFull());
+connectionPools.add(connection);
 
 if (LOG.isTraceEnabled()) {
 LOG.trace("Created new connection: {}", connection);
@@ -485,6 +492,41 @@ return this.connectionsPool.getNumIdle();
 public void setPoolFactory(ObjectPoolFactory<?> factory) {
 }
 
+/**
+* @return true if the sessions of new Connections are pooled without locking.
+*/
+public boolean isUseLockFreeSessionPool() {
+return useLockFreeSessionPool;
+}
+
+/**
+* Sets whether new Connections pool their sessions in a lock free pool that hands each
+* thread back the session it returned last, instead of the default commons-pool based
+* pool.  This helps when many threads create and close sessions at a high rate, such as
+* JmsTemplate sends.
+*
+* @param useLockFreeSessionPool
+*      true to use the lock free session pool for Connections created from now on.
+*/
+public void setUseLockFreeSessionPool(boolean useLockFreeSessionPool) {
+this.useLockFreeSessionPool = useLockFreeSessionPool;
+}
+
+/**
+* @return the number of createSession calls per wait time bucket summed over all pooled
+*         Connections, see {@link ConnectionPool#getSessionWaitTimeHistogram()}
+*/
+public long[] getSessionWaitTimeHistogram() {
+long[] histogram = new long[ConnectionPool.WAIT_TIME_BUCKETS];
+for (ConnectionPool connection : connectionPools) {
+long[] counts = connection.getSessionWaitTimeHistogram();
+for (int i = 0; i < histogram.length; i++) {
+histogram[i] += counts[i];
+}
+}
+return histogram;
+}
+
 /**
 * Delegate that creates each instance of an ConnectionPool object.  Subclasses can override
 * this method to customize the type of connection pool returned.
@@ -494,6 +536,6 @@ public void setPoolFactory(ObjectPoolFactory<?> factory) {
 * @return instance of a new ConnectionPool.
 */
 protected ConnectionPool createConnectionPool(ActiveMQConnection connection) {
-return new ConnectionPool(connection);
+return new ConnectionPool(connection, isUseLockFreeSessionPool());
 }
 }
\ No newline at end of file
@@ -29,6 +29,7 @@ import org.apache.hadoop.hbase.HRegionLocation;
 import org.apache.hadoop.hbase.DoNotRetryIOException;
 import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.HRegionLocation;
+import org.apache.hadoop.hbase.ServerName;
 import org.apache.hadoop.hbase.protobuf.generated.Tracing;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.hadoop.hbase.util.EnvironmentEdgeManager;
@@ -63,6 +64,13 @@ import java.util.concurrent.atomic.AtomicLong;
 * to submit will block.
 * </p>
 * <p>
+* Each region server has its own window of tasks in progress. A server whose window is full
+* does not take new operations, they stay in the list until the server answers, so a slow
+* server only holds back the operations that go to it. When nothing at all can be sent the
+* call to submit blocks, which is the back-pressure seen by HTable.put callers. Optionally the
+* number of operations per multi action adapts to the response time of each server.
+* </p>
+* <p>
 * The class manages internally the retries.
 * </p>
 * <p>
@@ -103,6 +111,14 @@ protected final ConcurrentMap<String, AtomicInteger> taskCounterPerRegion =
 new ConcurrentHashMap<String, AtomicInteger>();
 protected final int maxTotalConcurrentTasks;
 protected final int maxConcurrentTasksPerRegion;
+protected final int maxConcurrentTasksPerServer;
+protected final ConcurrentMap<ServerName, ServerWindow> windowPerServer =
+new ConcurrentHashMap<ServerName, ServerWindow>();
+protected final boolean adaptiveBatchSize;
+protected final int minBatchSize;
+protected final int maxBatchSize;
+protected final long targetBatchLatency;
+protected final AtomicLong submitWaitTime = new AtomicLong(0);
 protected final long pause;
 protected int numTries;
 protected final boolean useServerTrackerForRetries;
@@ -173,6 +189,22 @@ addresses.clear();
 }
 }
 
+/**
+* The flow control state of a region server: the tasks and actions sent to it that are not
+* answered yet, the number of actions to put in the next multi action and the average
+* response time.
+*/
+protected static class ServerWindow {
+private final AtomicInteger tasksInProgress = new AtomicInteger();
+private final AtomicInteger actionsInProgress = new AtomicInteger();
+private volatile int batchSize;
+private volatile long averageLatency;
+
+ServerWindow(int batchSize) {
+this.batchSize = batchSize;
+}
+}
+
 public AsyncProcess(HConnection hc, TableName tableName, ExecutorService pool,
 AsyncProcessCallback<CResult> callback, Configuration conf,
 RpcRetryingCallerFactory rpcCaller) {
@@ -193,6 +225,16 @@ this.maxTotalConcurrentTasks = conf.getInt("hbase.client.max.total.tasks", 200);
 //  the pressure we put on the region server.
 this.maxConcurrentTasksPerRegion = conf.getInt("hbase.client.max.perregion.tasks", 1);
 
+// A server that does not answer quickly enough gets no more than this number of tasks, the
+//  other servers keep on receiving operations.
+this.maxConcurrentTasksPerServer = conf.getInt("hbase.client.max.perserver.tasks", 5);
+
+// Without the adaptive batch size, a multi action takes all the operations for its server.
+this.adaptiveBatchSize = conf.getBoolean("hbase.client.perserver.batch.adaptive", false);
+this.minBatchSize = conf.getInt("hbase.client.perserver.batch.min", 10);
+this.maxBatchSize = conf.getInt("hbase.client.perserver.batch.max", 1000);
+this.targetBatchLatency = conf.getLong("hbase.client.perserver.batch.target.latency", 100);
+
 this.useServerTrackerForRetries =
 conf.getBoolean(HConnectionManager.RETRIES_BY_SERVER_KEY, true);
 
@@ -231,6 +273,7 @@ List<Action<Row>> retainedActions = new ArrayList<Action<Row>>(rows.size());
 
 do {
 Map<String, Boolean> regionIncluded = new HashMap<String, Boolean>();
+Map<ServerName, Boolean> serverIncluded = new HashMap<ServerName, Boolean>();
 long currentTaskNumber = waitForMaximumCurrentTasks(maxTotalConcurrentTasks);
 int posInList = -1;
 Iterator<? extends Row> it = rows.iterator();
@@ -238,7 +281,8 @@ while (it.hasNext()) {
 Row r = it.next();
 HRegionLocation loc = findDestLocation(r, 1, posInList, false, regionIncluded);
 
-if (loc != null) {   // loc is null if the dest is too busy or there is an error
+// loc is null if the dest is too busy or there is an error
+if (loc != null && canTakeNewOperations(loc, serverIncluded, actionsByServer)) {
 Action<Row> action = new Action<Row>(r, ++posInList);
 retainedActions.add(action);
 addAction(loc, action, actionsByServer);
@@ -247,7 +291,10 @@ it.remove();
 }
 
 if (retainedActions.isEmpty() && atLeastOne && !hasError()) {
+// all the servers we have operations for are busy
+long start = EnvironmentEdgeManager.currentTimeMillis();
 waitForNextTaskDone(currentTaskNumber);
+submitWaitTime.addAndGet(EnvironmentEdgeManager.currentTimeMillis() - start);
 }
 
 } while (retainedActions.isEmpty() && atLeastOne && !hasError());
@@ -333,6 +380,65 @@ AtomicInteger ct = taskCounterPerRegion.get(encodedRegionName);
 return ct == null || ct.get() < maxConcurrentTasksPerRegion;
 }
 
+/**
+* Check if we should send a new operation to the server of this location. The window of the
+* server is looked at once per submit round, so that all the operations of a region are kept
+* in order, then the multi action being built for the server must not be full.
+*
+* @param loc the destination
+* @param serverStatus the servers already looked at during this round
+* @param actionsByServer the multi actions built during this round
+* @return true if the operation can be added to the multi action of the server.
+*/
+protected boolean canTakeNewOperations(HRegionLocation loc, Map<ServerName, Boolean> serverStatus,
+Map<HRegionLocation, MultiAction<Row>> actionsByServer) {
+ServerName serverName = loc.getServerName();
+ServerWindow window = getServerWindow(serverName);
+Boolean addIt = serverStatus.get(serverName);
+if (addIt == null) {
+addIt = window.tasksInProgress.get() < maxConcurrentTasksPerServer;
+serverStatus.put(serverName, addIt);
+}
+if (!addIt) {
+return false;
+}
+MultiAction<Row> multiAction = actionsByServer.get(loc);
+return multiAction == null || multiAction.size() < window.batchSize;
+}
+
+private ServerWindow getServerWindow(ServerName serverName) {
+ServerWindow window = windowPerServer.get(serverName);
+if (window == null) {
+window = new ServerWindow(adaptiveBatchSize ? maxBatchSize : Integer.MAX_VALUE);
+ServerWindow existing = windowPerServer.putIfAbsent(serverName, window);
+if (existing != null) {
+window = existing;
+}
+}
+return window;
+}
+
+/**
+* Updates the average response time of the server and, if the batch size is adaptive, halves
+* the number of actions per multi action when the server answers too slowly or fails, and
+* increases it when a full multi action was answered in time.
+*/
+private void updateServerWindow(ServerWindow window, int actions, long latency,
+boolean failed) {
+if (!failed) {
+window.averageLatency = (window.averageLatency * 7 + latency) / 8;
+}
+if (!adaptiveBatchSize) {
+return;
+}
+int current = window.batchSize;
+if (failed || latency > targetBatchLatency) {
+window.batchSize = Math.max(minBatchSize, current / 2);
+} else if (actions >= current) {
+window.batchSize = Math.min(maxBatchSize, current + Math.max(1, current / 8));
+}
+}
+
 /**
 * Submit immediately the list of rows, whatever the server status. Kept for backward
 * compatibility: it allows to be used with the batch interface that return an array of objects.
@@ -407,8 +513,12 @@ for (Map.Entry<HRegionLocation, MultiAction<Row>> e : actionsByServer.entrySet()
 final HRegionLocation loc = e.getKey();
 final MultiAction<Row> multi = e.getValue();
 final String regionName = loc.getRegionInfo().getEncodedName();
+final ServerWindow window = getServerWindow(loc.getServerName());
+final int actions = multi.size();
 
 incTaskCounters(regionName);
+window.tasksInProgress.incrementAndGet();
+window.actionsInProgress.addAndGet(actions);
 
 Runnable runnable = Trace.wrap("AsyncProcess.sendMultiAction", new Runnable() {
 @Override
@@ -416,17 +526,23 @@ public void run() {
 MultiResponse res;
 try {
 MultiServerCallable<Row> callable = createCallable(loc, multi);
+long start = EnvironmentEdgeManager.currentTimeMillis();
 try {
 res = createCaller(callable).callWithoutRetries(callable);
 } catch (IOException e) {
+updateServerWindow(window, actions, 0, true);
 LOG.warn("The call to the RS failed, we don't know where we stand. location="
 + loc, e);
 resubmitAll(initialActions, multi, loc, numAttempt + 1, e, errorsByServer);
 return;
 }
+updateServerWindow(window, actions,
+EnvironmentEdgeManager.currentTimeMillis() - start, false);
 
 receiveMultiAction(initialActions, multi, loc, res, numAttempt, errorsByServer);
 } finally {
+window.actionsInProgress.addAndGet(-actions);
+window.tasksInProgress.decrementAndGet();
 decTaskCounters(regionName);
 }
 }
@@ -437,6 +553,8 @@ this.pool.submit(runnable);
 } catch (RejectedExecutionException ree) {
 // This should never happen. But as the pool is provided by the end user, let's secure
 //  this a little.
+window.actionsInProgress.addAndGet(-actions);
+window.tasksInProgress.decrementAndGet();
 decTaskCounters(regionName);
 LOG.warn("The task was rejected by the pool. This is unexpected. " +
 "location=" + loc, ree);
@@ -710,6 +828,53 @@ public RetriesExhaustedWithDetailsException getErrors() {
 return errors.makeException();
 }
 
+/**
+* @return for each server, the number of actions sent and not answered yet.
+*/
+public Map<ServerName, Integer> getServerQueueDepths() {
+Map<ServerName, Integer> depths = new HashMap<ServerName, Integer>();
+for (Map.Entry<ServerName, ServerWindow> e : windowPerServer.entrySet()) {
+depths.put(e.getKey(), e.getValue().actionsInProgress.get());
+}
+return depths;
+}
+
+/**
+* @return for each server, the number of tasks sent and not answered yet.
+*/
+public Map<ServerName, Integer> getServerTasksInProgress() {
+Map<ServerName, Integer> tasks = new HashMap<ServerName, Integer>();
+for (Map.Entry<ServerName, ServerWindow> e : windowPerServer.entrySet()) {
+tasks.put(e.getKey(), e.getValue().tasksInProgress.get());
+}
+return tasks;
+}
+
+/**
+* @return the current maximum number of actions per multi action for the server.
+*/
+public int getServerBatchSize(ServerName serverName) {
+ServerWindow window = windowPerServer.get(serverName);
+return window == null ? (adaptiveBatchSize ? maxBatchSize : Integer.MAX_VALUE) :
+window.batchSize;
+}
+
+/**
+* @return the average response time of the server in milliseconds.
+*/
+public long getServerAverageLatency(ServerName serverName) {
+ServerWindow window = windowPerServer.get(serverName);
+return window == null ? 0 : window.averageLatency;
+}
+
+/**
+* @return the total time, in milliseconds, submit was blocked because all the servers it had
+* operations for were busy.
+*/
+public long getSubmitWaitTime() {
+return submitWaitTime.get();
+}
+
 /**
 * incrementer the tasks counters for a given region. MT safe.
 */
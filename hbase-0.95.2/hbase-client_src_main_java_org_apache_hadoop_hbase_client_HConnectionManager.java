@@ -20,11 +20,11 @@ package org.apache.hadoop.hbase.client;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.UndeclaredThrowableException;
 import java.net.SocketException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -34,13 +34,17 @@ import java.util.NavigableMap;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -162,7 +166,6 @@ import org.apache.hadoop.hbase.regionserver.RegionServerStoppedException;
 import org.apache.hadoop.hbase.security.User;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.hadoop.hbase.util.EnvironmentEdgeManager;
-import org.apache.hadoop.hbase.util.SoftValueSortedMap;
 import org.apache.hadoop.hbase.util.Threads;
 import org.apache.hadoop.hbase.zookeeper.MasterAddressTracker;
 import org.apache.hadoop.hbase.zookeeper.ZKUtil;
@@ -543,8 +546,6 @@ private volatile boolean aborted;
 // package protected for the tests
 ClusterStatusListener clusterStatusListener;
 
-private final Object userRegionLock = new Object();
-
 // We have a single lock for master & zk to prevent deadlocks. Having
 //  one lock for ZK and one lock for master is not possible:
 //  When creating a connection to master, we need a connection to ZK to get
@@ -567,18 +568,36 @@ private final Configuration conf;
 private RpcClient rpcClient;
 
 /**
-* Map of table to table {@link HRegionLocation}s.
+* Map of table to table {@link HRegionLocation}s, keyed on the region start key.
+* Readers never lock, writers only replace an entry when it still holds the
+* location they based their decision on.
 */
-private final Map<TableName, SoftValueSortedMap<byte[], HRegionLocation>>
+private final ConcurrentMap<TableName, ConcurrentSkipListMap<byte[], HRegionLocation>>
 cachedRegionLocations =
-new HashMap<TableName, SoftValueSortedMap<byte[], HRegionLocation>>();
+new ConcurrentHashMap<TableName, ConcurrentSkipListMap<byte[], HRegionLocation>>();
 
-// The presence of a server in the map implies it's likely that there is an
+// The presence of a server in the set implies it's likely that there is an
 // entry in cachedRegionLocations that map to this server; but the absence
-// of a server in this map guarentees that there is no entry in cache that
-// maps to the absent server.
-// The access to this attribute must be protected by a lock on cachedRegionLocations
-private final Set<ServerName> cachedServers = new HashSet<ServerName>();
+// of a server in this set guarentees that there is no entry in cache that
+// maps to the absent server, except for locations cached while the server
+// is being cleared. A server is added after its location is put into the
+// cache and removed before its locations are evicted.
+private final Set<ServerName> cachedServers = new ConcurrentSkipListSet<ServerName>();
+
+// .META. lookups in flight, per table and keyed on the row they look up.
+// Lookups for rows of the same region wait for the first one instead of
+// all asking .META. for the same location.
+private final ConcurrentMap<TableName, ConcurrentSkipListMap<byte[], MetaLookup>>
+metaLookupsInProgress =
+new ConcurrentHashMap<TableName, ConcurrentSkipListMap<byte[], MetaLookup>>();
+
+// region location cache statistics
+private final AtomicLong regionCacheHits = new AtomicLong();
+private final AtomicLong regionCacheMisses = new AtomicLong();
+private final AtomicLong regionCacheRelocations = new AtomicLong();
+private final AtomicLong regionCacheEvictions = new AtomicLong();
+private final AtomicLong metaLookups = new AtomicLong();
+private final AtomicLong coalescedMetaLookups = new AtomicLong();
 
 // region cache prefetch is enabled by default. this set contains all
 // tables whose region cache prefetch are disabled.
@@ -1034,7 +1053,7 @@ return this.registry.getMetaRegionLocation();
 } else {
 // Region not in the cache - have to go to the meta RS
 return locateRegionInMeta(TableName.META_TABLE_NAME, tableName, row,
-useCache, userRegionLock, retry);
+useCache, retry);
 }
 }
 
@@ -1094,7 +1113,7 @@ LOG.warn("Encountered problems when prefetch META table: ", e);
 */
 private HRegionLocation locateRegionInMeta(final TableName parentTable,
 final TableName tableName, final byte [] row, boolean useCache,
-Object regionLockObject, boolean retry)
+boolean retry)
 throws IOException {
 HRegionLocation location;
 // If we are supposed to be using the cache, look in the cache to see if
@@ -1102,8 +1121,10 @@ HRegionLocation location;
 if (useCache) {
 location = getCachedLocation(tableName, row);
 if (location != null) {
+regionCacheHits.incrementAndGet();
 return location;
 }
+regionCacheMisses.incrementAndGet();
 }
 int localNumRetries = retry ? numTries : 1;
 // build the key of the meta region we should be looking for.
@@ -1118,6 +1139,7 @@ throw new NoServerForRegionException("Unable to find region for "
 }
 
 HRegionLocation metaLocation = null;
+MetaLookup lookup = null;
 try {
 // locate the meta region
 metaLocation = locateRegion(parentTable, metaKey, true, false);
@@ -1126,13 +1148,17 @@ if (metaLocation == null) continue;
 ClientService.BlockingInterface service = getClient(metaLocation.getServerName());
 
 Result regionInfoRow;
-// This block guards against two threads trying to load the meta
-// region at the same time. The first will load the meta region and
-// the second will use the value that the first one found.
-synchronized (regionLockObject) {
-// Check the cache again for a hit in case some other thread made the
-// same query while we were waiting on the lock.
 if (useCache) {
+// Guards against many threads loading the same region from meta at
+// the same time. The first one queries meta, the others use the
+// value that the first one found.
+lookup = new MetaLookup();
+location = joinOrStartMetaLookup(tableName, row, lookup);
+if (location != null) {
+return location;
+}
+// Check the cache again for a hit in case some other thread made the
+// same query before we registered our lookup.
 location = getCachedLocation(tableName, row);
 if (location != null) {
 return location;
@@ -1153,10 +1179,10 @@ return location;
 forceDeleteCachedLocation(tableName, row);
 }
 // Query the meta region for the location of the meta region
+metaLookups.incrementAndGet();
 regionInfoRow = ProtobufUtil.getRowOrBefore(service,
 metaLocation.getRegionInfo().getRegionName(), metaKey,
 HConstants.CATALOG_FAMILY);
-}
 if (regionInfoRow == null) {
 throw new TableNotFoundException(tableName);
 }
@@ -1231,6 +1257,10 @@ if(!(e instanceof RegionOfflineException ||
 e instanceof NoServerForRegionException)) {
 relocateRegion(parentTable, metaKey);
 }
+} finally {
+if (lookup != null) {
+finishMetaLookup(tableName, row, lookup);
+}
 }
 try{
 Thread.sleep(ConnectionUtils.getPauseTime(this.pause, tries));
@@ -1242,12 +1272,74 @@ throw new IOException("Giving up trying to location region in " +
 }
 }
 
+/**
+* A lookup of a region location in meta that other threads can wait for.
+*/
+private static final class MetaLookup {
+private final CountDownLatch done = new CountDownLatch(1);
+}
+
+/*
+* Waits for the lookup in flight that is closest to, but not after, the
+* given row and returns the location it cached if it covers the row.
+* Otherwise registers the passed lookup so that others can wait for it
+* and returns null; the caller then has to query meta and call
+* finishMetaLookup when done.
+*/
+private HRegionLocation joinOrStartMetaLookup(final TableName tableName,
+final byte [] row, final MetaLookup lookup) throws IOException {
+ConcurrentSkipListMap<byte[], MetaLookup> lookups = getMetaLookups(tableName);
+boolean waited = false;
+while (true) {
+Entry<byte[], MetaLookup> inFlight = lookups.floorEntry(row);
+// a lookup of an earlier row is only worth waiting for once, it may
+// well be for a different region
+if (inFlight == null || (waited && !Bytes.equals(inFlight.getKey(), row))) {
+if (lookups.putIfAbsent(row, lookup) == null) {
+return null;
+}
+continue;
+}
+try {
+inFlight.getValue().done.await();
+} catch (InterruptedException e) {
+Thread.currentThread().interrupt();
+throw new InterruptedIOException("Interrupted waiting for the location of " +
+Bytes.toStringBinary(row) + " in " + tableName);
+}
+waited = true;
+HRegionLocation location = getCachedLocation(tableName, row);
+if (location != null) {
+coalescedMetaLookups.incrementAndGet();
+return location;
+}
+}
+}
+
+private void finishMetaLookup(final TableName tableName, final byte [] row,
+final MetaLookup lookup) {
+getMetaLookups(tableName).remove(row, lookup);
+lookup.done.countDown();
+}
+
+private ConcurrentSkipListMap<byte[], MetaLookup> getMetaLookups(
+final TableName tableName) {
+ConcurrentSkipListMap<byte[], MetaLookup> result = metaLookupsInProgress.get(tableName);
+if (result == null) {
+result = new ConcurrentSkipListMap<byte[], MetaLookup>(Bytes.BYTES_COMPARATOR);
+ConcurrentSkipListMap<byte[], MetaLookup> old =
+metaLookupsInProgress.putIfAbsent(tableName, result);
+if (old != null) {
+result = old;
+}
+}
+return result;
+}
+
 /*
 * Search the cache for a location that fits our table and row key.
-* Return null if no suitable region is located. TODO: synchronization note
-*
-* <p>TODO: This method during writing consumes 15% of CPU doing lookup
-* into the Soft Reference SortedMap.  Improve.
+* Return null if no suitable region is located. Does not lock, the
+* returned location was valid in the cache at some point during the call.
 *
 * @param tableName
 * @param row
@@ -1255,24 +1347,15 @@ throw new IOException("Giving up trying to location region in " +
 */
 HRegionLocation getCachedLocation(final TableName tableName,
 final byte [] row) {
-SoftValueSortedMap<byte[], HRegionLocation> tableLocations =
+ConcurrentSkipListMap<byte[], HRegionLocation> tableLocations =
 getTableLocations(tableName);
 
-// start to examine the cache. we can only do cache actions
-// if there's something in the cache for this table.
-if (tableLocations.isEmpty()) {
-return null;
-}
-
-HRegionLocation possibleRegion = tableLocations.get(row);
-if (possibleRegion != null) {
-return possibleRegion;
-}
-
-possibleRegion = tableLocations.lowerValueByKey(row);
-if (possibleRegion == null) {
+// the region whose start key is the closest at or before the row
+Entry<byte[], HRegionLocation> e = tableLocations.floorEntry(row);
+if (e == null) {
 return null;
 }
+HRegionLocation possibleRegion = e.getValue();
 
 // make sure that the end key is greater than the row we're looking
 // for, otherwise the row actually belongs in the next region, not
@@ -1296,17 +1379,11 @@ return null;
 * @param row
 */
 void forceDeleteCachedLocation(final TableName tableName, final byte [] row) {
-HRegionLocation rl = null;
-synchronized (this.cachedRegionLocations) {
 Map<byte[], HRegionLocation> tableLocations = getTableLocations(tableName);
-// start to examine the cache. we can only do cache actions
-// if there's something in the cache for this table.
-if (!tableLocations.isEmpty()) {
-rl = getCachedLocation(tableName, row);
-if (rl != null) {
-tableLocations.remove(rl.getRegionInfo().getStartKey());
-}
-}
+HRegionLocation rl = getCachedLocation(tableName, row);
+if (rl != null && !tableLocations.remove(rl.getRegionInfo().getStartKey(), rl)) {
+// replaced by a concurrent update in the meantime, which is new enough
+rl = null;
 }
 if ((rl != null) && LOG.isDebugEnabled()) {
 LOG.debug("Removed " + rl.getHostname() + ":" + rl.getPort()
@@ -1321,8 +1398,7 @@ LOG.debug("Removed " + rl.getHostname() + ":" + rl.getPort()
 @Override
 public void clearCaches(final ServerName serverName){
 boolean deletedSomething = false;
-synchronized (this.cachedRegionLocations) {
-if (!cachedServers.contains(serverName)) {
+if (!cachedServers.remove(serverName)) {
 return;
 }
 for (Map<byte[], HRegionLocation> tableLocations :
@@ -1330,14 +1406,13 @@ cachedRegionLocations.values()) {
 for (Entry<byte[], HRegionLocation> e : tableLocations.entrySet()) {
 HRegionLocation value = e.getValue();
 if (value != null
-&& serverName.equals(value.getServerName())) {
-tableLocations.remove(e.getKey());
+&& serverName.equals(value.getServerName())
+&& tableLocations.remove(e.getKey(), value)) {
+regionCacheEvictions.incrementAndGet();
 deletedSomething = true;
 }
 }
 }
-cachedServers.remove(serverName);
-}
 if (deletedSomething && LOG.isDebugEnabled()) {
 LOG.debug("Removed all cached region locations that map to " + serverName);
 }
@@ -1347,16 +1422,18 @@ LOG.debug("Removed all cached region locations that map to " + serverName);
 * @param tableName
 * @return Map of cached locations for passed <code>tableName</code>
 */
-private SoftValueSortedMap<byte[], HRegionLocation> getTableLocations(
+private ConcurrentSkipListMap<byte[], HRegionLocation> getTableLocations(
 final TableName tableName) {
 // find the map of cached locations for this table
-SoftValueSortedMap<byte[], HRegionLocation> result;
-synchronized (this.cachedRegionLocations) {
-result = this.cachedRegionLocations.get(tableName);
+ConcurrentSkipListMap<byte[], HRegionLocation> result =
+this.cachedRegionLocations.get(tableName);
 // if tableLocations for this table isn't built yet, make one
 if (result == null) {
-result = new SoftValueSortedMap<byte[], HRegionLocation>(Bytes.BYTES_COMPARATOR);
-this.cachedRegionLocations.put(tableName, result);
+result = new ConcurrentSkipListMap<byte[], HRegionLocation>(Bytes.BYTES_COMPARATOR);
+ConcurrentSkipListMap<byte[], HRegionLocation> old =
+this.cachedRegionLocations.putIfAbsent(tableName, result);
+if (old != null) {
+result = old;
 }
 }
 return result;
@@ -1364,18 +1441,14 @@ return result;
 
 @Override
 public void clearRegionCache() {
-synchronized(this.cachedRegionLocations) {
 this.cachedRegionLocations.clear();
 this.cachedServers.clear();
 }
-}
 
 @Override
 public void clearRegionCache(final TableName tableName) {
-synchronized (this.cachedRegionLocations) {
 this.cachedRegionLocations.remove(tableName);
 }
-}
 
 @Override
 public void clearRegionCache(final byte[] tableName) {
@@ -1392,17 +1465,21 @@ private void cacheLocation(final TableName tableName, final HRegionLocation sour
 final HRegionLocation location) {
 boolean isFromMeta = (source == null);
 byte [] startKey = location.getRegionInfo().getStartKey();
-Map<byte[], HRegionLocation> tableLocations =
+ConcurrentMap<byte[], HRegionLocation> tableLocations =
 getTableLocations(tableName);
 boolean isNewCacheEntry = false;
 boolean isStaleUpdate = false;
 HRegionLocation oldLocation = null;
-synchronized (this.cachedRegionLocations) {
-cachedServers.add(location.getServerName());
-oldLocation = tableLocations.get(startKey);
+// retried until the location we decided on is still the cached one
+while (true) {
+oldLocation = tableLocations.putIfAbsent(startKey, location);
 isNewCacheEntry = (oldLocation == null);
+if (isNewCacheEntry) {
+break;
+}
+isStaleUpdate = false;
 // If the server in cache sends us a redirect, assume it's always valid.
-if (!isNewCacheEntry && !oldLocation.equals(source)) {
+if (!oldLocation.equals(source)) {
 long newLocationSeqNum = location.getSeqNum();
 // Meta record is stale - some (probably the same) server has closed the region
 // with later seqNum and told us about the new location.
@@ -1415,9 +1492,18 @@ boolean isStaleMetaRecord = isFromMeta && (oldLocation.getSeqNum() > newLocation
 boolean isStaleRedirect = !isFromMeta && (oldLocation.getSeqNum() >= newLocationSeqNum);
 isStaleUpdate = (isStaleMetaRecord || isStaleRedirect);
 }
-if (!isStaleUpdate) {
-tableLocations.put(startKey, location);
+if (isStaleUpdate) {
+break;
 }
+if (tableLocations.replace(startKey, oldLocation, location)) {
+if (!oldLocation.getServerName().equals(location.getServerName())) {
+regionCacheRelocations.incrementAndGet();
+}
+break;
+}
+}
+if (!isStaleUpdate) {
+cachedServers.add(location.getServerName());
 }
 if (isNewCacheEntry) {
 if (LOG.isTraceEnabled()) {
@@ -2248,10 +2334,8 @@ closeMasterService(monitorMasterServiceState);
 void updateCachedLocation(HRegionInfo hri, HRegionLocation source,
 ServerName serverName, long seqNum) {
 HRegionLocation newHrl = new HRegionLocation(hri, serverName, seqNum);
-synchronized (this.cachedRegionLocations) {
 cacheLocation(hri.getTableName(), source, newHrl);
 }
-}
 
 /**
 * Deletes the cached location of the region if necessary, based on some error from source.
@@ -2259,18 +2343,15 @@ cacheLocation(hri.getTableName(), source, newHrl);
 * @param source The source of the error that prompts us to invalidate cache.
 */
 void deleteCachedLocation(HRegionInfo hri, HRegionLocation source) {
-boolean isStaleDelete = false;
-HRegionLocation oldLocation;
-synchronized (this.cachedRegionLocations) {
 Map<byte[], HRegionLocation> tableLocations =
 getTableLocations(hri.getTableName());
-oldLocation = tableLocations.get(hri.getStartKey());
+HRegionLocation oldLocation = tableLocations.get(hri.getStartKey());
 if (oldLocation != null) {
 // Do not delete the cache entry if it's not for the same server that gave us the error.
-isStaleDelete = (source != null) && !oldLocation.equals(source);
-if (!isStaleDelete) {
-tableLocations.remove(hri.getStartKey());
-}
+boolean isStaleDelete = (source != null) && !oldLocation.equals(source);
+// a location cached in the meantime is newer than the error
+if (!isStaleDelete && tableLocations.remove(hri.getStartKey(), oldLocation)) {
+regionCacheEvictions.incrementAndGet();
 }
 }
 }
@@ -2280,14 +2361,15 @@ public void deleteCachedRegionLocation(final HRegionLocation location) {
 if (location == null) {
 return;
 }
-synchronized (this.cachedRegionLocations) {
 TableName tableName = location.getRegionInfo().getTableName();
 Map<byte[], HRegionLocation> tableLocations =
 getTableLocations(tableName);
-if (!tableLocations.isEmpty()) {
 // Delete if there's something in the cache for this region.
 HRegionLocation removedLocation =
 tableLocations.remove(location.getRegionInfo().getStartKey());
+if (removedLocation != null) {
+regionCacheEvictions.incrementAndGet();
+}
 if (LOG.isDebugEnabled() && removedLocation != null) {
 LOG.debug("Removed " +
 location.getRegionInfo().getRegionNameAsString() +
@@ -2295,8 +2377,6 @@ location.getRegionInfo().getRegionNameAsString() +
 " from cache");
 }
 }
-}
-}
 
 /**
 * Update the location with the new value (if the exception is a RegionMovedException)
@@ -2465,13 +2545,56 @@ return true; // we retry
 * from a unit test.
 */
 int getNumberOfCachedRegionLocations(final TableName tableName) {
-synchronized (this.cachedRegionLocations) {
 Map<byte[], HRegionLocation> tableLocs = this.cachedRegionLocations.get(tableName);
 if (tableLocs == null) {
 return 0;
 }
-return tableLocs.values().size();
+return tableLocs.size();
 }
+
+/**
+* @return the number of region lookups answered from the location cache
+*/
+public long getRegionCacheHits() {
+return regionCacheHits.get();
+}
+
+/**
+* @return the number of region lookups that missed the location cache
+*/
+public long getRegionCacheMisses() {
+return regionCacheMisses.get();
+}
+
+/**
+* @return the number of cached locations that were replaced by a location
+* on a different server
+*/
+public long getRegionCacheRelocations() {
+return regionCacheRelocations.get();
+}
+
+/**
+* @return the number of cached locations removed because of errors or
+* dead servers
+*/
+public long getRegionCacheEvictions() {
+return regionCacheEvictions.get();
+}
+
+/**
+* @return the number of queries sent to meta to locate a region
+*/
+public long getMetaLookups() {
+return metaLookups.get();
+}
+
+/**
+* @return the number of cache misses answered by a concurrent meta lookup
+* of another thread
+*/
+public long getCoalescedMetaLookups() {
+return coalescedMetaLookups.get();
 }
 
 /**
@@ -55,6 +55,7 @@ import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -229,6 +230,12 @@ REPLAY_BATCH_MUTATE, COMPACT_REGION
 private final ConcurrentHashMap<HashedBytes, RowLockContext> lockedRows =
 new ConcurrentHashMap<HashedBytes, RowLockContext>();
 
+// fixed table of row lock stripes, chosen by the hash of the row, null when
+// every row lock goes through lockedRows. A stripe locks one row at a time
+// without allocating a context; rows whose stripe is held for another row
+// fall back to lockedRows.
+private final RowLockStripe[] rowLockStripes;
+
 protected final Map<byte[], Store> stores = new ConcurrentSkipListMap<byte[], Store>(
 Bytes.BYTES_RAWCOMPARATOR);
 
@@ -479,6 +486,19 @@ this.flushCheckInterval = conf.getInt(MEMSTORE_PERIODIC_FLUSH_INTERVAL,
 DEFAULT_CACHE_FLUSH_INTERVAL);
 this.rowLockWaitDuration = conf.getInt("hbase.rowlock.wait.duration",
 DEFAULT_ROWLOCK_WAIT_DURATION);
+int stripes = conf.getInt("hbase.rowlock.stripes", 0);
+if (stripes > 0) {
+int size = 1;
+while (size < stripes) {
+size <<= 1;
+}
+this.rowLockStripes = new RowLockStripe[size];
+for (int i = 0; i < size; i++) {
+this.rowLockStripes[i] = new RowLockStripe();
+}
+} else {
+this.rowLockStripes = null;
+}
 
 this.isLoadingCfsOnDemandDefault = conf.getBoolean(LOAD_CFS_ON_DEMAND_CONFIG_KEY, true);
 this.htableDescriptor = htd;
@@ -2085,7 +2105,9 @@ continue;
 boolean shouldBlock = numReadyToWrite == 0;
 RowLock rowLock = null;
 try {
-rowLock = getRowLock(mutation.getRow(), shouldBlock);
+// the batch already holds the region operation
+checkRow(mutation.getRow(), "row lock");
+rowLock = getRowLockInternal(mutation.getRow(), shouldBlock);
 } catch (IOException ioe) {
 LOG.warn("Failed getting lock in batch put, row="
 + Bytes.toStringBinary(mutation.getRow()), ioe);
@@ -3181,14 +3203,89 @@ public RowLock getRowLock(byte[] row, boolean waitForLock) throws IOException {
 checkRow(row, "row lock");
 startRegionOperation();
 try {
+return getRowLockInternal(row, waitForLock);
+} finally {
+closeRegionOperation();
+}
+}
+
+/**
+* Same as {@link #getRowLock(byte[], boolean)} for callers that already checked the row
+* and hold a region operation.
+*/
+private RowLock getRowLockInternal(byte[] row, boolean waitForLock) throws IOException {
+if (rowLockStripes == null) {
+return getExactRowLock(row, waitForLock, null);
+}
+int h = Bytes.hashCode(row);
+RowLockStripe stripe = rowLockStripes[(h ^ (h >>> 16)) & (rowLockStripes.length - 1)];
+Thread current = Thread.currentThread();
+while (true) {
+Thread owner = stripe.owner.get();
+if (owner == null) {
+if (stripe.exactHolders.get() > 0) {
+// rows of this stripe are locked through contexts, join them
+return getExactRowLock(row, waitForLock, stripe);
+}
+if (stripe.owner.compareAndSet(null, current)) {
+if (stripe.exactHolders.get() == 0) {
+stripe.row = row;
+stripe.holds = 1;
+return new RowLock(stripe);
+}
+// a colliding row was locked through a context in the meantime
+stripe.unlock();
+return getExactRowLock(row, waitForLock, stripe);
+}
+continue;
+}
+byte[] heldRow = stripe.row;
+if (heldRow == null) {
+// the owner is setting or clearing its row
+Thread.yield();
+continue;
+}
+if (!Bytes.equals(heldRow, row)) {
+// the stripe is held for another row, no reason to wait for it
+return getExactRowLock(row, waitForLock, stripe);
+}
+if (owner == current) {
+stripe.holds++;
+return new RowLock(stripe);
+}
+if (!waitForLock) {
+return null;
+}
+stripe.awaitRelease(row, this.rowLockWaitDuration);
+}
+}
+
+/**
+* Locks the row through a context in lockedRows.
+* @param stripe the stripe of the row if row lock stripes are used. It stays closed to new
+*        striped locks until the context is released.
+*/
+private RowLock getExactRowLock(byte[] row, boolean waitForLock, RowLockStripe stripe)
+throws IOException {
 HashedBytes rowKey = new HashedBytes(row);
-RowLockContext rowLockContext = new RowLockContext(rowKey);
+RowLockContext rowLockContext = new RowLockContext(rowKey, stripe);
+boolean holdsStripe = false;
+if (stripe != null) {
+stripe.exactHolders.incrementAndGet();
+holdsStripe = true;
+}
+try {
+if (stripe != null && !stripe.awaitOtherRow(row, waitForLock, this.rowLockWaitDuration)) {
+return null;
+}
 
 // loop until we acquire the row lock (unless !waitForLock)
 while (true) {
 RowLockContext existingContext = lockedRows.putIfAbsent(rowKey, rowLockContext);
 if (existingContext == null) {
 // Row is not already locked by any thread, use newly created context.
+// It releases the stripe.
+holdsStripe = false;
 break;
 } else if (existingContext.ownedByCurrentThread()) {
 // Row is already locked by current thread, reuse existing context instead.
@@ -3215,7 +3312,9 @@ throw iie;
 // allocate new lock for this thread
 return rowLockContext.newLock();
 } finally {
-closeRegionOperation();
+if (holdsStripe) {
+stripe.exactHolders.decrementAndGet();
+}
 }
 }
 
@@ -4992,7 +5091,7 @@ Bytes.toString(family) + " does not exist in region " + this
 public static final long FIXED_OVERHEAD = ClassSize.align(
 ClassSize.OBJECT +
 ClassSize.ARRAY +
-38 * ClassSize.REFERENCE + 2 * Bytes.SIZEOF_INT +
+39 * ClassSize.REFERENCE + 2 * Bytes.SIZEOF_INT +
 (11 * Bytes.SIZEOF_LONG) +
 4 * Bytes.SIZEOF_BOOLEAN);
 
@@ -5601,12 +5700,18 @@ void failedBulkLoad(byte[] family, String srcPath) throws IOException;
 
 @VisibleForTesting class RowLockContext {
 private final HashedBytes row;
+private final RowLockStripe stripe;
 private final CountDownLatch latch = new CountDownLatch(1);
 private final Thread thread;
 private int lockCount = 0;
 
 RowLockContext(HashedBytes row) {
+this(row, null);
+}
+
+RowLockContext(HashedBytes row, RowLockStripe stripe) {
 this.row = row;
+this.stripe = stripe;
 this.thread = Thread.currentThread();
 }
 
@@ -5633,10 +5738,109 @@ throw new RuntimeException(
 "Internal row lock state inconsistent, should not happen, row: " + row);
 }
 latch.countDown();
+if (stripe != null) {
+stripe.exactHolders.decrementAndGet();
+}
+}
+}
+}
+
+/**
+* A stripe of the row lock table. The stripe is owned by one thread for one row at a
+* time, reentrant for that row. While rows of the stripe are locked through contexts
+* (exactHolders > 0) the stripe is not taken, so a row is never locked both ways.
+*/
+@VisibleForTesting static class RowLockStripe {
+private final AtomicReference<Thread> owner = new AtomicReference<Thread>();
+// set by the owner after it took the stripe, cleared before it lets go
+private volatile byte[] row;
+// only accessed by the owner
+private int holds;
+private final AtomicInteger exactHolders = new AtomicInteger();
+private volatile int waiters;
+
+void releaseLock() {
+if (owner.get() != Thread.currentThread()) {
+throw new IllegalArgumentException("Lock held by thread: " + owner.get()
++ " cannot be released by different thread: " + Thread.currentThread());
+}
+if (--holds == 0) {
+unlock();
+}
+}
+
+void unlock() {
+row = null;
+owner.set(null);
+if (waiters > 0) {
+synchronized (this) {
+notifyAll();
 }
 }
 }
 
+/**
+* Waits until the stripe is no longer held for the given row.
+*/
+synchronized void awaitRelease(byte[] lockRow, long timeout) throws IOException {
+waiters++;
+try {
+long deadline = EnvironmentEdgeManager.currentTimeMillis() + timeout;
+while (isHeldFor(lockRow)) {
+long remaining = deadline - EnvironmentEdgeManager.currentTimeMillis();
+if (remaining <= 0) {
+throw new IOException("Timed out waiting for lock for row: " +
+Bytes.toStringBinary(lockRow));
+}
+wait(remaining);
+}
+} catch (InterruptedException ie) {
+LOG.warn("Thread interrupted waiting for lock on row: " + Bytes.toStringBinary(lockRow));
+InterruptedIOException iie = new InterruptedIOException();
+iie.initCause(ie);
+throw iie;
+} finally {
+waiters--;
+}
+}
+
+/**
+* Called with exactHolders raised: waits for an owner that holds the stripe for the given
+* row. Owners that took the stripe before exactHolders was raised either set their row or
+* give the stripe back right away.
+* @return false if the row is held and waitForLock is false
+*/
+boolean awaitOtherRow(byte[] lockRow, boolean waitForLock, long timeout)
+throws IOException {
+while (true) {
+Thread o = owner.get();
+if (o == null || o == Thread.currentThread()) {
+return true;
+}
+byte[] heldRow = row;
+if (heldRow == null) {
+Thread.yield();
+continue;
+}
+if (!Bytes.equals(heldRow, lockRow)) {
+return true;
+}
+if (!waitForLock) {
+return false;
+}
+awaitRelease(lockRow, timeout);
+}
+}
+
+private boolean isHeldFor(byte[] lockRow) {
+if (owner.get() == null) {
+return false;
+}
+byte[] heldRow = row;
+return heldRow == null || Bytes.equals(heldRow, lockRow);
+}
+}
+
 /**
 * Row lock held by a given thread.
 * One thread may acquire multiple locks on the same row simultaneously.
@@ -5644,10 +5848,17 @@ latch.countDown();
 */
 public class RowLock {
 @VisibleForTesting final RowLockContext context;
+private final RowLockStripe stripe;
 private boolean released = false;
 
 @VisibleForTesting RowLock(RowLockContext context) {
 this.context = context;
+this.stripe = null;
+}
+
+RowLock(RowLockStripe stripe) {
+this.context = null;
+this.stripe = stripe;
 }
 
 /**
@@ -5657,7 +5868,11 @@ this.context = context;
 */
 public void release() {
 if (!released) {
+if (context != null) {
 context.releaseLock();
+} else {
+stripe.releaseLock();
+}
 released = true;
 }
 }
@@ -20,6 +20,7 @@ package org.apache.hadoop.hbase.regionserver.wal;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
@@ -35,10 +36,15 @@ import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -101,6 +107,11 @@ import org.cloudera.htrace.TraceScope;
 * rolling is not. To prevent log rolling taking place during this period, a
 * separate reentrant lock is used.
 *
+* <p>
+* With hbase.regionserver.hlog.groupcommit.syncers set, appends go to a ring
+* buffer instead of the LogSyncer's list and that many syncer threads keep
+* several hflush calls in flight at once, see {@link GroupCommit}.
+*
 * <p>To read an HLog, call {@link HLogFactory#createReader(org.apache.hadoop.fs.FileSystem,
 * org.apache.hadoop.fs.Path, org.apache.hadoop.conf.Configuration)}.
 *
@@ -138,9 +149,9 @@ final static Object [] NO_ARGS = new Object []{};
 private DrainBarrier closeBarrier = new DrainBarrier();
 
 /**
-* Current log file.
+* Current log file. Read without the updateLock by the group commit threads.
 */
-Writer writer;
+volatile Writer writer;
 
 /**
 * Map of all log files but the current one.
@@ -223,6 +234,11 @@ private final int maxLogs;
 */
 private final LogSyncer logSyncer;
 
+/**
+* Group commit of appends and syncs, null when syncs go through {@link #syncer(long)}
+*/
+private final GroupCommit groupCommit;
+
 /** Number of log close errors tolerated before we abort */
 private final int closeErrorsTolerated;
 
@@ -348,12 +364,17 @@ this.closeErrorsTolerated = conf.getInt(
 "hbase.regionserver.logroll.errors.tolerated", 0);
 
 this.logSyncer = new LogSyncer(this.optionalFlushInterval);
+int groupCommitSyncers = conf.getInt("hbase.regionserver.hlog.groupcommit.syncers", 0);
+this.groupCommit = groupCommitSyncers > 0 ?
+new GroupCommit(conf.getInt("hbase.regionserver.hlog.groupcommit.buffer", 16 * 1024),
+groupCommitSyncers) : null;
 
 LOG.info("WAL/HLog configuration: blocksize=" +
 StringUtils.byteDesc(this.blocksize) +
 ", rollsize=" + StringUtils.byteDesc(this.logrollsize) +
 ", enabled=" + this.enabled +
-", optionallogflushinternal=" + this.optionalFlushInterval + "ms");
+", optionallogflushinternal=" + this.optionalFlushInterval + "ms" +
+", groupcommitsyncers=" + groupCommitSyncers);
 // If prefix is null||empty then just name it hlog
 this.prefix = prefix == null || prefix.isEmpty() ?
 "hlog" : URLEncoder.encode(prefix, "UTF8");
@@ -389,6 +410,9 @@ LOG.info("hbase.regionserver.optionallogflushinterval is set as "
 coprocessorHost = new WALCoprocessorHost(this, conf);
 
 this.metrics = new MetricsWAL();
+if (this.groupCommit != null) {
+this.groupCommit.start(Thread.currentThread().getName());
+}
 }
 
 /**
@@ -790,6 +814,9 @@ LOG.error("Exception while waiting for syncer thread to die", e);
 Thread.currentThread().interrupt();
 }
 }
+if (this.groupCommit != null) {
+this.groupCommit.close();
+}
 try {
 // Prevent all further flushing and rolling.
 closeBarrier.stopAndDrainOps();
@@ -1008,6 +1035,334 @@ closeLogSyncer.notifyAll();
 }
 }
 
+/**
+* Group commit of the log. Appends are put into a ring buffer at the slot of
+* their txid. A writer thread moves the ring's entries to the log writer when a
+* sync is requested and hands the highest txid written to a pool of syncer
+* threads, so that several hflush calls overlap instead of each waiting for the
+* previous one. A completed hflush covers everything written before it was
+* called, which is why syncedTillHere only ever moves up to the txid a syncer
+* was given. The handlers waiting for a sync are woken in txid order.
+*/
+class GroupCommit {
+private final AtomicReferenceArray<Entry> ring;
+private final int mask;
+private final int syncerCount;
+
+// highest txid moved from the ring to the log writer
+private volatile long writtenTxid = 0;
+// highest txid a handler is waiting for
+private final AtomicLong requestedTxid = new AtomicLong(0);
+private final Object writerLock = new Object();
+// txids written and not yet synced
+private final LinkedBlockingQueue<Long> syncRequests = new LinkedBlockingQueue<Long>();
+private final ConcurrentSkipListSet<SyncWaiter> waiters =
+new ConcurrentSkipListSet<SyncWaiter>();
+private final AtomicLong waiterSeq = new AtomicLong(0);
+// highest txid and cause of the last failed write or sync
+private volatile long failedTxid = 0;
+private volatile IOException failure;
+private final List<Thread> threads = new ArrayList<Thread>();
+private volatile boolean groupCommitClosed = false;
+
+GroupCommit(int capacity, int syncerCount) {
+int size = 1;
+while (size < capacity) {
+size <<= 1;
+}
+this.ring = new AtomicReferenceArray<Entry>(size);
+this.mask = size - 1;
+this.syncerCount = syncerCount;
+}
+
+void start(String prefix) {
+Thread writerThread = new Thread(new Runnable() {
+@Override
+public void run() {
+runWriter();
+}
+});
+threads.add(Threads.setDaemonThreadRunning(writerThread, prefix + ".logWriter"));
+for (int i = 0; i < syncerCount; i++) {
+Thread syncerThread = new Thread(new Runnable() {
+@Override
+public void run() {
+runSyncer();
+}
+});
+threads.add(Threads.setDaemonThreadRunning(syncerThread, prefix + ".logSyncer" + i));
+}
+}
+
+/**
+* Puts the entry at the slot of the next txid. Must be called with the
+* updateLock held and followed by the increment of unflushedEntries.
+*/
+void append(Entry e) throws IOException {
+long txid = unflushedEntries.get() + 1;
+if (txid - writtenTxid > ring.length()) {
+// the ring is full, have the writer drain it
+requestWrite(txid - 1);
+synchronized (ring) {
+while (txid - writtenTxid > ring.length()) {
+if (groupCommitClosed) {
+throw new IOException("Cannot append; log group commit is closed");
+}
+try {
+ring.wait(10);
+} catch (InterruptedException ie) {
+Thread.currentThread().interrupt();
+throw new InterruptedIOException("Interrupted waiting for room in the log ring");
+}
+}
+}
+}
+ring.set((int) (txid & mask), e);
+}
+
+/**
+* Blocks until all transactions up to txid are synced.
+*/
+void sync(long txid) throws IOException {
+txid = Math.min(txid, unflushedEntries.get());
+if (txid <= syncedTillHere || groupCommitClosed) {
+return;
+}
+SyncWaiter waiter = new SyncWaiter(txid, waiterSeq.incrementAndGet(),
+Thread.currentThread());
+waiters.add(waiter);
+requestWrite(txid);
+boolean interrupted = false;
+try {
+while (!waiter.done) {
+// the sync may have completed or failed before we were registered
+if (txid <= syncedTillHere || groupCommitClosed) {
+waiters.remove(waiter);
+return;
+}
+if (txid <= failedTxid && waiters.remove(waiter)) {
+throw failure;
+}
+LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100));
+if (Thread.interrupted()) {
+interrupted = true;
+}
+}
+} finally {
+if (interrupted) {
+Thread.currentThread().interrupt();
+}
+}
+if (waiter.error != null) {
+throw waiter.error;
+}
+}
+
+private void requestWrite(long txid) {
+long requested;
+while ((requested = requestedTxid.get()) < txid) {
+if (requestedTxid.compareAndSet(requested, txid)) {
+synchronized (writerLock) {
+writerLock.notify();
+}
+return;
+}
+}
+}
+
+private void runWriter() {
+List<Entry> batch = new ArrayList<Entry>();
+try {
+while (!groupCommitClosed) {
+synchronized (writerLock) {
+while (!groupCommitClosed && requestedTxid.get() <= writtenTxid) {
+writerLock.wait(optionalFlushInterval > 0 ? optionalFlushInterval : 1000);
+}
+}
+if (groupCommitClosed) {
+break;
+}
+Writer w = writer;
+if (w == null) {
+// being rolled, the roll syncs everything before it swaps the writer
+Threads.sleep(10);
+continue;
+}
+long upTo = unflushedEntries.get();
+for (long t = writtenTxid + 1; t <= upTo; t++) {
+int index = (int) (t & mask);
+Entry e = ring.get(index);
+if (e != null) {
+ring.set(index, null);
+batch.add(e);
+}
+}
+writtenTxid = upTo;
+synchronized (ring) {
+ring.notifyAll();
+}
+try {
+try {
+logSyncer.hlogFlush(w, batch);
+} catch (IOException ioe) {
+// HBASE-4387, HBASE-5623, retry on the current writer
+LOG.error("log writer encountered error, will retry. txid=" + upTo, ioe);
+w = writer;
+if (w == null) {
+throw ioe;
+}
+logSyncer.hlogFlush(w, batch);
+}
+syncRequests.add(upTo);
+} catch (IOException e) {
+LOG.fatal("Could not append. Requesting roll of hlog", e);
+requestLogRoll();
+fail(upTo, e);
+} finally {
+batch.clear();
+}
+}
+} catch (InterruptedException e) {
+LOG.debug(Thread.currentThread().getName() + " interrupted while waiting for sync requests");
+} finally {
+LOG.info(Thread.currentThread().getName() + " exiting");
+}
+}
+
+private void runSyncer() {
+try {
+while (!groupCommitClosed) {
+Long request = syncRequests.poll(1000, TimeUnit.MILLISECONDS);
+if (request == null) {
+continue;
+}
+// take the requests queued meanwhile, one hflush covers them all
+long upTo = request;
+Long next;
+while ((next = syncRequests.poll()) != null) {
+upTo = Math.max(upTo, next);
+}
+if (upTo <= syncedTillHere) {
+continue;
+}
+long now = EnvironmentEdgeManager.currentTimeMillis();
+Writer w = writer;
+try {
+try {
+if (w != null) w.sync();
+} catch (IOException ioe) {
+// HBASE-4387, HBASE-5623, retry on the current writer
+w = writer;
+if (w != null) w.sync();
+}
+} catch (IOException e) {
+LOG.fatal("Could not sync. Requesting roll of hlog", e);
+requestLogRoll();
+fail(upTo, e);
+continue;
+}
+synchronized (flushLock) {
+if (upTo > syncedTillHere) {
+syncedTillHere = upTo;
+}
+}
+metrics.finishSync(EnvironmentEdgeManager.currentTimeMillis() - now);
+complete(syncedTillHere, null);
+
+if (!logRollRunning && w != null) {
+checkLowReplication();
+try {
+if (w.getLength() > logrollsize) {
+requestLogRoll();
+}
+} catch (IOException x) {
+LOG.debug("Log roll failed and will be retried. (This is not an error)");
+}
+}
+}
+} catch (InterruptedException e) {
+LOG.debug(Thread.currentThread().getName() + " interrupted while waiting for sync requests");
+} finally {
+LOG.info(Thread.currentThread().getName() + " exiting");
+}
+}
+
+private void fail(long txid, IOException e) {
+failure = e;
+if (txid > failedTxid) {
+failedTxid = txid;
+}
+complete(txid, e);
+}
+
+/**
+* Wakes the waiters for txids up to the given one, lowest txid first.
+*/
+private void complete(long txid, IOException error) {
+for (SyncWaiter waiter : waiters.headSet(new SyncWaiter(txid, Long.MAX_VALUE, null))) {
+if (waiters.remove(waiter)) {
+waiter.error = error;
+waiter.done = true;
+LockSupport.unpark(waiter.thread);
+}
+}
+}
+
+/**
+* Syncs what was appended so far and stops the threads. Handlers still
+* waiting return, as they would for a closed log.
+*/
+void close() {
+try {
+sync(unflushedEntries.get());
+} catch (IOException e) {
+LOG.warn("Failed to sync the log before closing", e);
+}
+groupCommitClosed = true;
+synchronized (writerLock) {
+writerLock.notifyAll();
+}
+synchronized (ring) {
+ring.notifyAll();
+}
+for (Thread t : threads) {
+t.interrupt();
+try {
+t.join(optionalFlushInterval > 0 ? optionalFlushInterval * 2 : 2000);
+} catch (InterruptedException e) {
+LOG.error("Exception while waiting for " + t.getName() + " to die", e);
+Thread.currentThread().interrupt();
+}
+}
+complete(Long.MAX_VALUE, null);
+}
+}
+
+/**
+* A handler waiting for its txid to be synced, ordered by txid.
+*/
+private static final class SyncWaiter implements Comparable<SyncWaiter> {
+private final long txid;
+private final long seq;
+private final Thread thread;
+private volatile boolean done;
+private volatile IOException error;
+
+SyncWaiter(long txid, long seq, Thread thread) {
+this.txid = txid;
+this.seq = seq;
+this.thread = thread;
+}
+
+@Override
+public int compareTo(SyncWaiter other) {
+if (txid != other.txid) {
+return txid < other.txid ? -1 : 1;
+}
+return seq < other.seq ? -1 : (seq == other.seq ? 0 : 1);
+}
+}
+
 // sync all known transactions
 private void syncer() throws IOException {
 syncer(this.unflushedEntries.get()); // sync all pending items
@@ -1020,6 +1375,10 @@ private void syncer(long txid) throws IOException {
 if (txid <= this.syncedTillHere) {
 return;
 }
+if (this.groupCommit != null) {
+this.groupCommit.sync(txid);
+return;
+}
 Writer tempWriter;
 synchronized (this.updateLock) {
 if (this.closed) return;
@@ -1220,8 +1579,12 @@ if (logEdit.isReplay()) {
 logKey.setScopes(null);
 }
 // write to our buffer for the Hlog file.
+if (this.groupCommit != null) {
+this.groupCommit.append(new FSHLog.Entry(logKey, logEdit));
+} else {
 logSyncer.append(new FSHLog.Entry(logKey, logEdit));
 }
+}
 long took = EnvironmentEdgeManager.currentTimeMillis() - now;
 coprocessorHost.postWALWrite(info, logKey, logEdit);
 long len = 0;
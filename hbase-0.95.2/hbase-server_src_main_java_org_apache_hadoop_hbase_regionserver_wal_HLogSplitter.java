@@ -37,6 +37,9 @@ import java.util.TreeSet;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CompletionService;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorCompletionService;
@@ -45,6 +48,7 @@ import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -213,19 +217,61 @@ return s.splitLogFile(logfile, reporter);
 // log splitting. Used by tools and unit tests. It should be package private.
 // It is public only because TestWALObserver is in a different package,
 // which uses this method to to log splitting.
-public static List<Path> split(Path rootDir, Path logDir, Path oldLogDir,
-FileSystem fs, Configuration conf) throws IOException {
+//
+// With hbase.regionserver.hlog.splitlog.reader.threads greater than one the log files are
+// read concurrently. Every file still gets its own splitter and so its own recovered.edits
+// files, which keeps the edits of a region in sequence id order within each output file.
+// Distributed splitting goes through splitLogFile() one file per task and does not use this.
+public static List<Path> split(final Path rootDir, Path logDir, final Path oldLogDir,
+final FileSystem fs, final Configuration conf) throws IOException {
 FileStatus[] logfiles = fs.listStatus(logDir);
 List<Path> splits = new ArrayList<Path>();
 if (logfiles != null && logfiles.length > 0) {
+int numReaders = Math.min(logfiles.length,
+conf.getInt("hbase.regionserver.hlog.splitlog.reader.threads", 1));
+if (numReaders <= 1) {
 for (FileStatus logfile: logfiles) {
-HLogSplitter s = new HLogSplitter(conf, rootDir, fs, null, null);
-if (s.splitLogFile(logfile, null)) {
-finishSplitLogFile(rootDir, oldLogDir, logfile.getPath(), conf);
-if (s.outputSink.splits != null) {
-splits.addAll(s.outputSink.splits);
+List<Path> paths = splitAndFinish(rootDir, oldLogDir, logfile, fs, conf);
+if (paths != null) {
+splits.addAll(paths);
+}
+}
+} else {
+ThreadPoolExecutor readerThreadPool = Threads.getBoundedCachedThreadPool(numReaders, 30L,
+TimeUnit.SECONDS, new ThreadFactory() {
+private int count = 1;
+
+public Thread newThread(Runnable r) {
+Thread t = new Thread(r, "split-log-reader-" + count++);
+return t;
+}
+});
+CompletionService<List<Path>> completionService =
+new ExecutorCompletionService<List<Path>>(readerThreadPool);
+for (final FileStatus logfile: logfiles) {
+completionService.submit(new Callable<List<Path>>() {
+public List<Path> call() throws Exception {
+return splitAndFinish(rootDir, oldLogDir, logfile, fs, conf);
+}
+});
+}
+try {
+for (int i = 0; i < logfiles.length; i++) {
+List<Path> paths = completionService.take().get();
+if (paths != null) {
+splits.addAll(paths);
 }
 }
+} catch (InterruptedException e) {
+IOException iie = new InterruptedIOException();
+iie.initCause(e);
+throw iie;
+} catch (ExecutionException e) {
+Throwable cause = e.getCause();
+throw (cause instanceof IOException) ? (IOException) cause : new IOException(cause);
+} finally {
+readerThreadPool.shutdownNow();
+}
 }
 }
 if (!fs.delete(logDir, true)) {
@@ -234,6 +280,16 @@ throw new IOException("Unable to delete src dir: " + logDir);
 return splits;
 }
 
+private static List<Path> splitAndFinish(Path rootDir, Path oldLogDir, FileStatus logfile,
+FileSystem fs, Configuration conf) throws IOException {
+HLogSplitter s = new HLogSplitter(conf, rootDir, fs, null, null);
+if (!s.splitLogFile(logfile, null)) {
+return null;
+}
+finishSplitLogFile(rootDir, oldLogDir, logfile.getPath(), conf);
+return s.outputSink.splits;
+}
+
 // The real log splitter. It just splits one log file.
 boolean splitLogFile(FileStatus logfile,
 CancelableProgressable reporter) throws IOException {
@@ -650,31 +706,37 @@ return result;
 }
 
 /**
-* Class which accumulates edits and separates them into a buffer per region
+* Class which accumulates edits and separates them into a queue per region
 * while simultaneously accounting RAM usage. Blocks if the RAM usage crosses
 * a predefined threshold.
 *
+* The reader appends to the region queues without taking a lock. A region with
+* pending edits sits in the ready queue at most once and is handed to a single
+* writer thread at a time, so its edits are written in the order they were read.
 * Writer threads then pull region-specific buffers from this class.
 */
 class EntryBuffers {
-Map<byte[], RegionEntryBuffer> buffers =
-new TreeMap<byte[], RegionEntryBuffer>(Bytes.BYTES_COMPARATOR);
+ConcurrentSkipListMap<byte[], RegionEntryQueue> queues =
+new ConcurrentSkipListMap<byte[], RegionEntryQueue>(Bytes.BYTES_COMPARATOR);
 
-/* Track which regions are currently in the middle of writing. We don't allow
-an IO thread to pick up bytes from a region if we're already writing
-data for that region in a different IO thread. */
-Set<byte[]> currentlyWriting = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+// Regions with edits waiting for a writer thread
+ConcurrentLinkedQueue<RegionEntryQueue> readyRegions =
+new ConcurrentLinkedQueue<RegionEntryQueue>();
 
-long totalBuffered = 0;
+AtomicLong totalBuffered = new AtomicLong();
 long maxHeapUsage;
 
+// Writer threads waiting on dataAvailable for a region to become ready
+private volatile int idleWriters = 0;
+
 EntryBuffers(long maxHeapUsage) {
 this.maxHeapUsage = maxHeapUsage;
 }
 
 /**
-* Append a log entry into the corresponding region buffer.
-* Blocks if the total heap usage has crossed the specified threshold.
+* Append a log entry into the corresponding region queue.
+* Blocks if the total heap usage, including what the output sink still holds,
+* has crossed the specified threshold.
 *
 * @throws InterruptedException
 * @throws IOException
@@ -682,68 +744,124 @@ this.maxHeapUsage = maxHeapUsage;
 void appendEntry(Entry entry) throws InterruptedException, IOException {
 HLogKey key = entry.getKey();
 
-RegionEntryBuffer buffer;
-long incrHeap;
-synchronized (this) {
-buffer = buffers.get(key.getEncodedRegionName());
-if (buffer == null) {
-buffer = new RegionEntryBuffer(key.getTablename(), key.getEncodedRegionName());
-buffers.put(key.getEncodedRegionName(), buffer);
+RegionEntryQueue queue = queues.get(key.getEncodedRegionName());
+if (queue == null) {
+queue = new RegionEntryQueue(key.getTablename(), key.getEncodedRegionName());
+RegionEntryQueue existing = queues.putIfAbsent(key.getEncodedRegionName(), queue);
+if (existing != null) {
+queue = existing;
+}
+}
+queue.append(entry);
+totalBuffered.addAndGet(RegionEntryBuffer.heapSize(entry));
+if (queue.scheduled.compareAndSet(false, true)) {
+readyRegions.add(queue);
+if (idleWriters > 0) {
+synchronized (dataAvailable) {
+dataAvailable.notifyAll();
+}
 }
-incrHeap= buffer.appendEntry(entry);
 }
 
 // If we crossed the chunk threshold, wait for more space to be available
+if (getBufferedHeapSize() > maxHeapUsage) {
 synchronized (dataAvailable) {
-totalBuffered += incrHeap;
-while (totalBuffered > maxHeapUsage && thrown.get() == null) {
-LOG.debug("Used " + totalBuffered + " bytes of buffered edits, waiting for IO threads...");
+while (getBufferedHeapSize() > maxHeapUsage && thrown.get() == null) {
+LOG.debug("Used " + getBufferedHeapSize() +
+" bytes of buffered edits, waiting for IO threads...");
 dataAvailable.wait(2000);
 }
-dataAvailable.notifyAll();
+}
 }
 checkForErrors();
 }
 
 /**
-* @return RegionEntryBuffer a buffer of edits to be written or replayed.
+* @return the heap held by the region queues and by edits the output sink has taken but
+* not written yet.
 */
-synchronized RegionEntryBuffer getChunkToWrite() {
-long biggestSize = 0;
-byte[] biggestBufferKey = null;
-
-for (Map.Entry<byte[], RegionEntryBuffer> entry : buffers.entrySet()) {
-long size = entry.getValue().heapSize();
-if (size > biggestSize && (!currentlyWriting.contains(entry.getKey()))) {
-biggestSize = size;
-biggestBufferKey = entry.getKey();
-}
+long getBufferedHeapSize() {
+long sinkHeap = (outputSink == null) ? 0 : outputSink.getBufferedHeapSize();
+return totalBuffered.get() + sinkHeap;
 }
-if (biggestBufferKey == null) {
+
+/**
+* @return RegionEntryBuffer a buffer of edits to be written or replayed.
+*/
+RegionEntryBuffer getChunkToWrite() {
+RegionEntryQueue queue = readyRegions.poll();
+if (queue == null) {
 return null;
 }
-
-RegionEntryBuffer buffer = buffers.remove(biggestBufferKey);
-currentlyWriting.add(biggestBufferKey);
+queue.writing = true;
+RegionEntryBuffer buffer = new RegionEntryBuffer(queue.tableName, queue.encodedRegionName);
+Entry entry;
+while ((entry = queue.entries.poll()) != null) {
+buffer.appendEntry(entry);
+}
 return buffer;
 }
 
 void doneWriting(RegionEntryBuffer buffer) {
-synchronized (this) {
-boolean removed = currentlyWriting.remove(buffer.encodedRegionName);
-assert removed;
+RegionEntryQueue queue = queues.get(buffer.encodedRegionName);
+assert queue != null && queue.writing;
+queue.writing = false;
+queue.scheduled.set(false);
+// the reader does not reschedule a region that is being written, so pick up
+// whatever it added in the meantime
+if (!queue.entries.isEmpty() && queue.scheduled.compareAndSet(false, true)) {
+readyRegions.add(queue);
 }
-long size = buffer.heapSize();
+totalBuffered.addAndGet(-buffer.heapSize());
 
 synchronized (dataAvailable) {
-totalBuffered -= size;
 // We may unblock writers
 dataAvailable.notifyAll();
 }
 }
 
-synchronized boolean isRegionCurrentlyWriting(byte[] region) {
-return currentlyWriting.contains(region);
+/**
+* Waits on dataAvailable for a region to become ready unless one already is.
+* Must be called with the dataAvailable monitor held.
+*/
+void waitForData(long timeout) throws InterruptedException {
+idleWriters++;
+try {
+if (readyRegions.isEmpty()) {
+dataAvailable.wait(timeout);
+}
+} finally {
+idleWriters--;
+}
+}
+
+boolean isRegionCurrentlyWriting(byte[] region) {
+RegionEntryQueue queue = queues.get(region);
+return queue != null && queue.writing;
+}
+}
+
+/**
+* The edits of a region that have been read but not yet handed to a writer thread.
+*/
+static class RegionEntryQueue {
+final ConcurrentLinkedQueue<Entry> entries = new ConcurrentLinkedQueue<Entry>();
+// true while the region is in the ready queue or a writer thread owns it
+final AtomicBoolean scheduled = new AtomicBoolean(false);
+volatile boolean writing = false;
+final TableName tableName;
+final byte[] encodedRegionName;
+
+RegionEntryQueue(TableName tableName, byte[] region) {
+this.tableName = tableName;
+this.encodedRegionName = region;
+}
+
+void append(Entry entry) {
+HLogKey k = entry.getKey();
+k.internTableName(this.tableName);
+k.internEncodedRegionName(this.encodedRegionName);
+entries.add(entry);
 }
 }
 
@@ -768,13 +886,17 @@ this.entryBuffer = new LinkedList<Entry>();
 long appendEntry(Entry entry) {
 internify(entry);
 entryBuffer.add(entry);
-long incrHeap = entry.getEdit().heapSize() +
-ClassSize.align(2 * ClassSize.REFERENCE) + // HLogKey pointers
-0; // TODO linkedlist entry
+long incrHeap = heapSize(entry);
 heapInBuffer += incrHeap;
 return incrHeap;
 }
 
+static long heapSize(Entry entry) {
+return entry.getEdit().heapSize() +
+ClassSize.align(2 * ClassSize.REFERENCE) + // HLogKey pointers
+0; // TODO linkedlist entry
+}
+
 private void internify(Entry entry) {
 HLogKey k = entry.getKey();
 k.internTableName(this.tableName);
@@ -809,13 +931,19 @@ LOG.debug("Writer thread " + this + ": starting");
 while (true) {
 RegionEntryBuffer buffer = entryBuffers.getChunkToWrite();
 if (buffer == null) {
+// the reader blocks while the sink holds too many edits, help the sink out
+// instead of waiting for a region to become ready
+if (entryBuffers.getBufferedHeapSize() > entryBuffers.maxHeapUsage
+&& this.outputSink.flushBuffered()) {
+continue;
+}
 // No data currently available, wait on some more to show up
 synchronized (dataAvailable) {
 if (shouldStop && !this.outputSink.flush()) {
 return;
 }
 try {
-dataAvailable.wait(500);
+entryBuffers.waitForData(500);
 } catch (InterruptedException ie) {
 if (!shouldStop) {
 throw new RuntimeException(ie);
@@ -978,6 +1106,23 @@ abstract void append(RegionEntryBuffer buffer) throws IOException;
 protected boolean flush() throws IOException {
 return false;
 }
+
+/**
+* Idle WriterThreads call this function while the buffered edits exceed the split buffer
+* size, so a reader blocked on them does not depend on new edits showing up.
+* @return true when some buffered edits were written out
+*/
+protected boolean flushBuffered() throws IOException {
+return false;
+}
+
+/**
+* @return heap of the edits the sink has taken from the entry buffers but not written out
+* yet. It counts against the split buffer size so readers block when the sink falls behind.
+*/
+long getBufferedHeapSize() {
+return 0;
+}
 }
 
 /**
@@ -1319,8 +1464,10 @@ private Map<TableName, HConnection> tableNameToHConnectionMap = Collections
 * Map key -> value layout
 * <servername>:<table name> -> Queue<Row>
 */
-private Map<String, List<Pair<HRegionLocation, Row>>> serverToBufferQueueMap =
-new ConcurrentHashMap<String, List<Pair<HRegionLocation, Row>>>();
+private final ConcurrentMap<String, ReplayQueue> serverToBufferQueueMap =
+new ConcurrentHashMap<String, ReplayQueue>();
+// heap of the rows waiting in serverToBufferQueueMap
+private final AtomicLong queuedHeap = new AtomicLong();
 private List<Throwable> thrown = new ArrayList<Throwable>();
 
 // The following sink is used in distrubitedLogReplay mode for entries of regions in a disabling
@@ -1358,31 +1505,91 @@ return;
 // group entries by region servers
 groupEditsByServer(entries);
 
-// process workitems
+// process workitems, buffer more unless a batch is full or memory runs short
+if (entryBuffers.getBufferedHeapSize() < BUFFER_THRESHOLD * entryBuffers.maxHeapUsage) {
+replayLargestQueue(minBatchSize);
+} else {
+replayLargestQueue(1);
+}
+}
+
+/**
+* Add a row to the replay queue of its region server and table.
+*/
+private void enqueue(String key, HRegionLocation loc, Row row) {
+ReplayQueue queue = serverToBufferQueueMap.get(key);
+if (queue == null) {
+queue = new ReplayQueue();
+ReplayQueue existing = serverToBufferQueueMap.putIfAbsent(key, queue);
+if (existing != null) {
+queue = existing;
+}
+}
+queue.rows.add(new Pair<HRegionLocation, Row>(loc, row));
+queue.size.incrementAndGet();
+queuedHeap.addAndGet(((HeapSize) row).heapSize());
+}
+
+/**
+* Replay the rows of the largest queue that no other writer thread is replaying.
+* Only one batch per queue is in flight at a time, which keeps the rows of a region
+* in order and stops a slow region server from tying up all writer threads.
+* @param minSize the smallest queue worth sending
+* @return true if a batch was replayed
+*/
+private boolean replayLargestQueue(int minSize) throws IOException {
 String maxLocKey = null;
 int maxSize = 0;
-List<Pair<HRegionLocation, Row>> maxQueue = null;
-synchronized (this.serverToBufferQueueMap) {
-for (String key : this.serverToBufferQueueMap.keySet()) {
-List<Pair<HRegionLocation, Row>> curQueue = this.serverToBufferQueueMap.get(key);
-if (curQueue.size() > maxSize) {
-maxSize = curQueue.size();
+ReplayQueue maxQueue = null;
+for (Map.Entry<String, ReplayQueue> entry : this.serverToBufferQueueMap.entrySet()) {
+ReplayQueue curQueue = entry.getValue();
+int curSize = curQueue.size.get();
+if (curSize > maxSize && !curQueue.replaying.get()) {
+maxSize = curSize;
 maxQueue = curQueue;
-maxLocKey = key;
+maxLocKey = entry.getKey();
 }
 }
-if (maxSize < minBatchSize
-&& entryBuffers.totalBuffered < BUFFER_THRESHOLD * entryBuffers.maxHeapUsage) {
-// buffer more to process
-return;
-} else if (maxSize > 0) {
-this.serverToBufferQueueMap.remove(maxLocKey);
-}
+if (maxSize < minSize || maxSize == 0 || !maxQueue.replaying.compareAndSet(false, true)) {
+return false;
 }
 
-if (maxSize > 0) {
-processWorkItems(maxLocKey, maxQueue);
+boolean replayed = false;
+try {
+// rows added while a batch is in flight are skipped by the other writer threads, so
+// keep replaying until the queue is empty
+while (true) {
+List<Pair<HRegionLocation, Row>> batch = new ArrayList<Pair<HRegionLocation, Row>>();
+long batchHeap = 0;
+Pair<HRegionLocation, Row> action;
+while ((action = maxQueue.rows.poll()) != null) {
+batch.add(action);
+batchHeap += ((HeapSize) action.getSecond()).heapSize();
+}
+if (batch.isEmpty()) {
+break;
+}
+maxQueue.size.addAndGet(-batch.size());
+try {
+processWorkItems(maxLocKey, batch);
+} finally {
+queuedHeap.addAndGet(-batchHeap);
+synchronized (dataAvailable) {
+// We may unblock readers
+dataAvailable.notifyAll();
+}
+}
+replayed = true;
 }
+} finally {
+maxQueue.replaying.set(false);
+}
+return replayed;
+}
+
+@Override
+long getBufferedHeapSize() {
+return queuedHeap.get();
 }
 
 private void addToRecoveredRegions(String encodedRegionName) {
@@ -1430,15 +1637,8 @@ if (kv.matchingFamily(WALEdit.METAFAMILY)) continue;
 
 if (lastKV == null || lastKV.getType() != kv.getType() || !lastKV.matchingRow(kv)) {
 if (preRow != null) {
-synchronized (serverToBufferQueueMap) {
-List<Pair<HRegionLocation, Row>> queue = serverToBufferQueueMap.get(preKey);
-if (queue == null) {
-queue = Collections.synchronizedList(new ArrayList<Pair<HRegionLocation, Row>>());
-serverToBufferQueueMap.put(preKey, queue);
-}
-queue.add(new Pair<HRegionLocation, Row>(preLoc, preRow));
+enqueue(preKey, preLoc, preRow);
 lastAddedRow = preRow;
-}
 // store regions we have recovered so far
 addToRecoveredRegions(preLoc.getRegionInfo().getEncodedName());
 }
@@ -1507,14 +1707,7 @@ if(needSkip) continue;
 
 // add the last row
 if (preRow != null && lastAddedRow != preRow) {
-synchronized (serverToBufferQueueMap) {
-List<Pair<HRegionLocation, Row>> queue = serverToBufferQueueMap.get(preKey);
-if (queue == null) {
-queue = Collections.synchronizedList(new ArrayList<Pair<HRegionLocation, Row>>());
-serverToBufferQueueMap.put(preKey, queue);
-}
-queue.add(new Pair<HRegionLocation, Row>(preLoc, preRow));
-}
+enqueue(preKey, preLoc, preRow);
 // store regions we have recovered so far
 addToRecoveredRegions(preLoc.getRegionInfo().getEncodedName());
 }
@@ -1663,29 +1856,21 @@ throw new IOException("Timeout when waiting region " + loc.getRegionInfo().getEn
 }
 
 @Override
-protected boolean flush() throws IOException {
-String curLoc = null;
-int curSize = 0;
-List<Pair<HRegionLocation, Row>> curQueue = null;
-synchronized (this.serverToBufferQueueMap) {
-for (String locationKey : this.serverToBufferQueueMap.keySet()) {
-curQueue = this.serverToBufferQueueMap.get(locationKey);
-if (!curQueue.isEmpty()) {
-curSize = curQueue.size();
-curLoc = locationKey;
-break;
-}
-}
-if (curSize > 0) {
-this.serverToBufferQueueMap.remove(curLoc);
-}
+protected boolean flushBuffered() throws IOException {
+return replayLargestQueue(1);
 }
 
-if (curSize > 0) {
-this.processWorkItems(curLoc, curQueue);
-dataAvailable.notifyAll();
+@Override
+protected boolean flush() throws IOException {
+if (replayLargestQueue(1)) {
+return true;
+}
+// rows left behind a batch another writer thread is still replaying
+for (ReplayQueue queue : this.serverToBufferQueueMap.values()) {
+if (queue.size.get() > 0) {
 return true;
 }
+}
 return false;
 }
 
@@ -1835,6 +2020,17 @@ return TableName.valueOf(splits[1]);
 }
 }
 
+/**
+* Rows waiting to be replayed to one region server for one table. Rows are added
+* without locking; the writer thread that sets replaying takes them as one batch.
+*/
+private final static class ReplayQueue {
+final ConcurrentLinkedQueue<Pair<HRegionLocation, Row>> rows =
+new ConcurrentLinkedQueue<Pair<HRegionLocation, Row>>();
+final AtomicInteger size = new AtomicInteger(0);
+final AtomicBoolean replaying = new AtomicBoolean(false);
+}
+
 /**
 * Private data structure that wraps a receiving RS and collecting statistics about the data
 * written to this newly assigned RS.